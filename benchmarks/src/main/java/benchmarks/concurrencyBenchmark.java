@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How the server started with server.start() scales with concurrent clients
+ * every benchmark thread is a client that downloads the same small file over and over on a new connection each time,
+ * the total throughput (downloads per second) is compared between 1, 16 and 64 clients
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class concurrencyBenchmark{
+
+    private static final long FILE_SIZE = 64 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class shared{
+        harness server;
+        AtomicInteger clients = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception{
+            this.server = new harness("concurrency");
+            this.server.createFile("file.bin", FILE_SIZE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception{
+            this.server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class clientCopy{
+        String path; // the client's copy of the file, one per benchmark thread
+
+        @Setup(Level.Trial)
+        public void setup(shared state){
+            this.path = state.server.path("copy" + state.clients.incrementAndGet() + ".bin");
+        }
+
+        @Setup(Level.Invocation)
+        public void remove(){
+            new File(this.path).delete(); // download the whole file every time
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void clients1(shared state, clientCopy copy) throws Exception{
+        state.server.run("download", state.server.path("file.bin"), copy.path);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void clients16(shared state, clientCopy copy) throws Exception{
+        state.server.run("download", state.server.path("file.bin"), copy.path);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void clients64(shared state, clientCopy copy) throws Exception{
+        state.server.run("download", state.server.path("file.bin"), copy.path);
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing a large directory over loopback, from connecting until the last entry has been read
+ * "dir" sends the names in one reply, "ls" pages through the entries with their sizes and modification times
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class dirBenchmark{
+
+    @Param({"100", "10000"})
+    int entries; // files in the directory
+
+    private harness server;
+
+    @Setup
+    public void setup() throws Exception{
+        this.server = new harness("dir");
+        for (int i=0; i<this.entries; i++){
+            new File(this.server.path("file" + i)).createNewFile();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        this.server.close();
+    }
+
+    @Benchmark
+    public void dir() throws Exception{
+        this.server.run("dir", this.server.path(""));
+    }
+
+    @Benchmark
+    public void ls() throws Exception{
+        this.server.run("ls", this.server.path(""));
+    }
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.io.*;
+
+/**
+ * Access to the server and client for the benchmarks
+ * their classes are in the default package, so they are loaded by name and their package private members are reached through reflection;
+ * the server runs in the benchmark's own JVM (JMH forks one per benchmark) and serves the directory the JVM runs in,
+ * so every benchmark keeps its files in a directory of its own under it
+ */
+class harness{
+
+    private static final String HOST = "localhost";
+    private static final int SERVER_THREADS = 100; // same pool as "server start <port>"
+
+    private Object server;
+    private int port;
+    private Thread acceptLoop;
+    private PrintStream stdout;
+    final Path directory; // directory of the benchmark's files, relative to the server's root
+
+    /**
+     * Start a server on a free port and make a directory for the benchmark's files
+     * @param name name of the benchmark, used for the directory
+     */
+    harness(String name) throws Exception{
+        this.directory = Files.createTempDirectory(Paths.get("."), "jmh-" + name + "-").getFileName();
+
+        // the server and client print every command, which is not part of what is measured
+        this.stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Constructor<?> constructor = Class.forName("server").getConstructor(int.class);
+        this.server = constructor.newInstance(0);
+        this.port = ((ServerSocket) field(this.server.getClass(), "serverSocket").get(this.server)).getLocalPort();
+        Method start = method(this.server.getClass(), "start", ExecutorService.class);
+        this.acceptLoop = new Thread(() -> {
+            try {
+                start.invoke(this.server, Executors.newFixedThreadPool(SERVER_THREADS));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "benchmark server");
+        this.acceptLoop.start();
+    }
+
+    /**
+     * Shut the server down and remove the benchmark's files
+     */
+    void close() throws Exception{
+        this.run("shutdown");
+        this.acceptLoop.join();
+        System.setOut(this.stdout);
+        try (Stream<Path> files = Files.walk(this.directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Run a client command on its own connection, like "java client <command> <arguments>"
+     * @param args the command and its arguments
+     */
+    void run(String... args) throws Exception{
+        Object client = Class.forName("client").getConstructor(String.class, int.class).newInstance(HOST, this.port);
+        field(client.getClass(), "quiet").setBoolean(client, true);
+        if (!(Boolean) method(client.getClass(), "execute", String[].class).invoke(client, (Object) args)){
+            throw new IOException("client " + String.join(" ", args) + " failed");
+        }
+    }
+
+    /**
+     * @param name name of a file in the benchmark's directory
+     * @return the path the client and the server use for it
+     */
+    String path(String name){
+        return this.directory.resolve(name).toString();
+    }
+
+    /**
+     * Write a file of random bytes
+     * @param name name of the file in the benchmark's directory
+     * @param size bytes in the file
+     */
+    void createFile(String name, long size) throws IOException{
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random(size);
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(this.path(name)))){
+            for (long written = 0; written < size; written += block.length){
+                random.nextBytes(block);
+                file.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * Choose whether large transfers go through memory mappings
+     * @param mapped true to map every file, false to never map them
+     */
+    static void mapFiles(boolean mapped) throws ReflectiveOperationException{
+        field(Class.forName("mappedFile"), "threshold").setLong(null, mapped ? 1 : 0);
+    }
+
+    static Field field(Class<?> type, String name) throws ReflectiveOperationException{
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    static Method method(Class<?> type, String name, Class<?>... parameterTypes) throws ReflectiveOperationException{
+        Method method = type.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return method;
+    }
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of the request a connection starts with, as the server's handshake does it
+ * the legacy request is the command and the path sent with writeChars and read a character at a time by readLine,
+ * the binary request is the magic byte, version, opcode and a UTF-8 path with a varint length
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class protocolBenchmark{
+
+    @Param({"16", "256"})
+    int pathLength; // characters in the path of the request
+
+    private MethodHandle readLine; // server.readLine(DataInputStream)
+    private MethodHandle commandName; // protocol.commandName(int)
+    private MethodHandle readString; // protocol.readString(DataInputStream)
+    private Object server;
+    private byte[] legacyRequest;
+    private byte[] binaryRequest;
+
+    @Setup
+    public void setup() throws Throwable{
+        Class<?> serverClass = Class.forName("server");
+        Class<?> protocolClass = Class.forName("protocol");
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        this.readLine = lookup.unreflect(harness.method(serverClass, "readLine", DataInputStream.class));
+        this.commandName = lookup.unreflect(harness.method(protocolClass, "commandName", int.class));
+        this.readString = lookup.unreflect(harness.method(protocolClass, "readString", DataInputStream.class));
+        this.server = serverClass.getConstructor(int.class).newInstance(0); // never started, readLine only needs an instance
+
+        String path = "./" + "d".repeat(this.pathLength - 2);
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        DataOutputStream legacyOut = new DataOutputStream(legacy);
+        legacyOut.writeChars("upload\n");
+        legacyOut.writeChars(path + "\n");
+        this.legacyRequest = legacy.toByteArray();
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        DataOutputStream binaryOut = new DataOutputStream(binary);
+        int opcode = harness.field(protocolClass, "VERIFIED_UPLOAD").getInt(null);
+        harness.method(protocolClass, "writeRequest", DataOutputStream.class, int.class, String.class).invoke(null, binaryOut, opcode, path);
+        this.binaryRequest = binary.toByteArray();
+    }
+
+    @Benchmark
+    public void legacyRequest(Blackhole blackhole) throws Throwable{
+        DataInputStream inFromClient = new DataInputStream(new ByteArrayInputStream(this.legacyRequest));
+        blackhole.consume((String) this.readLine.invoke(this.server, inFromClient)); // command
+        blackhole.consume((String) this.readLine.invoke(this.server, inFromClient)); // path
+    }
+
+    @Benchmark
+    public void binaryRequest(Blackhole blackhole) throws Throwable{
+        DataInputStream inFromClient = new DataInputStream(new ByteArrayInputStream(this.binaryRequest));
+        inFromClient.readUnsignedByte(); // magic
+        inFromClient.readUnsignedByte(); // version
+        blackhole.consume((String) this.commandName.invoke(inFromClient.readUnsignedByte()));
+        blackhole.consume((String) this.readString.invoke(inFromClient));
+    }
+}
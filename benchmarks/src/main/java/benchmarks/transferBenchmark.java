@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Upload and download throughput over loopback, a whole verified transfer per operation
+ * the receiving side's copy is removed before every operation, otherwise the transfer would resume and send nothing;
+ * "buffered" moves the bytes through the 64 KB transfer buffers, "mapped" through memory mappings of the file
+ * (the buffer sizes themselves are constants of the client and server)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class transferBenchmark{
+
+    @Param({"65536", "8388608", "134217728"})
+    long fileSize; // bytes in the file
+
+    @Param({"buffered", "mapped"})
+    String transfer; // how the file's bytes are moved
+
+    private harness server;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception{
+        this.server = new harness("transfer");
+        harness.mapFiles(this.transfer.equals("mapped"));
+        this.server.createFile("source.bin", this.fileSize);
+        this.server.run("upload", this.server.path("source.bin"), this.server.path("download.bin")); // the file the downloads fetch
+    }
+
+    @Setup(Level.Invocation)
+    public void removeCopies(){
+        new File(this.server.path("upload.bin")).delete();
+        new File(this.server.path("copy.bin")).delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception{
+        this.server.close();
+    }
+
+    @Benchmark
+    public void upload() throws Exception{
+        this.server.run("upload", this.server.path("source.bin"), this.server.path("upload.bin"));
+    }
+
+    @Benchmark
+    public void download() throws Exception{
+        this.server.run("download", this.server.path("download.bin"), this.server.path("copy.bin"));
+    }
+}
@@ -1,3 +1,3 @@
-javac client.java server.java;
-jar cf pa1.jar client.class server.class server\$serverThread.class;
-rm client.class server.class server\$serverThread.class;
+javac *.java;
+jar cf pa1.jar *.class;
+rm *.class;
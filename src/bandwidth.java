@@ -0,0 +1,373 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+import java.io.*;
+
+/**
+ * Limits on how fast files move through the server: for the whole server, for every client address and for every connection
+ * each limit is a token bucket, a transfer takes tokens for every chunk it sends or receives from its connection's bucket,
+ * then its client's and then the server's, and waits when one of them is empty; the buckets serve waiting transfers in order,
+ * so transfers share a limit evenly and a client with many connections gets no more than its own limit
+ * (the commands of a session run on streams of one connection, they share that connection's bucket)
+ * the limits are in KB per second (0 for no limit), they start from PA1_RATE_KB, PA1_CLIENT_RATE_KB and PA1_CONNECTION_RATE_KB
+ * and can be changed while the server runs through JMX (pa1:type=bandwidth), which applies to the running transfers that were opened
+ * while some limit was set (transfers opened with no limit at all do not take tokens, they stay unlimited until they end)
+ */
+public class bandwidth implements bandwidthMBean{
+
+    static final int CHUNK = 64 * 1024; // most bytes a transfer takes tokens for at once
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(100); // longest sleep before the limit is read again
+
+    private volatile long serverRate; // KB per second for the whole server
+    private volatile long clientRate; // KB per second for every client address
+    private volatile long connectionRate; // KB per second for every connection
+    private tokenBucket serverBucket = new tokenBucket(() -> this.serverRate);
+    private Map<InetAddress, clientShare> clients = new ConcurrentHashMap<>(); // buckets of the clients that are transferring
+
+    /**
+     * Read the limits from the environment (PA1_RATE_KB, PA1_CLIENT_RATE_KB and PA1_CONNECTION_RATE_KB)
+     */
+    public bandwidth(){
+        this.serverRate = rate("PA1_RATE_KB");
+        this.clientRate = rate("PA1_CLIENT_RATE_KB");
+        this.connectionRate = rate("PA1_CONNECTION_RATE_KB");
+    }
+
+    private static long rate(String variable){
+        String value = System.getenv(variable);
+        return (value == null) ? 0 : Math.max(0, Long.parseLong(value));
+    }
+
+    /**
+     * @return true if any of the limits is set
+     */
+    boolean limited(){
+        return this.serverRate > 0 || this.clientRate > 0 || this.connectionRate > 0;
+    }
+
+    /**
+     * Get the limiter for a transfer, the client's bucket is shared with the client's other transfers until every one of them is closed
+     * and a transfer on a stream of a session takes tokens from the bucket of the session's connection
+     * when no limit is set the limiter lets everything through without waiting, even if a limit is set later
+     * @param address the client's address, null if it is not known
+     * @param connection the limiter of the session's connection, null if the transfer has a connection of its own
+     * @return the limiter of the transfer
+     */
+    limiter open(InetAddress address, limiter connection){
+        if (!this.limited()){
+            return new limiter(null, null, null);
+        }
+        clientShare share = null;
+        if (address != null){
+            share = this.clients.compute(address, (client, existing) -> (existing == null) ? new clientShare() : existing.join());
+        }
+        return new limiter(address, share, (connection == null) ? new tokenBucket(() -> this.connectionRate) : connection.connectionBucket());
+    }
+
+    /**
+     * Register the limits as the MBean pa1:type=bandwidth
+     */
+    void registerMBean(){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("pa1:type=bandwidth"));
+        } catch (Exception e) {
+            System.err.println("server: error registering the bandwidth limits with JMX (" + e + ")");
+        }
+    }
+
+    //-------------------------------------------------- MBean Attributes --------------------------------------------------
+
+    @Override
+    public long getServerRate(){
+        return this.serverRate;
+    }
+
+    @Override
+    public void setServerRate(long rate){
+        this.serverRate = Math.max(0, rate);
+    }
+
+    @Override
+    public long getClientRate(){
+        return this.clientRate;
+    }
+
+    @Override
+    public void setClientRate(long rate){
+        this.clientRate = Math.max(0, rate);
+    }
+
+    @Override
+    public long getConnectionRate(){
+        return this.connectionRate;
+    }
+
+    @Override
+    public void setConnectionRate(long rate){
+        this.connectionRate = Math.max(0, rate);
+    }
+
+    @Override
+    public int getClients(){
+        return this.clients.size();
+    }
+
+    //-------------------------------------------------- Token Bucket --------------------------------------------------
+    private static class tokenBucket{
+
+        private LongSupplier rate; // KB per second, read again every time so changes apply straight away
+        private ReentrantLock lock = new ReentrantLock(true); // fair, waiting transfers get their chunks in turn
+        private double tokens = CHUNK; // bytes that can pass without waiting
+        private long refilledAt = System.nanoTime();
+
+        tokenBucket(LongSupplier rate){
+            this.rate = rate;
+        }
+
+        /**
+         * Wait until some bytes may pass
+         * the transfer holds the lock while it waits, the others queue behind it in order
+         * @param bytes number of bytes, at most CHUNK
+         */
+        void take(long bytes) throws InterruptedIOException{
+            if (this.rate.getAsLong() <= 0){
+                return;
+            }
+            this.lock.lock();
+            try {
+                while (true){
+                    long bytesPerSecond = this.rate.getAsLong() * 1024;
+                    long now = System.nanoTime();
+                    if (bytesPerSecond <= 0){
+                        return; // the limit was removed
+                    }
+                    double capacity = Math.max(bytesPerSecond / 10.0, CHUNK); // a tenth of a second of bursts, but at least a chunk
+                    this.tokens = Math.min(capacity, this.tokens + (now - this.refilledAt) * bytesPerSecond / 1e9);
+                    this.refilledAt = now;
+                    if (this.tokens >= bytes){
+                        this.tokens -= bytes;
+                        return;
+                    }
+                    long wait = (long) ((bytes - this.tokens) * 1e9 / bytesPerSecond);
+                    TimeUnit.NANOSECONDS.sleep(Math.min(wait, MAX_WAIT));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for bandwidth");
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A client's bucket and the number of its transfers that use it
+     */
+    private class clientShare{
+        private tokenBucket bucket = new tokenBucket(() -> clientRate);
+        private int transfers = 1; // only changed inside compute of the clients map
+
+        clientShare join(){
+            this.transfers++;
+            return this;
+        }
+    }
+
+    //-------------------------------------------------- Limiter --------------------------------------------------
+    class limiter implements Closeable{
+
+        private InetAddress address;
+        private clientShare share; // null if the client is not known or there are no limits
+        private tokenBucket connectionBucket;
+        private boolean closed = false;
+
+        private limiter(InetAddress address, clientShare share, tokenBucket connectionBucket){
+            this.address = address;
+            this.share = share;
+            this.connectionBucket = connectionBucket;
+        }
+
+        /**
+         * @return the bucket of this limiter's connection, for the streams of a session on it 
+         * (the session's own limiter moves no file bytes, if it was opened without limits it gets its bucket when the first stream needs it)
+         */
+        private synchronized tokenBucket connectionBucket(){
+            if (this.connectionBucket == null){
+                this.connectionBucket = new tokenBucket(() -> connectionRate);
+            }
+            return this.connectionBucket;
+        }
+
+        /**
+         * @return true if this transfer waits for tokens
+         */
+        boolean limited(){
+            return this.connectionBucket != null;
+        }
+
+        /**
+         * Wait until some bytes may pass
+         * @param bytes number of bytes the transfer wants to move
+         * @return number of bytes it may move now (all of them if it is not limited, otherwise at most CHUNK)
+         */
+        long take(long bytes) throws InterruptedIOException{
+            if (!this.limited()){
+                return bytes;
+            }
+            long granted = Math.min(bytes, CHUNK);
+            this.connectionBucket.take(granted);
+            if (this.share != null){
+                this.share.bucket.take(granted);
+            }
+            serverBucket.take(granted);
+            return granted;
+        }
+
+        /**
+         * @param inputStream stream of file bytes from the client
+         * @return the stream, limited if this transfer is limited
+         */
+        InputStream input(InputStream inputStream){
+            if (!this.limited()){
+                return inputStream;
+            }
+            return new FilterInputStream(inputStream){
+                @Override
+                public int read() throws IOException{
+                    int b = super.read();
+                    if (b >= 0){
+                        take(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException{
+                    int bytes = super.read(buffer, offset, Math.min(length, CHUNK));
+                    if (bytes > 0){
+                        take(bytes); // charged after reading, the client is slowed down by the socket buffers filling up
+                    }
+                    return bytes;
+                }
+            };
+        }
+
+        /**
+         * @param outputStream stream of file bytes to the client (it is never closed through the limiter)
+         * @return the stream, limited if this transfer is limited
+         */
+        OutputStream output(OutputStream outputStream){
+            if (!this.limited()){
+                return outputStream;
+            }
+            return new OutputStream(){
+                @Override
+                public void write(int b) throws IOException{
+                    take(1);
+                    outputStream.write(b);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException{
+                    while (length > 0){
+                        int bytes = (int) take(length);
+                        outputStream.write(buffer, offset, bytes);
+                        offset += bytes;
+                        length -= bytes;
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException{
+                    outputStream.flush();
+                }
+            };
+        }
+
+        /**
+         * @param socketChannel channel file bytes are read from
+         * @return the channel, limited if this transfer is limited (closing it does not close the socket)
+         */
+        ReadableByteChannel input(ReadableByteChannel socketChannel){
+            if (!this.limited()){
+                return socketChannel;
+            }
+            return new ReadableByteChannel(){
+                @Override
+                public int read(ByteBuffer buffer) throws IOException{
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + Math.min(buffer.remaining(), CHUNK));
+                    try {
+                        int bytes = socketChannel.read(buffer);
+                        if (bytes > 0){
+                            take(bytes);
+                        }
+                        return bytes;
+                    } finally {
+                        buffer.limit(limit);
+                    }
+                }
+
+                @Override
+                public boolean isOpen(){
+                    return socketChannel.isOpen();
+                }
+
+                @Override
+                public void close(){
+                }
+            };
+        }
+
+        /**
+         * @param socketChannel channel file bytes are written to
+         * @return the channel, limited if this transfer is limited (closing it does not close the socket)
+         */
+        WritableByteChannel output(WritableByteChannel socketChannel){
+            if (!this.limited()){
+                return socketChannel;
+            }
+            return new WritableByteChannel(){
+                @Override
+                public int write(ByteBuffer buffer) throws IOException{
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + (int) take(buffer.remaining()));
+                    try {
+                        return socketChannel.write(buffer);
+                    } finally {
+                        buffer.limit(limit);
+                    }
+                }
+
+                @Override
+                public boolean isOpen(){
+                    return socketChannel.isOpen();
+                }
+
+                @Override
+                public void close(){
+                }
+            };
+        }
+
+        /**
+         * Give up the transfer's share of its client's bucket
+         */
+        @Override
+        public void close(){
+            if (this.share == null || this.closed){
+                return;
+            }
+            this.closed = true;
+            clients.compute(this.address, (client, existing) -> (existing == null || --existing.transfers == 0) ? null : existing);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * The server's bandwidth limits as a JMX MBean (pa1:type=bandwidth), rates are in KB per second and 0 means no limit
+ */
+public interface bandwidthMBean{
+
+    long getServerRate();
+
+    void setServerRate(long rate);
+
+    long getClientRate();
+
+    void setClientRate(long rate);
+
+    long getConnectionRate();
+
+    void setConnectionRate(long rate);
+
+    /**
+     * @return number of client addresses that have limited transfers running
+     */
+    int getClients();
+}
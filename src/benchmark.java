@@ -0,0 +1,249 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+
+/**
+ * Measure how the server copes with many clients at once
+ * every simulated client connects at the same moment and downloads the same file,
+ * run it against each server mode (e.g. "pool" and "virtual") to compare them
+ * it can also time large uploads and downloads with and without memory mapping to compare the CPU they take per GB
+ */
+public class benchmark{
+
+    private static final int CLIENT_STACK_SIZE = 256 * 1024; // keep the stacks of thousands of client threads small
+
+    //-------------------------------------------------- Methods to Check Arguments --------------------------------------------------
+
+    /**
+     * Check that the command is valid and that the correct amount of arguments was provided
+     * @param args arguements from main
+     * @return true if the command is valid and the number of arguments is correct, otherwise return false
+     */
+    private static boolean checkCommand(String[] args) {
+
+        // check that a command was provided
+        if (args.length == 0){
+            System.err.println("benchmark: no command was given!");
+            return false;
+        }
+
+        // check that the command is supported and the correct number of arguments was provided
+        if (args[0].equals("downloads")){
+            if (args.length != 3){
+                System.err.println("benchmark: the \"" + args[0]  +"\" command takes exactly 2 arguments!");
+                return false;
+            }
+        }
+        else if (args[0].equals("transfers")){
+            if (args.length != 4){
+                System.err.println("benchmark: the \"" + args[0]  +"\" command takes exactly 3 arguments!");
+                return false;
+            }
+        }
+        else{
+            System.err.println("benchmark: command not supported!");
+            return false;
+        }
+        return true;
+    }
+
+    //-------------------------------------------------- Benchmark Methods & Variables --------------------------------------------------
+
+    private String host;
+    private int port;
+
+    private long[] timeToFirstByte; // nanoseconds from connecting until the server answered, per client
+    private long[] totalTime; // nanoseconds from connecting until the whole file was recieved, per client
+    private AtomicInteger failures = new AtomicInteger();
+    private AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * @param host server's computer name
+     * @param port server's port number
+     */
+    public benchmark(String host, int port){
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Download a file with many concurrent clients and print the latency and throughput they saw
+     * @param clients number of concurrent clients
+     * @param serverPath path to the server file
+     */
+    private void downloads(int clients, String serverPath) throws InterruptedException{
+        this.timeToFirstByte = new long[clients];
+        this.totalTime = new long[clients];
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[clients];
+
+        for (int i=0; i<clients; i++){
+            int id = i;
+            threads[i] = new Thread(null, () -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    this.download(id, serverPath);
+                } catch (IOException | InterruptedException e) {
+                    this.failures.incrementAndGet();
+                    this.timeToFirstByte[id] = -1;
+                    this.totalTime[id] = -1;
+                }
+            }, "benchmark client " + i, CLIENT_STACK_SIZE);
+            threads[i].start();
+        }
+
+        // release every client at the same moment
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads){
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("clients:            " + clients);
+        System.out.println("failed downloads:   " + this.failures.get());
+        System.out.println("wall time:          " + String.format("%.3f s", elapsed / 1e9));
+        System.out.println("throughput:         " + String.format("%.1f MB/s", this.bytesReceived.get() / 1e6 / (elapsed / 1e9)));
+        System.out.println("time to first byte: " + percentiles(this.timeToFirstByte));
+        System.out.println("download time:      " + percentiles(this.totalTime));
+    }
+
+    /**
+     * Download a file, throwing away the bytes
+     * @param id number of the simulated client
+     * @param serverPath path to the server file
+     */
+    private void download(int id, String serverPath) throws IOException{
+        long start = System.nanoTime();
+        try (Socket serverConnection = new Socket()){
+            serverConnection.connect(new InetSocketAddress(this.host, this.port));
+            DataInputStream inFromServer = new DataInputStream(new BufferedInputStream(serverConnection.getInputStream(), 64 * 1024));
+            DataOutputStream outToServer = new DataOutputStream(serverConnection.getOutputStream());
+
+            protocol.writeRequest(outToServer, protocol.DOWNLOAD, serverPath); // send command and path to the server
+            if (inFromServer.readUnsignedByte() == 0 || !inFromServer.readBoolean()){
+                throw new IOException("server path " + serverPath + " is invalid");
+            }
+            this.timeToFirstByte[id] = System.nanoTime() - start;
+
+            long fileSize = inFromServer.readLong();
+            outToServer.writeBoolean(false); // always download from the beginning
+
+            byte[] buffer = new byte[64 * 1024];
+            long bytesDownloaded = 0;
+            int bytes = 0;
+            while (bytesDownloaded != fileSize && (bytes = inFromServer.read(buffer)) > -1){
+                bytesDownloaded += bytes;
+            }
+            if (bytesDownloaded != fileSize){
+                throw new EOFException("server closed the connection");
+            }
+            this.bytesReceived.addAndGet(bytesDownloaded);
+        }
+        this.totalTime[id] = System.nanoTime() - start;
+    }
+
+    /**
+     * Upload and download a file with the client, first copying it through buffers and then through memory mappings,
+     * and print the wall time and the CPU time this process took per GB
+     * (the server's CPU time can be compared the same way with "time", starting it with PA1_MMAP_MB=0 and without)
+     * @param clientPath path to the client file, it should be at least as big as the mapping threshold
+     * @param serverPath path to the server file
+     * @param runs number of times each transfer is repeated
+     */
+    private void transfers(String clientPath, String serverPath, int runs){
+        File copy = new File(clientPath + ".benchmark");
+        long mappingThreshold = mappedFile.threshold;
+        double gigabytes = new File(clientPath).length() * (double) runs / 1e9;
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+        for (String mode : new String[] {"buffered", "mapped"}){
+            mappedFile.threshold = mode.equals("mapped") ? 1 : 0;
+            for (String command : new String[] {"upload", "download"}){
+                long cpu = os.getProcessCpuTime();
+                long start = System.nanoTime();
+                for (int i=0; i<runs; i++){
+                    client myClient = new client(this.host, this.port);
+                    myClient.quiet = true;
+                    String[] commandArgs = command.equals("upload") ? new String[] {"upload", clientPath, serverPath} : new String[] {"download", serverPath, copy.getPath()};
+                    if (!myClient.execute(commandArgs)){
+                        this.failures.incrementAndGet();
+                    }
+
+                    // start over every time so the whole file is transferred (the last upload is kept for the downloads)
+                    if (command.equals("download") ? i == runs - 1 : i < runs - 1){
+                        this.remove(serverPath);
+                    }
+                    copy.delete();
+                }
+                long elapsed = System.nanoTime() - start;
+                cpu = os.getProcessCpuTime() - cpu;
+                System.out.println(String.format("%-8s %-8s %7.3f s  %6.1f MB/s  %7.1f ms cpu/GB", mode, command,
+                    elapsed / 1e9, gigabytes * 1e3 / (elapsed / 1e9), cpu / 1e6 / gigabytes));
+            }
+        }
+        mappedFile.threshold = mappingThreshold;
+    }
+
+    /**
+     * Remove a file from the server
+     * @param serverPath path to the server file
+     */
+    private void remove(String serverPath){
+        client remover = new client(this.host, this.port);
+        remover.quiet = true;
+        remover.execute(new String[] {"rm", serverPath});
+    }
+
+    /**
+     * Summarise the latencies of the clients that succeeded
+     * @param latencies nanoseconds per client, -1 for failed clients
+     * @return p50 / p99 / max in milliseconds
+     */
+    private static String percentiles(long[] latencies){
+        long[] sorted = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        if (sorted.length == 0){
+            return "n/a";
+        }
+        return String.format("p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+            sorted[(int) (sorted.length * 0.50)] / 1e6,
+            sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1e6,
+            sorted[sorted.length - 1] / 1e6);
+    }
+
+    //-------------------------------------------------- Main Method --------------------------------------------------
+    public static void main(String[] args) throws InterruptedException {
+
+        // check that the command is valid and the correct number of arguments are provided
+        if (!checkCommand(args)){
+            System.exit(1);
+        }
+
+        // check that environment variable PA1_SERVER is set
+        if (System.getenv("PA1_SERVER") == null){
+            System.err.println("benchmark: need to export PA1_SERVER=<computername:portnumber>");
+            System.exit(1);
+        }
+
+        // obtain the server's host & port # from PA1_SERVER
+        String[] PA1_SERVER = System.getenv("PA1_SERVER").split(":");
+        benchmark myBenchmark = new benchmark(PA1_SERVER[0], Integer.parseInt(PA1_SERVER[1]));
+
+        if (args[0].equals("transfers")){
+            myBenchmark.transfers(args[1], args[2], Integer.parseInt(args[3]));
+        }
+        else{
+            String serverPath = (args[2].charAt(0) == '/') ? "." + args[2] : args[2]; // paths start at the server's root directory
+            myBenchmark.downloads(Integer.parseInt(args[1]), serverPath);
+        }
+        System.exit(myBenchmark.failures.get() == 0 ? 0 : 1);
+    }
+}
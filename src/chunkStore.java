@@ -0,0 +1,433 @@
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.io.*;
+
+/**
+ * Files uploaded with chunks (chunkupload), kept once no matter how many paths they were uploaded to
+ * every file is stored under objects/ by its name (chunker.name) and each path it was uploaded to is a hard link of it, so the paths stay
+ * plain files that every other command reads as before; the chunks of the stored files are indexed so an upload only needs the chunks
+ * that none of them has, and a stored file is removed once no path links to it anymore (rm, or an upload that replaced the path)
+ * the index file is a log of what was stored, linked, unlinked and removed; it is not flushed to the disk because the paths hold their
+ * bytes themselves: a store that lost the end of its log only forgets that some paths share their bytes, and it is rewritten when it opens
+ */
+public class chunkStore{
+
+    // records of the index file
+    private static final int OBJECT = 1; // name, size, number of chunks and the chunks of a stored file
+    private static final int LINK = 2; // path and the name of the stored file it links to
+    private static final int UNLINK = 3; // path that no longer links to a stored file
+    private static final int REMOVE = 4; // name of a stored file that was removed
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private File directory;
+    private File objects; // stored files, in directories by the first two characters of their name
+    private File temporary; // files being built
+    private Map<String, object> stored = new HashMap<>(); // stored files by name
+    private Map<chunker.chunk, location> chunks = new HashMap<>(); // where every known chunk is (the first of the stored files that have it)
+    private Map<String, object> links = new HashMap<>(); // stored file every linked path (pathLocks.key) links to
+    private DataOutputStream log;
+    private long records = 0; // records in the index file, it is rewritten once most of them are out of date
+    private long reusedBytes = 0; // bytes of uploads that did not have to be sent
+
+    /**
+     * A stored file
+     */
+    static class object{
+        final String name;
+        final long size;
+        final List<chunker.chunk> chunks;
+        private int references = 0; // paths that link to it and uploads that are using it
+
+        object(String name, long size, List<chunker.chunk> chunks){
+            this.name = name;
+            this.size = size;
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * Where the bytes of a chunk are
+     */
+    static class location{
+        final object object;
+        final long offset;
+        private location next; // the same chunk in another stored file
+
+        location(object object, long offset, location next){
+            this.object = object;
+            this.offset = offset;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Open the store, creating it if it does not exist
+     * paths that no longer link to their stored file are forgotten and stored files no path links to are removed
+     * @param directory directory of the store, it has to be on the same file system as the files for hard links
+     */
+    public chunkStore(File directory) throws IOException{
+        this.directory = directory;
+        this.objects = new File(directory, "objects");
+        this.temporary = new File(directory, "tmp");
+        if (!(this.objects.isDirectory() || this.objects.mkdirs()) || !(this.temporary.isDirectory() || this.temporary.mkdirs())){
+            throw new IOException("cannot create " + directory);
+        }
+        for (File file : this.temporary.listFiles()){
+            file.delete(); // left by uploads that did not complete
+        }
+
+        File index = new File(directory, "index");
+        if (index.isFile()){
+            this.replay(index);
+        }
+
+        // keep only what the file system agrees with
+        for (Iterator<Map.Entry<String, object>> link = this.links.entrySet().iterator(); link.hasNext(); ){
+            Map.Entry<String, object> entry = link.next();
+            if (entry.getValue() == null || !this.isLink(new File(entry.getKey()), entry.getValue())){
+                link.remove();
+            }
+            else{
+                entry.getValue().references++;
+            }
+        }
+        Set<String> kept = new HashSet<>();
+        for (Iterator<object> files = this.stored.values().iterator(); files.hasNext(); ){
+            object stored = files.next();
+            if (stored.references == 0){
+                this.file(stored).delete();
+                files.remove();
+            }
+            else{
+                kept.add(stored.name);
+                this.index(stored);
+            }
+        }
+        for (File prefix : this.objects.listFiles()){
+            File[] files = prefix.listFiles();
+            for (int i=0; files != null && i<files.length; i++){
+                if (!kept.contains(files[i].getName())){
+                    files[i].delete(); // stored while the end of the log was lost
+                }
+            }
+        }
+        this.compact();
+    }
+
+    //-------------------------------------------------- Uploads --------------------------------------------------
+
+    /**
+     * Find a stored file and keep it until release
+     * @param name name of the file (chunker.name)
+     * @return the stored file, null if there is none
+     */
+    synchronized object use(String name){
+        object stored = this.stored.get(name);
+        if (stored != null){
+            stored.references++;
+            this.reusedBytes += stored.size;
+        }
+        return stored;
+    }
+
+    /**
+     * Find a chunk and keep the stored file it is in until release
+     * @param chunk the chunk
+     * @return where the chunk is, null if no stored file has it
+     */
+    synchronized location locate(chunker.chunk chunk){
+        location location = this.chunks.get(chunk);
+        if (location != null){
+            location.object.references++;
+            this.reusedBytes += chunk.length;
+        }
+        return location;
+    }
+
+    /**
+     * Let go of a stored file that was kept by use, locate or add, it is removed if no path links to it
+     */
+    synchronized void release(object stored){
+        if (--stored.references > 0){
+            return;
+        }
+        this.stored.remove(stored.name);
+        for (chunker.chunk chunk : stored.chunks){
+            location first = this.chunks.get(chunk);
+            while (first != null && first.object == stored){
+                first = first.next;
+            }
+            for (location location = first; location != null; location = location.next){
+                while (location.next != null && location.next.object == stored){
+                    location.next = location.next.next;
+                }
+            }
+            if (first == null){
+                this.chunks.remove(chunk);
+            }
+            else{
+                this.chunks.put(chunk, first); // the other stored files that have the chunk
+            }
+        }
+        this.file(stored).delete();
+        try {
+            this.log.writeByte(REMOVE);
+            protocol.writeString(this.log, stored.name);
+            this.written();
+        } catch (IOException e) {
+            System.err.println("server: chunk store index error (" + e + ")");
+        }
+    }
+
+    /**
+     * @return a new file to build an upload in, on the same file system as the stored files
+     */
+    File temporaryFile() throws IOException{
+        return File.createTempFile("upload", ".part", this.temporary);
+    }
+
+    /**
+     * @return the bytes of a stored file
+     */
+    File file(object stored){
+        return new File(new File(this.objects, stored.name.substring(0, 2)), stored.name);
+    }
+
+    /**
+     * Store a file that was built and flushed to the disk, and keep it until release
+     * @param built the file, it is moved into the store
+     * @param name its name (chunker.name)
+     * @param chunks its chunks
+     * @return the stored file (one that was stored by another upload in the meantime if there is one)
+     */
+    synchronized object add(File built, String name, List<chunker.chunk> chunks) throws IOException{
+        object stored = this.stored.get(name);
+        if (stored != null){
+            built.delete();
+            stored.references++;
+            return stored;
+        }
+        long size = 0;
+        for (chunker.chunk chunk : chunks){
+            size += chunk.length;
+        }
+        stored = new object(name, size, chunks);
+        File file = this.file(stored);
+        file.getParentFile().mkdirs();
+        if (!built.renameTo(file)){
+            throw new IOException("cannot store " + name);
+        }
+        stored.references++;
+        this.stored.put(name, stored);
+        this.index(stored);
+        this.writeObject(this.log, stored);
+        this.written();
+        return stored;
+    }
+
+    /**
+     * Put a stored file in place as a path, as a hard link if the file system allows it and as a copy otherwise
+     * the stored file is released either way, a link keeps it for as long as the path links to it
+     * @param file the path
+     * @param stored the stored file, kept by use or add
+     * @param locks the server's path locks
+     */
+    void link(File file, object stored, pathLocks locks) throws IOException{
+        File linked = File.createTempFile("." + file.getName() + ".", ".link", file.getAbsoluteFile().getParentFile());
+        boolean hardLink = false;
+        try {
+            linked.delete();
+            try {
+                Files.createLink(linked.toPath(), this.file(stored).toPath());
+                hardLink = true;
+            } catch (IOException | UnsupportedOperationException | InvalidPathException e) {
+                try (FileChannel from = new FileInputStream(this.file(stored)).getChannel();
+                     FileChannel to = new FileOutputStream(linked).getChannel()){
+                    for (long copied = 0; copied < stored.size; ){
+                        copied += from.transferTo(copied, stored.size - copied, to);
+                    }
+                }
+            }
+            stagedFile.replace(linked, file, locks);
+        } catch (IOException e) {
+            linked.delete();
+            this.release(stored);
+            throw e;
+        }
+
+        synchronized (this){
+            if (!hardLink){
+                this.release(stored);
+                return;
+            }
+            String key = pathLocks.key(file);
+            object previous = this.links.put(key, stored);
+            this.log.writeByte(LINK);
+            protocol.writeString(this.log, key);
+            protocol.writeString(this.log, stored.name);
+            this.written();
+            if (previous != null){
+                this.release(previous); // the path linked to another stored file until now
+            }
+        }
+    }
+
+    /**
+     * A path was changed (e.g. removed or replaced by an upload), it lets go of the stored file it linked to
+     * @param file the path
+     */
+    synchronized void changed(File file){
+        if (this.links.isEmpty()){
+            return;
+        }
+        String key = pathLocks.key(file);
+        object linked = this.links.get(key);
+        if (linked == null || this.isLink(file, linked)){
+            return;
+        }
+        this.links.remove(key);
+        try {
+            this.log.writeByte(UNLINK);
+            protocol.writeString(this.log, key);
+            this.written();
+        } catch (IOException e) {
+            System.err.println("server: chunk store index error (" + e + ")");
+        }
+        this.release(linked);
+    }
+
+    /**
+     * @return what the store holds, to be printed
+     */
+    synchronized String stats(){
+        long bytes = 0;
+        for (object stored : this.stored.values()){
+            bytes += stored.size;
+        }
+        return this.stored.size() + " files (" + bytes + " bytes) for " + this.links.size() + " paths, " + this.chunks.size() + " chunks, "
+            + this.reusedBytes + " bytes of uploads reused";
+    }
+
+    //-------------------------------------------------- Index --------------------------------------------------
+
+    /**
+     * Add the chunks of a stored file to the chunks that can be found
+     */
+    private void index(object stored){
+        long offset = 0;
+        for (chunker.chunk chunk : stored.chunks){
+            location first = this.chunks.get(chunk);
+            if (first == null){
+                this.chunks.put(chunk, new location(stored, offset, null));
+            }
+            else if (first.object != stored){ // (a chunk that repeats in the file is found at its first appearance)
+                first.next = new location(stored, offset, first.next);
+            }
+            offset += chunk.length;
+        }
+    }
+
+    /**
+     * @return true if a path is a hard link of a stored file
+     */
+    private boolean isLink(File file, object stored){
+        try {
+            return Files.isSameFile(file.toPath(), this.file(stored).toPath());
+        } catch (IOException | InvalidPathException e) {
+            return false; // e.g. the path was removed
+        }
+    }
+
+    /**
+     * Read the records of the index file, a record that was cut off ends it
+     */
+    private void replay(File index) throws IOException{
+        try (DataInputStream records = new DataInputStream(new BufferedInputStream(new FileInputStream(index), IO_BUFFER_SIZE))){
+            while (true){
+                int record = records.read();
+                if (record == OBJECT){
+                    String name = protocol.readString(records);
+                    long size = records.readLong();
+                    int count = records.readInt();
+                    List<chunker.chunk> chunks = new ArrayList<>(Math.min(count, 4096));
+                    for (int i=0; i<count; i++){
+                        chunks.add(new chunker.chunk(records.readLong(), records.readLong(), records.readInt()));
+                    }
+                    this.stored.put(name, new object(name, size, chunks));
+                }
+                else if (record == LINK){
+                    String path = protocol.readString(records);
+                    this.links.put(path, this.stored.get(protocol.readString(records)));
+                }
+                else if (record == UNLINK){
+                    this.links.remove(protocol.readString(records));
+                }
+                else if (record == REMOVE){
+                    this.stored.remove(protocol.readString(records));
+                }
+                else{
+                    break; // the end of the file
+                }
+            }
+        } catch (EOFException e) {
+            // the last record was cut off
+        }
+    }
+
+    /**
+     * Count a record that was written, and rewrite the index file once most of its records are out of date
+     */
+    private void written() throws IOException{
+        this.log.flush();
+        if (++this.records > 2 * (this.stored.size() + this.links.size()) + 1024){
+            this.compact();
+        }
+    }
+
+    /**
+     * Rewrite the index file with only what the store holds now
+     */
+    private void compact() throws IOException{
+        if (this.log != null){
+            this.log.close();
+        }
+        File index = new File(this.directory, "index");
+        File rewritten = new File(this.directory, "index.new");
+        try (DataOutputStream records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rewritten), IO_BUFFER_SIZE))){
+            for (object stored : this.stored.values()){
+                this.writeObject(records, stored);
+            }
+            for (Map.Entry<String, object> link : this.links.entrySet()){
+                records.writeByte(LINK);
+                protocol.writeString(records, link.getKey());
+                protocol.writeString(records, link.getValue().name);
+            }
+        }
+        if (!rewritten.renameTo(index)){
+            throw new IOException("cannot replace " + index);
+        }
+        this.records = this.stored.size() + this.links.size();
+        this.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index, true), IO_BUFFER_SIZE));
+    }
+
+    private void writeObject(DataOutputStream records, object stored) throws IOException{
+        records.writeByte(OBJECT);
+        protocol.writeString(records, stored.name);
+        records.writeLong(stored.size);
+        records.writeInt(stored.chunks.size());
+        for (chunker.chunk chunk : stored.chunks){
+            records.writeLong(chunk.high);
+            records.writeLong(chunk.low);
+            records.writeInt(chunk.length);
+        }
+    }
+}
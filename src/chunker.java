@@ -0,0 +1,212 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.io.*;
+
+/**
+ * Content-defined chunks of a file for deduplicated uploads
+ * a gear hash rolls over the bytes and a chunk ends where the top bits of the hash are all zero, so a change to the file only moves
+ * the chunk boundaries next to it and the rest of the file splits into the same chunks as before (in the style of FastCDC: the
+ * condition is harder before AVERAGE_CHUNK_SIZE and easier after it, which keeps chunk sizes close to the average);
+ * a chunk is named by the first 16 bytes of its SHA-256 and a whole file by the SHA-256 of the names and sizes of its chunks
+ */
+public class chunker{
+
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+    static final int AVERAGE_CHUNK_SIZE = 256 * 1024;
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    static final int MAX_CHUNKS = 16 * 1024 * 1024; // most chunks of a file the server will accept
+    private static final long HARD_MASK = -1L << (64 - 20); // bits that have to be zero to end a chunk before the average size
+    private static final long EASY_MASK = -1L << (64 - 16); // bits that have to be zero to end a chunk after the average size
+    private static final long[] GEAR = gear(); // a random number for every byte value, the same on every client and server
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * A chunk of a file, chunks with the same name and size have the same bytes
+     */
+    static final class chunk{
+        final long high; // first 8 bytes of the SHA-256 of the chunk
+        final long low; // next 8 bytes
+        final int length;
+
+        chunk(long high, long low, int length){
+            this.high = high;
+            this.low = low;
+            this.length = length;
+        }
+
+        /**
+         * @param digest SHA-256 of the bytes of the chunk
+         * @param length size of the chunk
+         */
+        chunk(byte[] digest, int length){
+            this(toLong(digest, 0), toLong(digest, 8), length);
+        }
+
+        @Override
+        public boolean equals(Object other){
+            if (!(other instanceof chunk)){
+                return false;
+            }
+            chunk that = (chunk) other;
+            return this.high == that.high && this.low == that.low && this.length == that.length;
+        }
+
+        @Override
+        public int hashCode(){
+            return (int) (this.high ^ (this.high >>> 32)); // the bytes of a digest are already spread evenly
+        }
+    }
+
+    /**
+     * Client: split a file into chunks
+     * @param fileInputStream the file, read to its end
+     * @return the chunks in the order they appear in the file
+     */
+    static List<chunk> split(InputStream fileInputStream) throws IOException{
+        List<chunk> chunks = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        long hash = 0;
+        int length = 0; // bytes of the chunk so far
+        int bytes;
+
+        while ((bytes = fileInputStream.read(buffer)) > -1){
+            int start = 0; // first byte of the buffer that belongs to the chunk
+            for (int i=0; i<bytes; i++){
+                if (length < MIN_CHUNK_SIZE){ // no chunk ends this early, skip to where one can
+                    int skipped = Math.min(MIN_CHUNK_SIZE - length, bytes - i);
+                    length += skipped;
+                    i += skipped - 1;
+                    continue;
+                }
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                length++;
+                if ((hash & ((length < AVERAGE_CHUNK_SIZE) ? HARD_MASK : EASY_MASK)) == 0 || length == MAX_CHUNK_SIZE){
+                    digest.update(buffer, start, i + 1 - start);
+                    chunks.add(new chunk(digest.digest(), length));
+                    start = i + 1;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(buffer, start, bytes - start);
+        }
+        if (length > 0){
+            chunks.add(new chunk(digest.digest(), length));
+        }
+        return chunks;
+    }
+
+    /**
+     * @param chunks the chunks of a file
+     * @return the name of the file, the SHA-256 of the names and sizes of its chunks as hex
+     */
+    static String name(List<chunk> chunks){
+        MessageDigest digest = newDigest();
+        byte[] entry = new byte[20];
+        for (chunk chunk : chunks){
+            for (int i=0; i<8; i++){
+                entry[i] = (byte) (chunk.high >>> (56 - 8 * i));
+                entry[8 + i] = (byte) (chunk.low >>> (56 - 8 * i));
+            }
+            for (int i=0; i<4; i++){
+                entry[16 + i] = (byte) (chunk.length >>> (24 - 8 * i));
+            }
+            digest.update(entry);
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()){
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Server: check that bytes that were received are the chunk the client said they are
+     * @return true if the bytes have the chunk's name
+     */
+    static boolean matches(chunk chunk, byte[] bytes, int length){
+        MessageDigest digest = newDigest();
+        digest.update(bytes, 0, length);
+        return chunk.equals(new chunk(digest.digest(), length));
+    }
+
+    /**
+     * Client: send the size of a file and its chunks
+     * @param outToServer the stream to the server
+     * @param fileSize size of the file
+     * @param chunks its chunks
+     */
+    static void writeChunks(DataOutputStream outToServer, long fileSize, List<chunk> chunks) throws IOException{
+        DataOutputStream list = new DataOutputStream(new BufferedOutputStream(outToServer, 64 * 1024));
+        list.writeLong(fileSize);
+        list.writeInt(chunks.size());
+        for (chunk chunk : chunks){
+            list.writeLong(chunk.high);
+            list.writeLong(chunk.low);
+            list.writeInt(chunk.length);
+        }
+        list.flush();
+    }
+
+    /**
+     * Server: read the size of a file and its chunks
+     * @param inFromClient the stream from the client
+     * @return the chunks
+     */
+    static List<chunk> readChunks(DataInputStream inFromClient) throws IOException{
+        long fileSize = inFromClient.readLong();
+        int count = inFromClient.readInt();
+        if (count < 0 || count > MAX_CHUNKS){
+            throw new IOException("file of " + count + " chunks is too large");
+        }
+        List<chunk> chunks = new ArrayList<>(Math.min(count, 4096)); // the list grows with what actually arrives
+        long total = 0;
+        for (int i=0; i<count; i++){
+            chunk chunk = new chunk(inFromClient.readLong(), inFromClient.readLong(), inFromClient.readInt());
+            if (chunk.length <= 0 || chunk.length > MAX_CHUNK_SIZE){
+                throw new IOException("chunk of " + chunk.length + " bytes");
+            }
+            total += chunk.length;
+            chunks.add(chunk);
+        }
+        if (total != fileSize){
+            throw new IOException("chunks of " + total + " bytes do not make a file of " + fileSize + " bytes");
+        }
+        return chunks;
+    }
+
+    private static long toLong(byte[] bytes, int offset){
+        long value = 0;
+        for (int i=0; i<8; i++){
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return the numbers of the gear hash, from SplitMix64 with a fixed seed since chunks are only found again if everyone splits the same way
+     */
+    private static long[] gear(){
+        long[] gear = new long[256];
+        long state = 0x5EEDC0DEL;
+        for (int i=0; i<gear.length; i++){
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[i] = z ^ (z >>> 31);
+        }
+        return gear;
+    }
+
+    private static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Java runtime has SHA-256
+        }
+    }
+}
@@ -1,4 +1,25 @@
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 
 public class client{
@@ -20,9 +41,9 @@ public class client{
         }
 
         // check that the command is supported and the correct number of arguments was provided 
-        if (args[0].equals("shutdown")){
+        if (args[0].equals("shutdown") || args[0].equals("session")){
             if (args.length > 1){
-                System.err.println("client: the \"shutdown\" command does not take any arguments!");
+                System.err.println("client: the \"" + args[0] + "\" command does not take any arguments!");
                 return false;
             }
         }
@@ -32,15 +53,57 @@ public class client{
                 return false;
             }
         }
-        else if (args[0].equals("mkdir") || args[0].equals("rmdir") || args[0].equals("rm")){
+        else if (args[0].equals("batch")){ 
+            if (args.length < 2 || args.length > 4){
+                System.err.println("client: the \"batch\" command takes 1 to 3 arguments!");
+                return false;
+            }
+            if ((args.length > 2 && !checkNumber(args[0], "parallelism", args[2], 1, Integer.MAX_VALUE)) || (args.length > 3 && !checkNumber(args[0], "number of connections", args[3], 1, Integer.MAX_VALUE))){
+                return false;
+            }
+        }
+        else if (args[0].equals("ls")){ 
+            if (args.length != 1 && args.length != 2 && args.length != 4){
+                System.err.println("client: the \"ls\" command takes 0, 1 or 3 arguments!");
+                return false;
+            }
+            if (args.length == 4 && (!checkNumber(args[0], "cursor", args[2], 0, Long.MAX_VALUE) || !checkNumber(args[0], "number of entries", args[3], 0, Integer.MAX_VALUE))){
+                return false;
+            }
+        }
+        else if (args[0].equals("mkdir") || args[0].equals("rmdir") || args[0].equals("rm") || args[0].equals("stat")){
             if (args.length != 2){
                 System.err.println("client: the \"" + args[0]  +"\" command takes exactly 1 argument!");
                 return false;
             }
         }
-        else if (args[0].equals("upload") || args[0].equals("download")){
+        else if (args[0].equals("find")){
             if (args.length != 3){
-                System.err.println("client: the \"" + args[0] + "\" command takes exactly 2 argument!");
+                System.err.println("client: the \"find\" command takes exactly 2 arguments!");
+                return false;
+            }
+        }
+        else if (args[0].equals("sync")){
+            if (args.length != 3){
+                System.err.println("client: the \"sync\" command takes exactly 2 arguments!");
+                return false;
+            }
+        }
+        else if ((args[0].equals("upload") || args[0].equals("download")) && args.length > 1 && args[1].equals("-r")){
+            if (args.length != 4 && args.length != 5){
+                System.err.println("client: the \"" + args[0] + " -r\" command takes 2 or 3 arguments!");
+                return false;
+            }
+            if (args.length == 5 && !checkNumber(args[0] + " -r", "parallelism", args[4], 1, Integer.MAX_VALUE)){
+                return false;
+            }
+        }
+        else if (args[0].equals("upload") || args[0].equals("download")){
+            if (args.length != 3 && args.length != 4){
+                System.err.println("client: the \"" + args[0] + "\" command takes 2 or 3 arguments!");
+                return false;
+            }
+            if (args.length == 4 && !checkNumber(args[0], "number of connections", args[3], 1, Integer.MAX_VALUE)){
                 return false;
             }
         }
@@ -52,6 +115,28 @@ public class client{
         return true;
     }
 
+    /**
+     * Check that a numeric argument is a whole number in range, so execute can parse it 
+     * @param command the command the argument belongs to 
+     * @param name what the argument is 
+     * @param argument the argument 
+     * @param min smallest value allowed 
+     * @param max largest value allowed 
+     * @return true if the argument is valid, otherwise return false
+     */
+    private static boolean checkNumber(String command, String name, String argument, long min, long max) {
+        try {
+            long value = Long.parseLong(argument);
+            if (value >= min && value <= max){
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // reported below like a number that is out of range
+        }
+        System.err.println("client: the " + name + " of the \"" + command + "\" command must be a whole number from " + min + " to " + max + "!");
+        return false;
+    }
+
     /**
      * Alter paths that start at the root directory (/) to start from the current working directory (./) instead
      * @param path path to be altered 
@@ -65,22 +150,26 @@ public class client{
     }
     //-------------------------------------------------- Client Methods & Variables --------------------------------------------------
 
-    /**
-    * Read from a DataInputStream until a newline character
-    * @param dataInputStream the DataInputStream to read from
-    * @return string of all characters up to a newline 
-    */
-    private String readLine(DataInputStream dataInputStream) throws IOException{
-        String line = "";
-        char nextChar = dataInputStream.readChar();
-        while (nextChar != '\n'){
-            line += nextChar;
-            nextChar = dataInputStream.readChar();
-        }
-        return line;
-    }
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024; // size of the buffer used for streamed uploads 
+    private static final long WINDOW_SIZE = 4 * 1024 * 1024; // number of bytes that may be sent before they are acknowledged 
+    private static final long MIN_RANGE_SIZE = 8 * 1024 * 1024; // smallest byte range of a parallel transfer that gets its own connection
+
+    private static final int MAX_PIPELINED = 64; // most commands of a session that wait for their replies at once
+    private static final int DEFAULT_BATCH_PARALLELISM = 8; // commands of a batch that run at once unless told otherwise
+    private static final int DEFAULT_BATCH_CONNECTIONS = 4; // connections a batch shares its commands over unless told otherwise
+
+    private static int preferredCodec = protocol.CODEC_RAW; // codec asked for in verified transfers (PA1_COMPRESSION)
+    private static boolean deduplicate = false; // upload files as chunks and send only those the server does not have (PA1_DEDUP)
 
+    private String host; // kept so parallel transfers can open more connections
+    private int port;
     private Socket serverConnection; 
+    private int version; // version of the binary protocol the server speaks
+    private session mySession; // session the command runs on, null if the client has its own connection
+    private session.stream myStream; // stream of the session the command runs on
+    boolean quiet = false; // whether messages about the progress of the command are printed (the benchmark turns them off too)
+    long bytesTransferred = 0; // bytes of file content the command sent or recieved
+    private long rtt = 0; // nanoseconds from sending the request to reading the server's protocol version, 0 inside a session
     private DataInputStream inFromServer;
     private DataOutputStream outToServer; 
 
@@ -90,8 +179,12 @@ public class client{
      * @param port server's port number 
      */
     public client(String host, int port) {
+        this.host = host;
+        this.port = port;
         try{
-            this.serverConnection = new Socket(host, port);
+            this.serverConnection = SocketChannel.open().socket(); // channel backed so downloads can use FileChannel.transferFrom
+            tuning.configure(this.serverConnection); // before connecting, so larger windows can be agreed on
+            this.serverConnection.connect(new InetSocketAddress(host, port));
             this.inFromServer = new DataInputStream(this.serverConnection.getInputStream());
             this.outToServer = new DataOutputStream(this.serverConnection.getOutputStream());
             // System.out.println("client: connected to the server");
@@ -102,10 +195,25 @@ public class client{
     }
 
     /**
-     * Close the client's socket connections 
+     * Setup a client that runs its command on a stream of a session instead of its own connection
+     * @param mySession the session the stream is opened on 
      */
-    private void shutdownClient() {
+    public client(session mySession) {
+        this.mySession = mySession;
+        this.version = mySession.version;
+    }
+
+    /**
+     * Close the client's socket connections (or its session stream)
+     */
+    void shutdownClient() {
         try {
+            if (this.mySession != null){
+                if (this.myStream != null){
+                    this.myStream.close();
+                }
+                return;
+            }
             this.serverConnection.close();
         } catch (IOException e) {
             System.err.println("client: error shutting down client (" + e + ")");
@@ -113,6 +221,54 @@ public class client{
         }
     }
 
+    /**
+     * Print a message about a command unless the client is quiet (batches print one result per command instead)
+     * @param message the message
+     */
+    private void print(String message) {
+        if (!this.quiet){
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Send a command and the path it works on to the server in the binary format 
+     * @param opcode the command (one of the protocol opcodes)
+     * @param path server's file path ("" if the command does not take one)
+     */
+    private void sendRequest(int opcode, String path) throws IOException {
+        // inside a session the request opens a stream, the protocol version was agreed when the session started 
+        if (this.mySession != null){
+            this.myStream = this.mySession.open(opcode, path);
+            this.inFromServer = this.myStream.in;
+            this.outToServer = this.myStream.out;
+            return;
+        }
+
+        long sentAt = System.nanoTime();
+        protocol.writeRequest(this.outToServer, opcode, path);
+
+        // server will reply with the protocol version it speaks 
+        this.version = this.inFromServer.readUnsignedByte();
+        this.rtt = System.nanoTime() - sentAt;
+        if (this.version == 0){
+            throw new IOException("server does not speak protocol version " + protocol.VERSION);
+        }
+    }
+
+    /**
+     * Read the codecs the server offers for a transfer and tell it which one will be used
+     * @return the codec, raw if the server does not offer the one asked for (servers from before version 2 offer none)
+     */
+    private int chooseCodec() throws IOException {
+        if (this.version < 2){
+            return protocol.CODEC_RAW;
+        }
+        int codec = protocol.chooseCodec(this.inFromServer.readUnsignedByte(), preferredCodec);
+        this.outToServer.writeByte(codec);
+        return codec;
+    }
+
     /**
      * Ask the server to shutdown
      * @return true if successful, false otherwise 
@@ -120,7 +276,7 @@ public class client{
     private boolean shutdownServer() {
         Boolean OK = false;
         try {
-            this.outToServer.writeChars("shutdown\n"); // send command to the server 
+            this.sendRequest(protocol.SHUTDOWN, ""); // send command to the server 
             
             // server will reply with whether it successfully executed the command
             OK = this.inFromServer.readBoolean();
@@ -145,18 +301,18 @@ public class client{
         Boolean OK = false; 
 
         try {
-            this.outToServer.writeChars("dir\n"); // send command to server 
-            this.outToServer.writeChars(path + "\n"); // send path to the server
+            this.sendRequest(protocol.DIR, path); // send command and path to the server
 
             // server will reply with whether it successfully executed the command (file path is valid)
             OK = this.inFromServer.readBoolean(); 
             if (OK){
-                int numFiles = this.inFromServer.readInt(); 
+                DataInputStream listing = new DataInputStream(new BufferedInputStream(this.inFromServer, STREAM_BUFFER_SIZE)); // the listing is the last thing the server sends 
+                int numFiles = listing.readInt(); 
                 if (numFiles == 0){
                     System.out.println("<Empty Directory>");
                 }
                 for (int i=0; i<numFiles; i++){
-                    System.out.println(readLine(inFromServer));
+                    System.out.println(protocol.readString(listing));
                 }
             }
             else{
@@ -168,6 +324,131 @@ public class client{
         return OK;
     }
 
+    /**
+     * Asks server for the entries of a directory with their type, size and last modified time
+     * the entries are printed as soon as each frame arrives
+     * @param path server's filepath to the directory 
+     * @param cursor number of entries to skip (the cursor printed after an earlier page)
+     * @param limit most entries to list, 0 to list all of them
+     * @return true if successful, false otherwise
+     */
+    private boolean ls(String path, long cursor, int limit) {
+        Boolean OK = false; 
+
+        try {
+            this.sendRequest(protocol.LIST, path); // send command and path to the server
+            this.outToServer.writeLong(cursor);
+            this.outToServer.writeInt(limit);
+
+            // server will reply with whether it successfully executed the command (file path is valid)
+            OK = this.inFromServer.readBoolean(); 
+            if (OK){
+                DataInputStream listing = new DataInputStream(new BufferedInputStream(this.inFromServer, STREAM_BUFFER_SIZE)); // the listing is the last thing the server sends 
+                long entries = 0;
+
+                // print each frame of entries, an empty frame ends the page
+                for (int frameSize = listing.readInt(); frameSize > 0; frameSize = listing.readInt()){
+                    for (int i=0; i<frameSize; i++){
+                        int type = listing.readUnsignedByte();
+                        long size = listing.readLong();
+                        long lastModified = listing.readLong();
+                        printEntry(type, size, lastModified, protocol.readString(listing));
+                    }
+                    entries += frameSize;
+                }
+
+                long nextCursor = listing.readLong();
+                if (entries == 0 && cursor == 0){
+                    System.out.println("<Empty Directory>");
+                }
+                if (nextCursor >= 0){
+                    System.out.println("ls: more entries follow, continue with cursor " + nextCursor);
+                }
+            }
+            else{
+                System.err.println("ls: no such directory");
+            }
+        } catch (IOException e) {
+            System.err.println("client: ls error (" + e + ")");
+        }
+        return OK;
+    }
+
+    /**
+     * Print an entry of a listing: type, size, last modified time and name
+     */
+    private static void printEntry(int type, long size, long lastModified, String name) {
+        char typeName = (type == protocol.ENTRY_DIRECTORY) ? 'd' : ((type == protocol.ENTRY_FILE) ? '-' : '?');
+        System.out.println(typeName + " " + String.format("%14d", size) + " " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(lastModified)) + " " + name);
+    }
+
+    /**
+     * Asks server for the type, size and last modified time of a path
+     * @param path server's file path
+     * @return true if successful, false otherwise
+     */
+    private boolean stat(String path) {
+        Boolean OK = false; 
+
+        try {
+            this.sendRequest(protocol.STAT, path); // send command and path to the server
+
+            // server will reply with whether the path exists
+            OK = this.inFromServer.readBoolean(); 
+            if (OK){
+                int type = this.inFromServer.readUnsignedByte();
+                long size = this.inFromServer.readLong();
+                printEntry(type, size, this.inFromServer.readLong(), path);
+            }
+            else{
+                System.err.println("stat: no such file or directory");
+            }
+        } catch (IOException e) {
+            System.err.println("client: stat error (" + e + ")");
+        }
+        return OK;
+    }
+
+    /**
+     * Asks server for the entries under a directory whose name matches a pattern, printed as soon as each frame arrives
+     * @param path server's filepath to the directory 
+     * @param pattern * matches any part of a name and ? one character, a pattern with a / is matched against the path inside the directory
+     * @return true if successful, false otherwise
+     */
+    private boolean find(String path, String pattern) {
+        Boolean OK = false; 
+
+        try {
+            this.sendRequest(protocol.FIND, path); // send command and path to the server
+            protocol.writeString(this.outToServer, pattern);
+
+            // server will reply with whether it successfully executed the command (file path is valid)
+            OK = this.inFromServer.readBoolean(); 
+            if (OK){
+                DataInputStream listing = new DataInputStream(new BufferedInputStream(this.inFromServer, STREAM_BUFFER_SIZE)); // the matches are the last thing the server sends 
+                long matches = 0;
+                for (int frameSize = listing.readInt(); frameSize > 0; frameSize = listing.readInt()){
+                    for (int i=0; i<frameSize; i++){
+                        int type = listing.readUnsignedByte();
+                        long size = listing.readLong();
+                        long lastModified = listing.readLong();
+                        printEntry(type, size, lastModified, protocol.readString(listing));
+                    }
+                    matches += frameSize;
+                }
+                if (matches == 0){
+                    System.out.println("<No Matches>");
+                }
+            }
+            else{
+                System.err.println("find: no such directory");
+            }
+        } catch (IOException e) {
+            System.err.println("client: find error (" + e + ")");
+        }
+        return OK;
+    }
+
     /**
      * Ask the server to make a directory
      * @param path server's filepath to the new directory
@@ -177,13 +458,12 @@ public class client{
         Boolean OK = false; 
 
         try {
-            this.outToServer.writeChars("mkdir\n"); // send command to server
-            this.outToServer.writeChars(path + "\n"); // send path to the server
+            this.sendRequest(protocol.MKDIR, path); // send command and path to the server
 
             // server will reply with whether it successfully executed the command (file path is valid)
             OK = this.inFromServer.readBoolean(); 
             if (OK){
-                System.out.println("mkdir: new directory created at " + path);
+                this.print("mkdir: new directory created at " + path);
             }
             else{
                 System.err.println("mkdir: " + path + " is an invalid path or directory already exists");
@@ -203,13 +483,12 @@ public class client{
         Boolean OK = false;
 
         try {
-            this.outToServer.writeChars("rmdir\n"); // send command to server
-            this.outToServer.writeChars(path + "\n"); // send path to the server
+            this.sendRequest(protocol.RMDIR, path); // send command and path to the server
 
             // server will reply with whether it successfully executed the command (file path is valid)
             OK = this.inFromServer.readBoolean(); 
             if (OK){
-                System.out.println("rmdir: " + path + " is removed");
+                this.print("rmdir: " + path + " is removed");
             }
             else{
                 System.err.println("rmdir: " + path + " is an invalid path, not a directory, or is not empty");
@@ -229,13 +508,12 @@ public class client{
         Boolean OK = false;
 
         try {
-            this.outToServer.writeChars("rm\n"); // send command to server
-            this.outToServer.writeChars(path + "\n"); // send path to the server
+            this.sendRequest(protocol.RM, path); // send command and path to the server
 
             // server will reply with whether it successfully executed the command (file path is valid)
             OK = this.inFromServer.readBoolean();
             if (OK){
-                System.out.println("rm: " + path + " is removed");
+                this.print("rm: " + path + " is removed");
             }
             else{
                 System.err.println("rm: " + path + " is an invalid path or not a file");
@@ -248,11 +526,17 @@ public class client{
 
     /**
      * Upload a file to the server 
+     * the file is streamed without waiting for each chunk to be confirmed, the server acknowledges the 
+     * total number of bytes it has written and at most WINDOW_SIZE bytes (more on links with a larger bandwidth-delay product) are allowed to be unacknowledged
+     * an interrupted upload resumes from the first block of the server's copy that does not match, and a digest of the whole file confirms the result
      * @param clientPath path to the client file 
      * @param serverPath path to the file server
      * @return true if successful, false otherwise
      */
-    private boolean upload(String clientPath, String serverPath) {
+    boolean upload(String clientPath, String serverPath) {
+        if (deduplicate){
+            return this.chunkUpload(clientPath, serverPath);
+        }
         Boolean OK = false;
 
         // check that the client's filepath is valid 
@@ -261,9 +545,9 @@ public class client{
             System.err.println("upload: client path " + clientPath + " is invalid or not a file");
         }
         else{
-            try {
-                this.outToServer.writeChars("upload\n"); // send command to the server 
-                this.outToServer.writeChars(serverPath + "\n"); // send server path to the server  
+            OutputStream fileBytes = null; // stream for the bytes of the file 
+            try (FileChannel fileChannel = new FileInputStream(clientFile).getChannel()){ // closed however the upload ends
+                this.sendRequest(protocol.VERIFIED_UPLOAD, serverPath); // send command and server path to the server
             
                 // server will confirm whether the server path is valid 
                 if (!this.inFromServer.readBoolean()){
@@ -271,49 +555,95 @@ public class client{
                     return OK;
                 }
 
-                outToServer.writeLong(clientFile.length()); // let the server know the size of the file 
-                long bytesUploaded = 0; // the number of bytes the server has recieved 
-                FileInputStream fileInputStream = new FileInputStream(clientFile); // IO Stream for reading in the file 
+                int codec = this.chooseCodec(); // server offers the codecs it has 
+                long fileSize = fileChannel.size();
+                outToServer.writeLong(fileSize); // let the server know the size of the file 
 
-                // server will confirm whether it wants to resume upload
-                if (this.inFromServer.readBoolean()){
-                    bytesUploaded = this.inFromServer.readLong(); // number of bytes of the file the server already has
-                    fileInputStream.skip(bytesUploaded); // skip the bytes the server already has
-                    System.out.print("upload: resuming upload");
+                // server will send checksums of the blocks it already has, resume from the first one that differs 
+                verifier fileVerifier = new verifier(fileChannel);
+                long bytesUploaded = fileVerifier.matchBlocks(verifier.readChecksums(this.inFromServer, fileSize)); // the number of bytes the server has acknowledged 
+                this.outToServer.writeLong(bytesUploaded);
+                if (bytesUploaded > 0){
+                    this.print("upload: resuming upload");
                 }
+                fileChannel.position(bytesUploaded);
+                InputStream fileInputStream = Channels.newInputStream(fileChannel); // IO Stream for reading in the file 
+                fileBytes = (codec == protocol.CODEC_DEFLATE) ? compression.output(this.outToServer) : this.outToServer;
 
+                long resumedFrom = bytesUploaded; 
+                long bytesSent = bytesUploaded; // the number of bytes that has been sent to the server 
                 int bytes = 0; // number of bytes that was read from the file 
-                byte[] buffer = new byte[1024]; // buffer to hold the bytes that was read
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE]; // buffer to hold the bytes that was read
+                mappedFile mapping = (codec == protocol.CODEC_RAW && mappedFile.worthMapping(fileSize)) ? new mappedFile(fileChannel, FileChannel.MapMode.READ_ONLY) : null; // large files are sent from a mapping
+                WritableByteChannel socketChannel = (this.mySession == null) ? this.serverConnection.getChannel() : Channels.newChannel(this.outToServer); // a session stream is not a socket
+                tuning.transfer transfer = new tuning.transfer(this.serverConnection, fileSize - bytesUploaded, this.rtt);
                 
-                bytes = fileInputStream.read(buffer); 
-                System.out.println("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(clientFile.length())); // print the progress
-                while (bytesUploaded != clientFile.length()){
-                    this.outToServer.write(buffer,0,bytes); 
-                    this.outToServer.flush();
-                    
-                    // server confirmation that the bytes were recieved 
-                    if (this.inFromServer.readBoolean()){
-                        bytesUploaded += bytes;
-                        System.out.println("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(clientFile.length())); // print the progress
-                        bytes = fileInputStream.read(buffer);
+                this.print("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(fileSize)); // print the progress
+                while (bytesSent != fileSize){
+                    // wait for the server to catch up if the window is full 
+                    while (bytesSent - bytesUploaded >= transfer.window(WINDOW_SIZE)){
+                        bytesUploaded = this.inFromServer.readLong();
+                        this.print("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(fileSize)); // print the progress
+                    }
+
+                    // collect any acknowledgements that have already arrived without blocking 
+                    while (this.inFromServer.available() >= Long.BYTES){
+                        bytesUploaded = this.inFromServer.readLong();
+                        this.print("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(fileSize)); // print the progress
+                    }
+
+                    if (mapping != null){
+                        long chunk = Math.min(transfer.chunk(), fileSize - bytesSent);
+                        mapping.send(bytesSent, chunk, socketChannel, fileVerifier);
+                        bytesSent += chunk;
+                        transfer.progress(chunk);
+                        continue;
+                    }
+                    bytes = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, fileSize - bytesSent));
+                    if (bytes < 0){
+                        throw new EOFException("file became shorter while uploading");
                     }
+                    fileBytes.write(buffer,0,bytes);
+                    fileVerifier.update(buffer, 0, bytes);
+                    bytesSent += bytes;
+                    transfer.progress(bytes);
+                    if (buffer.length < transfer.chunk()){
+                        buffer = new byte[transfer.chunk()]; // the transfer is fast enough for larger writes
+                    }
+                }
+                fileBytes.flush(); // send what the compressor is holding
+                this.outToServer.write(fileVerifier.finish()); // digest of the whole file so the server can confirm its copy
+                this.outToServer.flush();
+
+                // wait for the server to confirm that the whole file was written 
+                while (bytesUploaded != fileSize){
+                    bytesUploaded = this.inFromServer.readLong();
+                    this.print("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(fileSize)); // print the progress
                 }
+                this.bytesTransferred = bytesSent - resumedFrom;
 
-                fileInputStream.close();
+                // server will confirm whether its copy matches the digest 
+                OK = this.inFromServer.readBoolean();
+                if (!OK){
+                    System.err.println("upload: server's copy of " + serverPath + " does not match, it will be uploaded from the start next time");
+                }
             } catch (IOException e) {
                 System.err.println("client: upload error (" + e + ")");
-            }      
+            } finally {
+                compression.end(fileBytes); // frees the compressor, what it held was already sent
+            }
         }
         return OK;
     }
 
     /**
      * Download a file from the server 
+     * an interrupted download resumes from the first block of the client's copy that does not match, and a digest of the whole file confirms the result
      * @param clientPath path to the client file 
      * @param serverPath path to the server file 
      * @return true if successful, false otherwise
      */
-    private boolean download(String serverPath, String clientPath) {
+    boolean download(String serverPath, String clientPath) {
         Boolean OK = false;
 
         // check that the client's filepath is valid 
@@ -322,9 +652,9 @@ public class client{
             System.err.println("download: client path " + clientPath + " is invalid");
         }
         else{
+            InputStream fileBytes = null; // stream for the bytes of the file when they are compressed
             try {
-                this.outToServer.writeChars("download\n"); // send command to the server 
-                this.outToServer.writeChars(serverPath + "\n"); // send path to the server
+                this.sendRequest(protocol.VERIFIED_DOWNLOAD, serverPath); // send command and path to the server
 
                 // server will confirm whether the server path is valid 
                 if (!this.inFromServer.readBoolean()){
@@ -333,36 +663,716 @@ public class client{
                 }
 
                 long fileSize = this.inFromServer.readLong(); // get the file size from the server
-                long bytesDownloaded = 0; // number of bytes that has been written to the file so far
-                FileOutputStream fileOutputStream;
+                int codec = this.chooseCodec(); // server offers the codecs it has 
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(clientFile, "rw")){ // closed however the download ends
+                    FileChannel fileChannel = randomAccessFile.getChannel();
+
+                    // let the server check the blocks we already have, it resends from the first one that differs 
+                    verifier fileVerifier = new verifier(fileChannel);
+                    verifier.writeChecksums(this.outToServer, fileVerifier.checksumBlocks(Math.min(fileChannel.size(), fileSize)));
+                    long bytesDownloaded = this.inFromServer.readLong(); // number of bytes that has been written to the file so far
+                    fileVerifier.resumeAt(bytesDownloaded);
+                    if (bytesDownloaded > 0){
+                        this.print("download: resuming download");
+                    }
+                    fileChannel.truncate(bytesDownloaded); // overwrite the rest of the existing file 
+                    long resumedFrom = bytesDownloaded;
+                    tuning.transfer transfer = new tuning.transfer(this.serverConnection, fileSize - bytesDownloaded, this.rtt);
+                    this.print("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize));
+
+                    if (codec == protocol.CODEC_DEFLATE){ // the bytes have to pass through the client to be decompressed
+                        fileBytes = compression.input(this.inFromServer);
+                        byte[] buffer = new byte[compression.BLOCK_SIZE];
+                        while(bytesDownloaded != fileSize){
+                            int bytes = fileBytes.read(buffer, 0, (int) Math.min(buffer.length, fileSize - bytesDownloaded));
+                            if (bytes < 0){
+                                throw new EOFException("server closed the connection");
+                            }
+                            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, bytes);
+                            while (byteBuffer.hasRemaining()){
+                                bytesDownloaded += fileChannel.write(byteBuffer, bytesDownloaded);
+                            }
+                            fileVerifier.update(buffer, 0, bytes);
+                            this.print("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize)); 
+                        }
+                    }
+                    else if (mappedFile.worthMapping(fileSize)){ // large file, read from the socket straight into a mapping of the file at its final size
+                        randomAccessFile.setLength(fileSize);
+                        mappedFile mapping = new mappedFile(fileChannel, FileChannel.MapMode.READ_WRITE);
+                        ReadableByteChannel socketChannel = (this.mySession == null) ? this.serverConnection.getChannel() : Channels.newChannel(this.inFromServer); // a session stream is not a socket
+                        try {
+                            while(bytesDownloaded != fileSize){
+                                long bytes = mapping.receive(bytesDownloaded, Math.min(transfer.chunk(), fileSize - bytesDownloaded), socketChannel, fileVerifier);
+                                if (bytes == 0){
+                                    throw new EOFException("server closed the connection");
+                                }
+                                bytesDownloaded += bytes;
+                                transfer.progress(bytes);
+                                this.print("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize)); 
+                            }
+                        } finally {
+                            if (bytesDownloaded != fileSize){
+                                fileChannel.truncate(bytesDownloaded); // keep only what arrived so the next download resumes after it
+                            }
+                        }
+                    }
+                    else{
+                        // move the bytes from the socket into the file at the position they belong 
+                        ReadableByteChannel socketChannel = (this.mySession == null) ? this.serverConnection.getChannel() : Channels.newChannel(this.inFromServer); // a session stream is not a socket
+                        while(bytesDownloaded != fileSize){
+                            long bytes = fileChannel.transferFrom(socketChannel, bytesDownloaded, Math.min(transfer.chunk(), fileSize - bytesDownloaded));
+                            if (bytes == 0){
+                                throw new EOFException("server closed the connection");
+                            }
+                            bytesDownloaded += bytes;
+                            transfer.progress(bytes);
+                            this.print("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize)); 
+                        } 
 
-                // check if we need to resume download 
-                if (clientFile.exists() && clientFile.length() < fileSize){
-                    bytesDownloaded = clientFile.length(); // set bytes downloaded to the amount of bytes we already have
-                    this.outToServer.writeBoolean(true); // tell the server to resume upload 
-                    this.outToServer.writeLong(bytesDownloaded); // let the server know how many bytes the client already has
-                    fileOutputStream = new FileOutputStream(clientFile, true); // write to end of the existing file
-                    System.out.println("download: resuming download");
+                        // the bytes went straight into the file, read them back (from the page cache) for the digest 
+                        fileVerifier.updateFrom(resumedFrom, fileSize);
+                    }
+                    this.bytesTransferred = bytesDownloaded - resumedFrom;
+
+                    // compare the digests 
+                    byte[] expected = new byte[verifier.DIGEST_LENGTH];
+                    this.inFromServer.readFully(expected);
+                    OK = MessageDigest.isEqual(expected, fileVerifier.finish());
+                    if (!OK){
+                        fileChannel.truncate(0); // the copy is corrupt, the next download starts over
+                        System.err.println("download: " + clientPath + " does not match the server's copy, it will be downloaded from the start next time");
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("client: download error (" + e + ")");
+            } finally {
+                compression.end(fileBytes); // frees the decompressor
+            }
+        }
+        return OK;
+    }
+
+    /**
+     * Upload a file as content-defined chunks, sending only the chunks the server does not have (in any file it stored)
+     * the client sends the names and sizes of the chunks and the server answers with a bit for every chunk it needs
+     * @param clientPath path to the client file 
+     * @param serverPath path to the server file 
+     * @return true if successful, false otherwise
+     */
+    private boolean chunkUpload(String clientPath, String serverPath) {
+        Boolean OK = false;
+
+        // check that the client's filepath is valid 
+        File clientFile = new File(clientPath);
+        if (!clientFile.isFile()){
+            System.err.println("upload: client path " + clientPath + " is invalid or not a file");
+        }
+        else{
+            try (FileChannel fileChannel = new FileInputStream(clientFile).getChannel()){
+                List<chunker.chunk> chunks = chunker.split(Channels.newInputStream(fileChannel)); // before the request, so the server does not wait for it
+                long fileSize = 0;
+                for (chunker.chunk chunk : chunks){
+                    fileSize += chunk.length;
+                }
+
+                this.sendRequest(protocol.CHUNK_UPLOAD, serverPath); // send command and server path to the server
+                if (this.version < 5){
+                    System.err.println("upload: the server does not take chunk uploads, unset PA1_DEDUP");
+                    return OK;
+                }
+
+                // server will confirm whether the server path is valid 
+                if (!this.inFromServer.readBoolean()){
+                    System.err.println("upload: server path " + serverPath + " is invalid");
+                    return OK;
+                }
+                chunker.writeChunks(this.outToServer, fileSize, chunks);
+
+                // server will answer with the chunks it needs, they are sent straight from the page cache (neighbouring chunks in one go)
+                byte[] needed = new byte[(chunks.size() + 7) / 8];
+                this.inFromServer.readFully(needed);
+                WritableByteChannel socketChannel = (this.mySession == null) ? this.serverConnection.getChannel() : Channels.newChannel(this.outToServer); // a session stream is not a socket
+                long offset = 0;
+                long runStart = 0; // first byte of the chunks that are sent next
+                long runLength = 0;
+                long bytesSent = 0;
+                int chunksSent = 0;
+                for (int i=0; i<=chunks.size(); i++){
+                    if (i < chunks.size() && (needed[i / 8] & (1 << (i % 8))) != 0){
+                        runStart = (runLength == 0) ? offset : runStart;
+                        runLength += chunks.get(i).length;
+                        chunksSent++;
+                    }
+                    else if (runLength > 0){
+                        for (long end = runStart + runLength; runStart < end; ){
+                            long bytes = fileChannel.transferTo(runStart, end - runStart, socketChannel);
+                            if (bytes == 0 && runStart >= fileChannel.size()){
+                                throw new EOFException("file became shorter while uploading");
+                            }
+                            runStart += bytes;
+                        }
+                        bytesSent += runLength;
+                        runLength = 0;
+                    }
+                    offset += (i < chunks.size()) ? chunks.get(i).length : 0;
+                }
+                this.outToServer.flush();
+                this.bytesTransferred = bytesSent;
+
+                // server will confirm whether the chunks it was sent are the ones it asked for 
+                OK = this.inFromServer.readBoolean();
+                if (OK){
+                    this.print("upload: sent " + bytesSent + " of " + fileSize + " bytes (" + chunksSent + " of " + chunks.size() + " chunks), the server had the rest");
                 }
                 else{
-                    this.outToServer.writeBoolean(false);
-                    fileOutputStream = new FileOutputStream(clientFile); // overwrite the existing file
+                    System.err.println("upload: " + clientPath + " changed while it was uploaded, the server's copy was left as it was");
                 }
+            } catch (IOException e) {
+                System.err.println("client: upload error (" + e + ")");
+            }
+        }
+        return OK;
+    }
 
-                int bytes = 0;
-                byte[] buffer = new byte[1024]; // buffer to hold bytes from server
-                
-                System.out.println("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize));
-                while(bytesDownloaded != fileSize && (bytes = this.inFromServer.read(buffer)) > -1){
-                    fileOutputStream.write(buffer,0,bytes);
-                    bytesDownloaded += bytes;
-                    System.out.println("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize)); 
-                } 
-
-                fileOutputStream.close();
+    /**
+     * Upload only the parts of a file that differ from the server's copy 
+     * the server sends signatures of the blocks of its copy and only the bytes that are not in one of those blocks are sent
+     * @param clientPath path to the client file 
+     * @param serverPath path to the server file 
+     * @return true if successful, false otherwise
+     */
+    private boolean sync(String clientPath, String serverPath) {
+        Boolean OK = false;
+
+        // check that the client's filepath is valid 
+        File clientFile = new File(clientPath);
+        if (!clientFile.isFile()){
+            System.err.println("sync: client path " + clientPath + " is invalid or not a file");
+        }
+        else{
+            try (InputStream fileInputStream = new FileInputStream(clientFile)){
+                this.sendRequest(protocol.DELTA_UPLOAD, serverPath); // send command and server path to the server
+
+                // server will confirm whether the server path is valid 
+                if (!this.inFromServer.readBoolean()){
+                    System.err.println("sync: server path " + serverPath + " is invalid");
+                    return OK;
+                }
+                this.outToServer.writeLong(clientFile.length()); // let the server know the size of the file 
+
+                // server will send the signatures of its copy, answer with the instructions to rebuild the file 
+                delta fileDelta = new delta();
+                fileDelta.send(fileInputStream, this.inFromServer, this.outToServer);
+                this.bytesTransferred = fileDelta.literalBytes;
+
+                // server will confirm whether the rebuilt file matches 
+                OK = this.inFromServer.readBoolean();
+                if (OK){
+                    this.print("sync: sent " + fileDelta.literalBytes + " bytes, reused " + fileDelta.matchedBytes + " bytes of the server's copy");
+                }
+                else{
+                    System.err.println("sync: server could not rebuild " + serverPath + ", its copy was left as it was");
+                }
+            } catch (IOException e) {
+                System.err.println("client: sync error (" + e + ")");
+            }
+        }
+        return OK;
+    }
+
+    /**
+     * Execute a command 
+     * @param args the command and its arguments (already checked by checkCommand)
+     * @return true if successful, false otherwise
+     */
+    boolean execute(String[] args) {
+        boolean success = false;
+        switch(args[0]){
+            case "shutdown":
+                success = this.shutdownServer();
+                break;
+            case "dir":
+                success = (args.length == 1) ? this.dir(sanitizePath("/")) : this.dir(sanitizePath(args[1])); 
+                break;
+            case "ls":
+                if (args.length == 4){
+                    success = this.ls(sanitizePath(args[1]), Long.parseLong(args[2]), Integer.parseInt(args[3]));
+                }
+                else{
+                    success = (args.length == 1) ? this.ls(sanitizePath("/"), 0, 0) : this.ls(sanitizePath(args[1]), 0, 0);
+                }
+                break;
+            case "mkdir":
+                success = this.mkdir(sanitizePath(args[1]));
+                break;
+            case "rmdir":
+                success = this.rmdir(sanitizePath(args[1]));
+                break;
+            case "rm":
+                success = this.rm(sanitizePath(args[1]));
+                break;
+            case "stat":
+                success = this.stat(sanitizePath(args[1]));
+                break;
+            case "find":
+                success = this.find(sanitizePath(args[1]), args[2]);
+                break;
+            case "upload":
+                if (args[1].equals("-r")){
+                    success = this.transferTree(args);
+                }
+                else if (args.length == 4 && rangeCount(new File(sanitizePath(args[1])).length(), Integer.parseInt(args[3])) > 1){
+                    success = this.parallelUpload(sanitizePath(args[1]), sanitizePath(args[2]), Integer.parseInt(args[3]));
+                }
+                else{
+                    success = this.upload(sanitizePath(args[1]), sanitizePath(args[2]));
+                }
+                break;
+            case "sync":
+                success = this.sync(sanitizePath(args[1]), sanitizePath(args[2]));
+                break;
+            case "download":
+                if (args[1].equals("-r")){
+                    success = this.transferTree(args);
+                }
+                else if (args.length == 4 && Integer.parseInt(args[3]) > 1){
+                    success = this.parallelDownload(sanitizePath(args[1]), sanitizePath(args[2]), Integer.parseInt(args[3]));
+                }
+                else{
+                    success = this.download(sanitizePath(args[1]), sanitizePath(args[2]));
+                }
+                break;
+        }
+        return success;
+    }
+
+    /**
+     * Upload or download a directory tree (upload -r / download -r), on the client's session or on its connection turned into one
+     * @param args the command, -r, the source and destination directories and optionally the number of transfers that run at once
+     * @return true if every file and directory was transferred, false otherwise
+     */
+    private boolean transferTree(String[] args) {
+        int parallelism = (args.length == 5) ? Integer.parseInt(args[4]) : treeTransfer.DEFAULT_PARALLELISM;
+        try {
+            session treeSession = (this.mySession != null) ? this.mySession : this.openSession();
+            if (treeSession.version < 3){
+                System.err.println(args[0] + ": server does not support recursive transfers");
+                return false;
+            }
+            treeTransfer tree = new treeTransfer(treeSession, parallelism);
+            boolean OK = args[0].equals("upload") ? tree.upload(sanitizePath(args[2]), sanitizePath(args[3])) : tree.download(sanitizePath(args[2]), sanitizePath(args[3]));
+            this.bytesTransferred += tree.bytes.get();
+            return OK;
+        } catch (IOException e) {
+            System.err.println("client: " + args[0] + " error (" + e + ")");
+            return false;
+        }
+    }
+
+    /**
+     * Run the commands read from standard input (one per line) over this connection 
+     * every command is sent as soon as it is read, so the commands are pipelined and their replies can come back in any order,
+     * a line with just "wait" waits for every command before it to finish
+     * @return true if every command was successful, false otherwise
+     */
+    private boolean runSession() {
+        AtomicBoolean allOK = new AtomicBoolean(true);
+
+        try {
+            session mySession = this.openSession();
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+            Semaphore pipelined = new Semaphore(MAX_PIPELINED); // limit the commands that are waiting for replies
+            List<Thread> running = new ArrayList<>();
+
+            String line;
+            while ((line = commands.readLine()) != null){
+                if (line.isBlank()){
+                    continue;
+                }
+                if (line.trim().equals("wait")){ // wait for the commands before it, e.g. before uploading into a new directory
+                    for (Thread command : running){
+                        command.join();
+                    }
+                    running.clear();
+                    continue;
+                }
+                String[] commandArgs = line.trim().split("\\s+");
+                if (!checkCommand(commandArgs) || commandArgs[0].equals("shutdown") || commandArgs[0].equals("session")){
+                    System.err.println("session: \"" + line.trim() + "\" cannot run in a session");
+                    allOK.set(false);
+                    continue;
+                }
+
+                pipelined.acquire();
+                Thread command = new Thread(() -> {
+                    client sessionClient = new client(mySession);
+                    try {
+                        if (!sessionClient.execute(commandArgs)){
+                            allOK.set(false);
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("client: " + commandArgs[0] + " error (" + e + ")");
+                        allOK.set(false);
+                    } finally {
+                        sessionClient.shutdownClient(); // a command that failed still gives its stream and its permit back
+                        pipelined.release();
+                    }
+                });
+                command.start();
+                running.add(command);
+            }
+
+            for (Thread command : running){
+                command.join();
+            }
+        } catch (IOException e) {
+            System.err.println("client: session error (" + e + ")");
+            return false;
+        } catch (InterruptedException e) {
+            System.err.println("client: session interrupted (" + e + ")");
+            return false;
+        }
+        return allOK.get();
+    }
+
+    /**
+     * Turn this client's connection into a session that runs many commands 
+     * @return the session, its reader runs on a daemon thread until the connection is closed
+     */
+    private session openSession() throws IOException {
+        this.sendRequest(protocol.SESSION, "");
+        session newSession = new session(this.inFromServer, this.outToServer, this.serverConnection, null);
+        newSession.version = this.version;
+        Thread reader = new Thread(() -> {
+            try {
+                newSession.run();
+            } catch (IOException e) {
+                if (!this.serverConnection.isClosed()){
+                    System.err.println("client: session error (" + e + ")");
+                }
+            }
+        }, "session reader");
+        reader.setDaemon(true);
+        reader.start();
+        return newSession;
+    }
+
+    /**
+     * Run a file of commands (one per line) over a pool of sessions, reusing the connections for every command
+     * a result line is printed as each command finishes and the totals are printed at the end,
+     * blank lines and lines starting with # are skipped and a line with just "wait" waits for every command before it
+     * @param host server's computer name 
+     * @param port server's port number 
+     * @param source path to the command file, or "-" to read standard input
+     * @param parallelism most commands that run at once
+     * @param connections number of connections the commands are shared over
+     * @return true if every command was successful, false otherwise
+     */
+    private static boolean runBatch(String host, int port, String source, int parallelism, int connections) {
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong totalBytes = new AtomicLong();
+        client[] pool = new client[connections];
+        session[] sessions = new session[connections];
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        long start = System.nanoTime();
+
+        try (BufferedReader commands = new BufferedReader(source.equals("-") ? new InputStreamReader(System.in) : new FileReader(source))){
+            for (int i=0; i<connections; i++){
+                pool[i] = new client(host, port);
+                sessions[i] = pool[i].openSession();
+            }
+
+            List<Future<?>> running = new ArrayList<>();
+            int lineNumber = 0;
+            String line;
+            while ((line = commands.readLine()) != null){
+                lineNumber++;
+                String command = line.trim();
+                if (command.isEmpty() || command.startsWith("#")){
+                    continue;
+                }
+                if (command.equals("wait")){ // wait for the commands before it
+                    for (Future<?> result : running){
+                        result.get();
+                    }
+                    running.clear();
+                    continue;
+                }
+                String[] commandArgs = command.split("\\s+");
+                if (!checkCommand(commandArgs) || commandArgs[0].equals("shutdown") || commandArgs[0].equals("session") || commandArgs[0].equals("batch")){
+                    System.out.println("[failed] line " + lineNumber + ": " + command + " (cannot run in a batch)");
+                    failed.incrementAndGet();
+                    continue;
+                }
+
+                session mySession = sessions[lineNumber % connections];
+                int number = lineNumber;
+                running.add(workers.submit(() -> {
+                    client batchClient = new client(mySession);
+                    batchClient.quiet = true;
+                    long started = System.nanoTime();
+                    boolean OK = false;
+                    try {
+                        OK = batchClient.execute(commandArgs);
+                    } catch (RuntimeException e) { // only this line fails, the rest of the batch carries on
+                        System.err.println("client: " + commandArgs[0] + " error (" + e + ")");
+                    } finally {
+                        batchClient.shutdownClient();
+                    }
+                    long elapsed = System.nanoTime() - started;
+
+                    totalBytes.addAndGet(batchClient.bytesTransferred);
+                    (OK ? succeeded : failed).incrementAndGet();
+                    System.out.println((OK ? "[ok] " : "[failed] ") + "line " + number + ": " + command 
+                        + String.format(" (%d bytes, %.1f ms)", batchClient.bytesTransferred, elapsed / 1e6));
+                }));
+            }
+
+            for (Future<?> result : running){
+                result.get();
+            }
+        } catch (IOException e) {
+            System.err.println("client: batch error (" + e + ")");
+            return false;
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("client: batch interrupted (" + e + ")");
+            return false;
+        } finally {
+            workers.shutdown();
+            for (client pooled : pool){
+                if (pooled != null){
+                    pooled.shutdownClient();
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("batch: %d succeeded, %d failed in %.3f s (%.1f commands/s, %.1f MB/s)",
+            succeeded.get(), failed.get(), seconds, (succeeded.get() + failed.get()) / seconds, totalBytes.get() / 1e6 / seconds));
+        return failed.get() == 0;
+    }
+
+    //-------------------------------------------------- Parallel Transfer Methods --------------------------------------------------
+
+    /**
+     * Moves one byte range of a parallel transfer
+     */
+    private interface rangeTransfer{
+        void transfer(int range, long offset, long length) throws IOException;
+    }
+
+    /**
+     * @param fileSize size of the file 
+     * @param streams most connections the transfer may use
+     * @return number of ranges to split the file into, none of them smaller than MIN_RANGE_SIZE (unless the file is)
+     */
+    private static int rangeCount(long fileSize, int streams){
+        return (int) Math.max(1, Math.min(streams, fileSize / MIN_RANGE_SIZE));
+    }
+
+    /**
+     * @return a client for one range of a parallel transfer, with its own connection (or its own stream of the session)
+     */
+    private client rangeClient(){
+        client rangeClient = (this.mySession == null) ? new client(this.host, this.port) : new client(this.mySession);
+        rangeClient.quiet = true;
+        return rangeClient;
+    }
+
+    /**
+     * Transfer every range of a file at the same time, one thread per range
+     * @param ranges number of ranges
+     * @param fileSize size of the file 
+     * @param transfer moves a single range
+     */
+    private static void transferRanges(int ranges, long fileSize, rangeTransfer transfer) throws IOException{
+        ExecutorService workers = Executors.newFixedThreadPool(ranges);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i=0; i<ranges; i++){
+                int range = i;
+                long offset = fileSize * i / ranges;
+                long length = fileSize * (i + 1) / ranges - offset;
+                results.add(workers.submit(() -> {
+                    transfer.transfer(range, offset, length);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results){
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for the ranges");
+        } finally {
+            workers.shutdownNow(); // a failed range stops the others
+        }
+    }
+
+    /**
+     * Upload a file as several byte ranges over several connections at the same time 
+     * the server writes each range at its own position in the file, so no range waits for another 
+     * @param clientPath path to the client file 
+     * @param serverPath path to the server file 
+     * @param streams most connections to use 
+     * @return true if successful, false otherwise
+     */
+    private boolean parallelUpload(String clientPath, String serverPath, int streams) {
+        Boolean OK = false;
+
+        // check that the client's filepath is valid 
+        File clientFile = new File(clientPath);
+        if (!clientFile.isFile()){
+            System.err.println("upload: client path " + clientPath + " is invalid or not a file");
+        }
+        else{
+            try {
+                this.sendRequest(protocol.RANGE_UPLOAD, serverPath); // the first range checks the server path 
+
+                // server will confirm whether the server path is valid 
+                if (!this.inFromServer.readBoolean()){
+                    System.err.println("upload: server path " + serverPath + " is invalid");
+                    return OK;
+                }
+
+                FileChannel fileChannel = new FileInputStream(clientFile).getChannel();
+                long fileSize = fileChannel.size();
+                int ranges = rangeCount(fileSize, streams);
+                AtomicLong bytesUploaded = new AtomicLong(); 
+                long uploadId = new SecureRandom().nextLong(); // keeps the ranges of this upload apart from other uploads of the file
+
+                this.print("upload: 0 / " + Long.toString(fileSize) + " in " + ranges + " ranges");
+                try {
+                    transferRanges(ranges, fileSize, (range, offset, length) -> {
+                        client rangeClient = (range == 0) ? this : this.rangeClient();
+                        try {
+                            if (range != 0){
+                                rangeClient.sendRequest(protocol.RANGE_UPLOAD, serverPath);
+                                if (!rangeClient.inFromServer.readBoolean()){
+                                    throw new IOException("server path " + serverPath + " became invalid");
+                                }
+                            }
+                            rangeClient.outToServer.writeLong(fileSize);
+                            rangeClient.outToServer.writeLong(offset);
+                            rangeClient.outToServer.writeLong(length);
+                            if (rangeClient.version >= 6){
+                                rangeClient.outToServer.writeLong(uploadId);
+                            }
+
+                            // let the kernel send the range straight from the page cache to the socket 
+                            WritableByteChannel socketChannel = (rangeClient.mySession == null) ? rangeClient.serverConnection.getChannel() : Channels.newChannel(rangeClient.outToServer);
+                            long end = offset + length;
+                            tuning.transfer transfer = new tuning.transfer(rangeClient.serverConnection, length, rangeClient.rtt);
+                            while (offset != end){
+                                long bytes = fileChannel.transferTo(offset, Math.min(transfer.chunk(), end - offset), socketChannel);
+                                if (bytes == 0 && offset >= fileChannel.size()){
+                                    throw new EOFException("file became shorter while uploading");
+                                }
+                                offset += bytes;
+                                transfer.progress(bytes);
+                                this.print("upload: " + Long.toString(bytesUploaded.addAndGet(bytes)) + " / " + Long.toString(fileSize));
+                            }
+                            rangeClient.outToServer.flush();
+
+                            // server will confirm how much of the range it wrote 
+                            if (rangeClient.inFromServer.readLong() != length){
+                                throw new IOException("server did not write all of range " + range);
+                            }
+                        } finally {
+                            if (rangeClient != this){
+                                rangeClient.shutdownClient();
+                            }
+                        }
+                    });
+                } finally {
+                    fileChannel.close();
+                }
+                this.bytesTransferred = fileSize;
+                OK = true;
+            } catch (IOException e) {
+                System.err.println("client: upload error (" + e + ")");
+            }
+        }
+        return OK;
+    }
+
+    /**
+     * Download a file as several byte ranges over several connections at the same time 
+     * each range is moved from its socket straight into its position of the file, there is no resuming
+     * @param serverPath path to the server file 
+     * @param clientPath path to the client file 
+     * @param streams most connections to use 
+     * @return true if successful, false otherwise
+     */
+    private boolean parallelDownload(String serverPath, String clientPath, int streams) {
+        Boolean OK = false;
+
+        // check that the client's filepath is valid 
+        File clientFile = new File(clientPath);
+        if (clientFile.getParentFile() != null && !clientFile.getParentFile().isDirectory()){
+            System.err.println("download: client path " + clientPath + " is invalid");
+        }
+        else{
+            try {
+                this.sendRequest(protocol.RANGE_DOWNLOAD, serverPath); // the first range learns the file size 
+
+                // server will confirm whether the server path is valid 
+                if (!this.inFromServer.readBoolean()){
+                    System.err.println("download: server path " + serverPath + " is invalid");
+                    return OK;
+                }
+
+                long fileSize = this.inFromServer.readLong(); // get the file size from the server
+                int ranges = rangeCount(fileSize, streams);
+                AtomicLong bytesDownloaded = new AtomicLong(); 
+
+                RandomAccessFile randomAccessFile = new RandomAccessFile(clientFile, "rw");
+                randomAccessFile.setLength(fileSize); // every range must fall inside the file before it is written 
+                FileChannel fileChannel = randomAccessFile.getChannel();
+
+                this.print("download: 0 / " + Long.toString(fileSize) + " in " + ranges + " ranges");
+                try {
+                    transferRanges(ranges, fileSize, (range, offset, length) -> {
+                        client rangeClient = (range == 0) ? this : this.rangeClient();
+                        try {
+                            if (range != 0){
+                                rangeClient.sendRequest(protocol.RANGE_DOWNLOAD, serverPath);
+                                if (!rangeClient.inFromServer.readBoolean() || rangeClient.inFromServer.readLong() != fileSize){
+                                    throw new IOException("server file " + serverPath + " changed during the download");
+                                }
+                            }
+                            rangeClient.outToServer.writeLong(offset);
+                            rangeClient.outToServer.writeLong(length);
+
+                            // move the bytes from the socket into the file at the position they belong 
+                            ReadableByteChannel socketChannel = (rangeClient.mySession == null) ? rangeClient.serverConnection.getChannel() : Channels.newChannel(rangeClient.inFromServer);
+                            long end = offset + length;
+                            tuning.transfer transfer = new tuning.transfer(rangeClient.serverConnection, length, rangeClient.rtt);
+                            while (offset != end){
+                                long bytes = fileChannel.transferFrom(socketChannel, offset, Math.min(transfer.chunk(), end - offset));
+                                if (bytes == 0){
+                                    throw new EOFException("server closed the connection");
+                                }
+                                offset += bytes;
+                                transfer.progress(bytes);
+                                this.print("download: " + Long.toString(bytesDownloaded.addAndGet(bytes)) + " / " + Long.toString(fileSize));
+                            }
+                        } finally {
+                            if (rangeClient != this){
+                                rangeClient.shutdownClient();
+                            }
+                        }
+                    });
+                } finally {
+                    fileChannel.close();
+                }
+                this.bytesTransferred = fileSize;
+                OK = true;
             } catch (IOException e) {
                 System.err.println("client: download error (" + e + ")");
-            } 
+            }
         }
         return OK;
     }
@@ -370,6 +1380,12 @@ public class client{
     //-------------------------------------------------- Main Method --------------------------------------------------
     public static void main(String[] args) {
 
+        // take the socket and transfer settings (--name=value) from before the command
+        args = tuning.parseFlags(args);
+        if (args == null){
+            System.exit(1);
+        }
+
         // check that the command is valid and the correct number of arguments are provided
         if (!checkCommand(args)){
             System.exit(1);
@@ -381,42 +1397,35 @@ public class client{
             System.exit(1);
         }
 
+        // compress the file bytes of transfers if PA1_COMPRESSION=deflate (blocks that do not shrink are sent raw)
+        if ("deflate".equals(System.getenv("PA1_COMPRESSION"))){
+            preferredCodec = protocol.CODEC_DEFLATE;
+        }
+
+        // upload files as content-defined chunks if PA1_DEDUP is set, the server only asks for the chunks it does not have 
+        deduplicate = System.getenv("PA1_DEDUP") != null;
+
         // obtain the server's host & port # from PA1_SERVER
         String[] PA1_SERVER = System.getenv("PA1_SERVER").split(":"); 
         String host = PA1_SERVER[0]; //
         int port =  Integer.parseInt(PA1_SERVER[1]);
 
-        // setup the client 
-        client myClient = new client(host, port);
-        
-        // attempt to execute the command 
         boolean success = false;
-        switch(args[0]){
-            case "shutdown":
-                success = myClient.shutdownServer();
-                break;
-            case "dir":
-                success = (args.length == 1) ? myClient.dir(sanitizePath("/")) : myClient.dir(sanitizePath(args[1])); 
-                break;
-            case "mkdir":
-                success = myClient.mkdir(sanitizePath(args[1]));
-                break;
-            case "rmdir":
-                success = myClient.rmdir(sanitizePath(args[1]));
-                break;
-            case "rm":
-                success = myClient.rm(sanitizePath(args[1]));
-                break;
-            case "upload":
-                success = myClient.upload(sanitizePath(args[1]), sanitizePath(args[2]));
-                break;
-            case "download":
-                success = myClient.download(sanitizePath(args[1]), sanitizePath(args[2]));
-                break;
+        if (args[0].equals("batch")){ // batches open their own connections 
+            int parallelism = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_BATCH_PARALLELISM;
+            int connections = (args.length > 3) ? Integer.parseInt(args[3]) : Math.min(parallelism, DEFAULT_BATCH_CONNECTIONS);
+            success = runBatch(host, port, args[1], parallelism, connections);
         }
+        else{
+            // setup the client 
+            client myClient = new client(host, port);
+            
+            // attempt to execute the command 
+            success = (args[0].equals("session")) ? myClient.runSession() : myClient.execute(args);
 
-        // shut down the client
-        myClient.shutdownClient();
+            // shut down the client
+            myClient.shutdownClient();
+        }
 
         // check if the command was executed successfully 
         if (!success){
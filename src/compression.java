@@ -0,0 +1,219 @@
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.io.*;
+
+/**
+ * Compression of the file bytes of a transfer
+ * the bytes are sent in blocks of [kind][length][length on the wire][payload], a block that does not shrink by at least an eighth
+ * is sent raw instead, and after such a block the next few are sent raw without trying (more of them each time it happens again)
+ * so data that does not compress, like media files, costs almost no CPU
+ */
+public class compression{
+
+    static final int BLOCK_SIZE = 256 * 1024; // bytes of the file in each block
+
+    // kinds of blocks
+    private static final int RAW = 0; // [int length][bytes]
+    private static final int DEFLATED = 1; // [int length][int length on the wire][deflated bytes]
+
+    private static final int MAX_SKIPPED_BLOCKS = 64; // most blocks that are sent raw without trying to compress them
+
+    /**
+     * @param outputStream the stream the blocks are written to (it is flushed but never closed)
+     * @return a stream that compresses what is written to it
+     */
+    static OutputStream output(OutputStream outputStream){
+        return new compressedOutput(outputStream);
+    }
+
+    /**
+     * @param inputStream the stream the blocks are read from (nothing past the last block that is needed is read)
+     * @return a stream of the bytes the blocks hold
+     */
+    static InputStream input(InputStream inputStream){
+        return new compressedInput(inputStream);
+    }
+
+    /**
+     * Free the compressor of a stream from output or input without sending anything, for a transfer that ended early
+     * (the stream underneath stays open, streams that do not compress are left alone)
+     * @param stream the stream, or null
+     */
+    static void end(Closeable stream){
+        if (stream instanceof compressedOutput){
+            ((compressedOutput) stream).deflater.end();
+        }
+        else if (stream instanceof compressedInput){
+            ((compressedInput) stream).inflater.end();
+        }
+    }
+
+    //-------------------------------------------------- Compressed Output --------------------------------------------------
+    private static class compressedOutput extends OutputStream{
+
+        private DataOutputStream outputStream;
+        private Deflater deflater = new Deflater(Deflater.BEST_SPEED); // the link is slower than the fastest level
+        private byte[] block = new byte[BLOCK_SIZE];
+        private byte[] deflated = new byte[BLOCK_SIZE];
+        private int count = 0; // bytes in the block
+        private int skip = 0; // blocks left to send raw without trying
+        private int backoff = 1; // blocks to skip the next time a block does not compress
+
+        compressedOutput(OutputStream outputStream){
+            this.outputStream = new DataOutputStream(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            while (len > 0){
+                int n = Math.min(len, this.block.length - this.count);
+                System.arraycopy(b, off, this.block, this.count, n);
+                this.count += n;
+                off += n;
+                len -= n;
+                if (this.count == this.block.length){
+                    this.writeBlock();
+                }
+            }
+        }
+
+        /**
+         * Send the bytes of the block so far, then flush the stream
+         */
+        @Override
+        public void flush() throws IOException{
+            if (this.count > 0){
+                this.writeBlock();
+            }
+            this.outputStream.flush();
+        }
+
+        /**
+         * Send the rest of the bytes, the stream underneath stays open
+         */
+        @Override
+        public void close() throws IOException{
+            this.flush();
+            this.deflater.end();
+        }
+
+        private void writeBlock() throws IOException{
+            if (this.skip == 0){
+                this.deflater.reset();
+                this.deflater.setInput(this.block, 0, this.count);
+                this.deflater.finish();
+                int length = this.deflater.deflate(this.deflated, 0, this.count - this.count / 8); // anything longer is not worth it
+                if (this.deflater.finished()){
+                    this.outputStream.writeByte(DEFLATED);
+                    this.outputStream.writeInt(this.count);
+                    this.outputStream.writeInt(length);
+                    this.outputStream.write(this.deflated, 0, length);
+                    this.count = 0;
+                    this.backoff = 1;
+                    return;
+                }
+                this.skip = this.backoff;
+                this.backoff = Math.min(this.backoff * 2, MAX_SKIPPED_BLOCKS);
+            }
+            else{
+                this.skip--;
+            }
+            this.outputStream.writeByte(RAW);
+            this.outputStream.writeInt(this.count);
+            this.outputStream.write(this.block, 0, this.count);
+            this.count = 0;
+        }
+    }
+
+    //-------------------------------------------------- Compressed Input --------------------------------------------------
+    private static class compressedInput extends InputStream{
+
+        private DataInputStream inputStream;
+        private Inflater inflater = new Inflater();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private byte[] deflated = new byte[BLOCK_SIZE];
+        private int position = 0; // next byte of the block to read
+        private int limit = 0; // bytes in the block
+
+        compressedInput(InputStream inputStream){
+            this.inputStream = new DataInputStream(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException{
+            byte[] single = new byte[1];
+            return (this.read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            if (len == 0){
+                return 0;
+            }
+            if (this.position == this.limit && !this.readBlock()){
+                return -1;
+            }
+            int n = Math.min(len, this.limit - this.position);
+            System.arraycopy(this.block, this.position, b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public int available(){
+            return this.limit - this.position;
+        }
+
+        @Override
+        public void close(){
+            this.inflater.end();
+        }
+
+        /**
+         * Read the next block
+         * @return false if the stream ended
+         */
+        private boolean readBlock() throws IOException{
+            int kind = this.inputStream.read();
+            if (kind < 0){
+                return false;
+            }
+            int length = this.inputStream.readInt();
+            if (length < 0 || length > BLOCK_SIZE){
+                throw new IOException("compressed block of " + length + " bytes is too long");
+            }
+
+            if (kind == RAW){
+                this.inputStream.readFully(this.block, 0, length);
+            }
+            else if (kind == DEFLATED){
+                int wireLength = this.inputStream.readInt();
+                if (wireLength < 0 || wireLength > BLOCK_SIZE){
+                    throw new IOException("compressed block of " + wireLength + " bytes is too long");
+                }
+                this.inputStream.readFully(this.deflated, 0, wireLength);
+                this.inflater.reset();
+                this.inflater.setInput(this.deflated, 0, wireLength);
+                try {
+                    if (this.inflater.inflate(this.block, 0, length) != length || !this.inflater.finished()){
+                        throw new IOException("compressed block is corrupt");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("compressed block is corrupt", e);
+                }
+            }
+            else{
+                throw new IOException("unknown kind of block " + kind);
+            }
+            this.position = 0;
+            this.limit = length;
+            return true;
+        }
+    }
+}
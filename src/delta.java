@@ -0,0 +1,322 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.io.*;
+
+/**
+ * Delta uploads in the style of rsync
+ * the server sends a weak rolling checksum and an MD5 of every block of its copy of the file, the client slides a block sized window
+ * over its own file looking for those blocks and sends only references to the blocks it found and the bytes in between,
+ * the server rebuilds the file from them in a temporary file that replaces the old copy once the digest of the result matches
+ */
+public class delta{
+
+    // instructions sent by the client
+    static final int LITERAL = 0; // int length followed by that many bytes of the new file
+    static final int COPY = 1; // int first block and int number of blocks of the server's copy
+    static final int END = 2; // followed by the SHA-256 of the new file
+
+    static final int MIN_BLOCK_SIZE = 2 * 1024;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+    static final int MAX_BLOCKS = 16 * 1024 * 1024; // most signatures the client will accept
+    static final int STRONG_LENGTH = 16; // bytes of an MD5
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int WINDOW_BUFFER_SIZE = 1024 * 1024; // bytes of the client's file held while searching for blocks
+
+    long literalBytes = 0; // bytes of the new file that were sent
+    long matchedBytes = 0; // bytes of the new file that the server already had
+
+    private DataOutputStream instructions;
+    private int copyStart = -1; // first block of the copy that has not been sent yet
+    private int copyCount = 0;
+
+    /**
+     * Choose the block size for a file, about the square root of its size like rsync
+     * @param fileSize size of the server's copy
+     * @return the block size
+     */
+    static int blockSize(long fileSize){
+        int root = (int) Math.sqrt((double) fileSize);
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, (root + 1023) & ~1023));
+    }
+
+    /**
+     * Server: send the signature of every whole block of its copy of the file
+     * @param outToClient the stream to the client
+     * @param file the server's copy (it may not exist)
+     * @param blockSize the block size
+     * @param blocks number of whole blocks of the file
+     */
+    static void writeSignatures(DataOutputStream outToClient, File file, int blockSize, int blocks) throws IOException{
+        DataOutputStream signatures = new DataOutputStream(new BufferedOutputStream(outToClient, IO_BUFFER_SIZE));
+        signatures.writeInt(blockSize);
+        signatures.writeInt(blocks);
+        if (blocks > 0){
+            MessageDigest md5 = newDigest("MD5");
+            byte[] block = new byte[blockSize];
+            try (DataInputStream fileInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE))){
+                for (int i=0; i<blocks; i++){
+                    fileInputStream.readFully(block);
+                    signatures.writeInt(weakChecksum(block, 0, blockSize));
+                    signatures.write(md5.digest(block));
+                }
+            }
+        }
+        signatures.flush();
+    }
+
+    /**
+     * Server: rebuild the file from the client's instructions
+     * @param inFromClient the stream from the client
+     * @param oldFile the server's copy the signatures were made from
+     * @param newFile the file to write the result to
+     * @param blockSize the block size of the signatures
+     * @param blocks number of blocks that had signatures
+     * @param fileSize size of the client's file
+     * @return true if the result has the size and the digest the client sent, false otherwise
+     */
+    static boolean apply(DataInputStream inFromClient, File oldFile, File newFile, int blockSize, int blocks, long fileSize) throws IOException{
+        DataInputStream instructions = new DataInputStream(new BufferedInputStream(inFromClient, IO_BUFFER_SIZE)); // the client sends nothing after the digest, so nothing is read too far
+        MessageDigest digest = newDigest("SHA-256");
+        byte[] buffer = new byte[Math.max(IO_BUFFER_SIZE, blockSize)];
+        long written = 0;
+
+        try (RandomAccessFile oldCopy = (blocks > 0) ? new RandomAccessFile(oldFile, "r") : null;
+             OutputStream fileOutputStream = new BufferedOutputStream(new FileOutputStream(newFile), IO_BUFFER_SIZE)){
+            while (true){
+                int instruction = instructions.readUnsignedByte();
+                if (instruction == LITERAL){
+                    int length = instructions.readInt();
+                    if (length < 0 || written + length > fileSize){
+                        throw new IOException("literal of " + length + " bytes does not fit in the file");
+                    }
+                    while (length > 0){
+                        int bytes = Math.min(length, buffer.length);
+                        instructions.readFully(buffer, 0, bytes);
+                        fileOutputStream.write(buffer, 0, bytes);
+                        digest.update(buffer, 0, bytes);
+                        length -= bytes;
+                        written += bytes;
+                    }
+                }
+                else if (instruction == COPY){
+                    long first = instructions.readInt();
+                    long count = instructions.readInt();
+                    if (first < 0 || count < 0 || first + count > blocks || written + count * blockSize > fileSize){
+                        throw new IOException("copy of blocks " + first + "-" + (first + count) + " is outside of the old file");
+                    }
+                    for (long i = first; i < first + count; i++){
+                        oldCopy.seek(i * blockSize);
+                        oldCopy.readFully(buffer, 0, blockSize);
+                        fileOutputStream.write(buffer, 0, blockSize);
+                        digest.update(buffer, 0, blockSize);
+                    }
+                    written += count * blockSize;
+                }
+                else if (instruction == END){
+                    byte[] expected = new byte[verifier.DIGEST_LENGTH];
+                    instructions.readFully(expected);
+                    return written == fileSize && MessageDigest.isEqual(expected, digest.digest());
+                }
+                else{
+                    throw new IOException("unknown delta instruction " + instruction);
+                }
+            }
+        }
+    }
+
+    /**
+     * Client: read the server's signatures and send the instructions that turn the server's copy into the client's file
+     * @param fileInputStream the client's file
+     * @param inFromServer the stream from the server
+     * @param outToServer the stream to the server
+     */
+    void send(InputStream fileInputStream, DataInputStream inFromServer, DataOutputStream outToServer) throws IOException{
+        // the server sends nothing after the signatures until it has every instruction, so they can be read through a buffer
+        DataInputStream signatures = new DataInputStream(new BufferedInputStream(inFromServer, IO_BUFFER_SIZE));
+        int blockSize = signatures.readInt();
+        int blocks = signatures.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blocks < 0 || blocks > MAX_BLOCKS){
+            throw new IOException("server sent " + blocks + " signatures of " + blockSize + " bytes");
+        }
+
+        // index the blocks by their weak checksum, blocks with the same one are chained in order
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_LENGTH];
+        int[] nextBlock = new int[blocks];
+        Map<Integer, Integer> firstBlock = new HashMap<>();
+        for (int i=0; i<blocks; i++){
+            weak[i] = signatures.readInt();
+            signatures.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        for (int i=blocks-1; i>=0; i--){
+            nextBlock[i] = firstBlock.getOrDefault(weak[i], -1);
+            firstBlock.put(weak[i], i);
+        }
+
+        this.instructions = new DataOutputStream(new BufferedOutputStream(outToServer, IO_BUFFER_SIZE));
+        MessageDigest fileDigest = newDigest("SHA-256");
+        MessageDigest md5 = newDigest("MD5");
+        byte[] buffer = new byte[Math.max(WINDOW_BUFFER_SIZE, 4 * blockSize)];
+        int limit = 0; // end of the bytes in the buffer
+        int position = 0; // start of the window
+        int literalStart = 0; // first byte that is not covered by an instruction yet
+        boolean eof = false;
+        boolean rolled = false; // whether a and b hold the checksum of the window
+        int a = 0;
+        int b = 0;
+
+        while (true){
+            // keep the window and the byte after it in the buffer
+            if (!eof && limit - position <= blockSize){
+                this.literal(buffer, literalStart, position);
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+                literalStart = 0;
+                int bytes = 0;
+                while (limit < buffer.length && (bytes = fileInputStream.read(buffer, limit, buffer.length - limit)) > -1){
+                    fileDigest.update(buffer, limit, bytes);
+                    limit += bytes;
+                }
+                eof = (bytes < 0);
+            }
+            if (blocks == 0){ // nothing to match, the whole file is sent
+                position = limit;
+                if (eof){
+                    break;
+                }
+                continue;
+            }
+            if (limit - position < blockSize){
+                break;
+            }
+
+            if (!rolled){
+                int checksum = weakChecksum(buffer, position, blockSize);
+                a = checksum & 0xFFFF;
+                b = checksum >>> 16;
+                rolled = true;
+            }
+
+            int match = this.findBlock((b << 16) | a, buffer, position, blockSize, weak, strong, firstBlock, nextBlock, md5);
+            if (match >= 0){
+                this.literal(buffer, literalStart, position);
+                if (this.copyCount > 0 && this.copyStart + this.copyCount == match){
+                    this.copyCount++; // extend the copy that is being built
+                }
+                else{
+                    this.flushCopy();
+                    this.copyStart = match;
+                    this.copyCount = 1;
+                }
+                this.matchedBytes += blockSize;
+                position += blockSize;
+                literalStart = position;
+                rolled = false;
+                continue;
+            }
+
+            if (position + blockSize >= limit){ // the window cannot move until the buffer is refilled
+                if (eof){
+                    break;
+                }
+                continue;
+            }
+
+            // slide the window by one byte
+            int out = buffer[position] & 0xFF;
+            int in = buffer[position + blockSize] & 0xFF;
+            a = (a - out + in) & 0xFFFF;
+            b = (b - blockSize * out + a) & 0xFFFF;
+            position++;
+        }
+
+        this.literal(buffer, literalStart, limit);
+        this.flushCopy();
+        this.instructions.writeByte(END);
+        this.instructions.write(fileDigest.digest());
+        this.instructions.flush();
+    }
+
+    /**
+     * Find a block of the server's copy that is the same as the window, preferring the block after the copy being built
+     * @return number of the block, or -1 if there is none
+     */
+    private int findBlock(int checksum, byte[] buffer, int position, int blockSize, int[] weak, byte[] strong, Map<Integer, Integer> firstBlock, int[] nextBlock, MessageDigest md5){
+        Integer first = firstBlock.get(checksum);
+        if (first == null){
+            return -1;
+        }
+        md5.update(buffer, position, blockSize);
+        byte[] window = md5.digest();
+
+        int preferred = this.copyStart + this.copyCount;
+        if (this.copyCount > 0 && preferred < weak.length && weak[preferred] == checksum && sameStrong(strong, preferred, window)){
+            return preferred;
+        }
+        for (int block = first; block >= 0; block = nextBlock[block]){
+            if (sameStrong(strong, block, window)){
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Send bytes of the new file that the server does not have
+     */
+    private void literal(byte[] buffer, int from, int to) throws IOException{
+        if (to > from){
+            this.flushCopy();
+            this.instructions.writeByte(LITERAL);
+            this.instructions.writeInt(to - from);
+            this.instructions.write(buffer, from, to - from);
+            this.literalBytes += to - from;
+        }
+    }
+
+    /**
+     * Send the copy that is being built
+     */
+    private void flushCopy() throws IOException{
+        if (this.copyCount > 0){
+            this.instructions.writeByte(COPY);
+            this.instructions.writeInt(this.copyStart);
+            this.instructions.writeInt(this.copyCount);
+            this.copyCount = 0;
+        }
+    }
+
+    private static boolean sameStrong(byte[] strong, int block, byte[] window){
+        for (int i=0; i<STRONG_LENGTH; i++){
+            if (strong[block * STRONG_LENGTH + i] != window[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * rsync's weak checksum, two 16 bit sums that can be rolled one byte at a time
+     */
+    static int weakChecksum(byte[] bytes, int offset, int length){
+        int a = 0;
+        int b = 0;
+        for (int i=0; i<length; i++){
+            int x = bytes[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private static MessageDigest newDigest(String algorithm){
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Java runtime has MD5 and SHA-256
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.io.*;
+
+/**
+ * Read cache of hot files for downloads
+ * a cached file is held once, off the heap, and every download of it is served from that copy instead of opening and reading the file again;
+ * a file is only cached the second time it is asked for within a while (so one off downloads do not push hot files out),
+ * the least recently used files are dropped once the copies go over the byte budget, and an entry is only used while the file
+ * still has the size and modification time it was read with (commands that change a path also drop it straight away)
+ * the copy is a snapshot, so a download that is served from it is never affected by an upload that changes the file halfway
+ */
+public class fileCache{
+
+    private static final int MAX_FILE_FRACTION = 4; // a file bigger than this fraction of the budget is never cached
+    private static final int DOORKEEPER_SIZE = 4096; // number of paths that are remembered after being asked for once
+
+    private long budget; // most bytes the cached files may take
+    private long cachedBytes = 0;
+    private Map<String, entry> entries = new LinkedHashMap<>(16, 0.75f, true); // in order of use, least recent first
+    private Map<String, Boolean> doorkeeper = new LinkedHashMap<String, Boolean>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest){
+            return this.size() > DOORKEEPER_SIZE;
+        }
+    };
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param budget most bytes the cached files may take, 0 turns the cache off
+     */
+    public fileCache(long budget){
+        this.budget = budget;
+    }
+
+    /**
+     * Find the entry of a file without reading anything (cheap enough to hold the file's lock), adding it if the file has been asked for recently
+     * a hit is only counted for an entry that already holds the file, fill reads the others
+     * @param file the file to download
+     * @return the entry, which may not hold the file yet, or null if the file is not cached
+     */
+    entry find(File file){
+        if (this.budget == 0){
+            return null;
+        }
+        long size = file.length();
+        long modified = file.lastModified();
+        String key = key(file);
+
+        synchronized (this){
+            entry cached = this.entries.get(key);
+            if (cached != null && (cached.size != size || cached.modified != modified)){
+                this.remove(key); // the file changed since it was cached
+                cached = null;
+            }
+            if (cached == null){
+                if (key == null || size == 0 || size > this.budget / MAX_FILE_FRACTION || size > Integer.MAX_VALUE){
+                    this.misses.increment();
+                    return null;
+                }
+                if (this.doorkeeper.remove(key) == null){ // first time in a while, only remember it
+                    this.doorkeeper.put(key, Boolean.TRUE);
+                    this.misses.increment();
+                    return null;
+                }
+                cached = new entry(key, size, modified);
+                this.entries.put(key, cached);
+                this.cachedBytes += size;
+                this.evict();
+            }
+            (cached.loaded() ? this.hits : this.misses).increment();
+            return cached;
+        }
+    }
+
+    /**
+     * Read a file into the entry find returned for it, outside of the file's lock so uploads and removals of its paths do not wait for the disk
+     * concurrent downloads of a file that is being read into the cache wait for it instead of reading the file themselves
+     * @param cached the entry, or null
+     * @param fileChannel the file, opened while find was called under the file's lock (so it is the file the entry was checked against),
+     * it is read with positional reads and left open; null only if the entry already holds the file
+     * @return the entry holding the file, or null if there is none or the file could not be read (the caller reads the file itself)
+     */
+    entry fill(entry cached, FileChannel fileChannel){
+        if (cached == null || cached.loaded()){
+            return cached;
+        }
+        return this.loaded(cached, cached.load(fileChannel)) ? cached : null;
+    }
+
+    /**
+     * Find the cached copy of a file without waiting for the disk (e.g. on an event loop)
+     * @param file the file to download
+     * @param loader runs the read of the file into the cache
+     * @return the cached copy, or null if the file is not cached or is still being read by the loader (the caller reads the file itself)
+     */
+    entry get(File file, Executor loader){
+        entry cached = this.find(file);
+        if (cached == null || cached.loaded()){
+            return cached;
+        }
+        if (cached.loading.compareAndSet(false, true)){
+            loader.execute(() -> this.loaded(cached, cached.load(file)));
+        }
+        return null;
+    }
+
+    /**
+     * Drop an entry that could not be read
+     * @param cached the entry
+     * @param loaded whether it was read
+     * @return loaded
+     */
+    private boolean loaded(entry cached, boolean loaded){
+        if (!loaded){
+            synchronized (this){
+                if (this.entries.get(cached.key) == cached){
+                    this.remove(cached.key);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Drop the cached copy of a file that has been changed or removed
+     * @param file the file
+     */
+    void invalidate(File file){
+        String key = key(file);
+        if (key != null){
+            synchronized (this){
+                this.remove(key);
+                this.doorkeeper.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return the counters of the cache
+     */
+    String stats(){
+        synchronized (this){
+            return this.hits.sum() + " hits, " + this.misses.sum() + " misses, " + this.evictions.sum() + " evictions, "
+                + this.entries.size() + " files (" + this.cachedBytes + " of " + this.budget + " bytes)";
+        }
+    }
+
+    /**
+     * Drop the least recently used files until the copies fit in the budget
+     */
+    private void evict(){
+        Iterator<Map.Entry<String, entry>> eldest = this.entries.entrySet().iterator();
+        while (this.cachedBytes > this.budget && eldest.hasNext()){
+            this.cachedBytes -= eldest.next().getValue().size;
+            eldest.remove();
+            this.evictions.increment();
+        }
+    }
+
+    private void remove(String key){
+        entry removed = this.entries.remove(key);
+        if (removed != null){
+            this.cachedBytes -= removed.size;
+        }
+    }
+
+    /**
+     * @return the key of a file (its canonical path), or null if it has none
+     */
+    private static String key(File file){
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //-------------------------------------------------- Cache Entry --------------------------------------------------
+    static class entry{
+
+        private final String key; // key of the file in entries
+        final long size;
+        final long modified;
+        private volatile ByteBuffer contents; // null until the file has been read
+        private boolean failed = false;
+        private AtomicBoolean loading = new AtomicBoolean(); // a loader was given the read of the file
+        private byte[] digest; // SHA-256 of the contents, computed the first time it is needed
+
+        entry(String key, long size, long modified){
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Read the file into memory off the heap, from a channel of its own
+         * @return false if the file could not be read or no longer has the size it was cached with
+         */
+        private boolean load(File file){
+            try (FileChannel fileChannel = new FileInputStream(file).getChannel()){
+                return this.load(fileChannel);
+            } catch (IOException e) {
+                return this.loaded(); // the file could not be opened, another download may have read it already
+            }
+        }
+
+        /**
+         * Read the file into memory off the heap (only the first caller reads it, the others wait)
+         * @param fileChannel the open file, read with positional reads
+         * @return false if the file could not be read or no longer has the size it was cached with
+         */
+        private synchronized boolean load(FileChannel fileChannel){
+            if (this.contents == null && !this.failed){
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect((int) this.size);
+                    while (buffer.hasRemaining()){
+                        if (fileChannel.read(buffer, buffer.position()) < 0){
+                            break;
+                        }
+                    }
+                    this.failed = buffer.hasRemaining() || fileChannel.size() != this.size;
+                    this.contents = this.failed ? null : buffer;
+                } catch (IOException | OutOfMemoryError e) { // there may not be enough direct memory for the budget
+                    this.failed = true;
+                }
+            }
+            return !this.failed;
+        }
+
+        /**
+         * @return true if the file has been read, contents does not wait
+         */
+        boolean loaded(){
+            return this.contents != null;
+        }
+
+        /**
+         * @return a view of the file's bytes for one download
+         */
+        ByteBuffer contents(){
+            return this.contents.duplicate().clear();
+        }
+
+        /**
+         * @return SHA-256 of the whole file
+         */
+        synchronized byte[] digest(){
+            if (this.digest == null){
+                try {
+                    MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                    sha256.update(this.contents());
+                    this.digest = sha256.digest();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e); // every Java runtime has SHA-256
+                }
+            }
+            return this.digest.clone();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram
+ * values are counted in buckets that double in width, each split into SUB_BUCKETS equal parts,
+ * so every percentile is within 1% of the recorded value while the histogram stays a fixed size;
+ * any number of threads can record into it at once
+ */
+public class latencyHistogram{
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // parts of each bucket, 128 keeps the error under 1%
+    private static final int BUCKETS = 64 - SUB_BUCKET_BITS; // enough for any positive long
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS * SUB_BUCKETS);
+
+    /**
+     * Count a value
+     * @param value the value (e.g. nanoseconds), negative values count as 0
+     */
+    void record(long value){
+        this.counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    /**
+     * @return number of values that were counted
+     */
+    long count(){
+        long count = 0;
+        for (int i=0; i<this.counts.length(); i++){
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile (e.g. 99.9)
+     * @return the smallest value that at least that percent of the counted values are not above, 0 if nothing was counted
+     */
+    long percentile(double percentile){
+        long count = this.count();
+        long wanted = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i=0; i<this.counts.length(); i++){
+            seen += this.counts.get(i);
+            if (seen >= wanted){
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the largest value that was counted (to the precision of its bucket)
+     */
+    long max(){
+        for (int i=this.counts.length()-1; i>=0; i--){
+            if (this.counts.get(i) > 0){
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Values below SUB_BUCKETS get an index each, above that the index is the bucket (how far the value has to be shifted
+     * to fit in SUB_BUCKET_BITS + 1 bits, plus 1) followed by the SUB_BUCKET_BITS bits below the highest one
+     */
+    private static int index(long value){
+        if (value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that is counted at an index
+     */
+    private static long highestValue(int index){
+        int bucket = index / SUB_BUCKETS;
+        if (bucket == 0){
+            return index;
+        }
+        long top = (index % SUB_BUCKETS) + SUB_BUCKETS; // put back the highest bit
+        return ((top + 1) << (bucket - 1)) - 1;
+    }
+}
@@ -0,0 +1,326 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.io.*;
+
+/**
+ * Drive a server with many simulated clients running a mix of commands, and report the latency and throughput of each command
+ * every simulated client works in a directory of its own on the server and runs its commands one after another, each on a new connection
+ * like the command line client; latencies are kept in a histogram per command and completed commands are counted per second
+ */
+public class loadGenerator{
+
+    private static final String DEFAULT_MIX = "dir=30,mkdir=10,rm=10,upload=20,download=30"; // weights of the commands unless told otherwise
+    private static final int DEFAULT_FILE_KB = 64; // size of the uploaded and downloaded files unless told otherwise
+    private static final String[] OPERATIONS = {"dir", "mkdir", "rm", "upload", "download"};
+    private static final int CLIENT_STACK_SIZE = 256 * 1024; // keep the stacks of thousands of client threads small
+
+    //-------------------------------------------------- Methods to Check Arguments --------------------------------------------------
+
+    /**
+     * Check that the correct amount of arguments was provided and that the mix only has known commands
+     * @param args arguements from main
+     * @return true if the arguments are valid, otherwise return false
+     */
+    private static boolean checkCommand(String[] args) {
+        if (args.length < 2 || args.length > 4){
+            System.err.println("loadGenerator: takes 2 to 4 arguments (<clients> <seconds> [<mix>] [<file KB>])!");
+            return false;
+        }
+        if (!args[0].matches("[0-9]{1,5}") || Integer.parseInt(args[0]) == 0){
+            System.err.println("loadGenerator: <clients> has to be a number from 1 to 99999!");
+            return false;
+        }
+        if (!args[1].matches("[0-9]{1,6}") || Integer.parseInt(args[1]) == 0){
+            System.err.println("loadGenerator: <seconds> has to be a number from 1 to 999999!");
+            return false;
+        }
+        if (args.length > 3 && !args[3].matches("[0-9]{1,9}")){
+            System.err.println("loadGenerator: <file KB> has to be a number from 0 to 999999999!");
+            return false;
+        }
+        if (args.length > 2){
+            int total = 0;
+            for (String weight : args[2].split(",")){
+                String[] parts = weight.split("=");
+                if (parts.length != 2 || !List.of(OPERATIONS).contains(parts[0]) || !parts[1].matches("[0-9]{1,6}")){
+                    System.err.println("loadGenerator: \"" + weight + "\" is not a command=weight pair (commands: " + String.join(", ", OPERATIONS) + ")");
+                    return false;
+                }
+                total += Integer.parseInt(parts[1]);
+            }
+            if (total == 0){
+                System.err.println("loadGenerator: the mix needs at least one command with a weight above 0!");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //-------------------------------------------------- Load Generator Methods & Variables --------------------------------------------------
+
+    private String host;
+    private int port;
+    private String[] mix = new String[100]; // a command for every percent of the mix
+    private long fileSize;
+    private File sourceFile; // the file every upload sends
+
+    private Map<String, latencyHistogram> latencies = new LinkedHashMap<>(); // nanoseconds per command, by command
+    private Map<String, LongAdder> errors = new LinkedHashMap<>(); // failed commands, by command
+    private AtomicLongArray completedPerSecond; // completed commands in each second of the run
+
+    /**
+     * @param host server's computer name
+     * @param port server's port number
+     * @param mix weights of the commands (e.g. "dir=30,upload=70")
+     * @param fileSize bytes in the uploaded and downloaded files
+     */
+    public loadGenerator(String host, int port, String mix, long fileSize){
+        this.host = host;
+        this.port = port;
+        this.fileSize = fileSize;
+        for (String operation : OPERATIONS){
+            this.latencies.put(operation, new latencyHistogram());
+            this.errors.put(operation, new LongAdder());
+        }
+
+        // spread the commands over the slots of the mix by weight
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        int total = 0;
+        for (String weight : mix.split(",")){
+            String[] parts = weight.split("=");
+            weights.put(parts[0], Integer.parseInt(parts[1]));
+            total += Integer.parseInt(parts[1]);
+        }
+        int slot = 0;
+        int cumulative = 0;
+        for (Map.Entry<String, Integer> weight : weights.entrySet()){
+            cumulative += weight.getValue();
+            int end = (int) Math.round(cumulative * 100.0 / total);
+            while (slot < end){
+                this.mix[slot++] = weight.getKey();
+            }
+        }
+    }
+
+    /**
+     * Run the simulated clients for a while, then print the report
+     * @param clients number of simulated clients
+     * @param seconds how long the clients keep running commands
+     * @return true if every command succeeded
+     */
+    private boolean run(int clients, int seconds) throws IOException, InterruptedException{
+        this.completedPerSecond = new AtomicLongArray(seconds + 1);
+        File localDirectory = new File("load-client");
+        localDirectory.mkdir();
+        this.sourceFile = new File(localDirectory, "source.bin");
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random();
+        try (OutputStream fileOutputStream = new BufferedOutputStream(new FileOutputStream(this.sourceFile))){
+            for (long written = 0; written < this.fileSize; written += block.length){
+                random.nextBytes(block);
+                fileOutputStream.write(block, 0, (int) Math.min(block.length, this.fileSize - written));
+            }
+        }
+        if (!this.command("mkdir", "/load")){
+            System.err.println("loadGenerator: cannot create /load on the server (remove it if a previous run left it behind)");
+            return false;
+        }
+
+        // every client sets up its directory first, then they all start at the same moment
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] start = new long[1];
+        List<Thread> threads = new ArrayList<>();
+        for (int i=0; i<clients; i++){
+            simulatedClient simulated = new simulatedClient(i, localDirectory);
+            Thread thread = new Thread(null, () -> {
+                try {
+                    simulated.setup();
+                    ready.countDown();
+                    go.await();
+                    simulated.run(start[0], start[0] + seconds * 1_000_000_000L);
+                    simulated.cleanup();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "simulated client " + i, CLIENT_STACK_SIZE);
+            thread.start();
+            threads.add(thread);
+        }
+        ready.await();
+        System.out.println("loadGenerator: " + clients + " clients running for " + seconds + " s");
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // dir prints its listing even when the client is quiet
+        start[0] = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads){
+            thread.join();
+        }
+        System.setOut(stdout);
+        this.command("rmdir", "/load");
+        this.sourceFile.delete();
+        localDirectory.delete();
+
+        this.report(seconds);
+        return this.errors.values().stream().mapToLong(LongAdder::sum).sum() == 0;
+    }
+
+    /**
+     * Print the latency percentiles of every command and the throughput of each second
+     */
+    private void report(int seconds){
+        System.out.println(String.format("%-9s %9s %7s %9s %10s %10s %10s %10s", "command", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        long total = 0;
+        for (String operation : OPERATIONS){
+            latencyHistogram histogram = this.latencies.get(operation);
+            long count = histogram.count();
+            total += count;
+            if (count > 0){
+                System.out.println(String.format("%-9s %9d %7d %9.1f %10.2f %10.2f %10.2f %10.2f", operation, count, this.errors.get(operation).sum(), count / (double) seconds,
+                    histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6, histogram.max() / 1e6));
+            }
+        }
+        System.out.println(String.format("%-9s %9d %7s %9.1f", "total", total, "", total / (double) seconds));
+
+        StringBuilder timeline = new StringBuilder("ops per second:");
+        for (int second=0; second<seconds; second++){
+            timeline.append(" ").append(this.completedPerSecond.get(second));
+        }
+        System.out.println(timeline);
+    }
+
+    /**
+     * Run a command with the command line client on a connection of its own
+     * @param args the command and its arguments
+     * @return true if successful, false otherwise
+     */
+    private boolean command(String... args){
+        client myClient = new client(this.host, this.port);
+        myClient.quiet = true;
+        return myClient.execute(args);
+    }
+
+    //-------------------------------------------------- Simulated Client --------------------------------------------------
+    private class simulatedClient{
+
+        private Random random;
+        private String directory; // the client's directory on the server
+        private File copy; // where downloads are written
+        private Deque<String> files = new ArrayDeque<>(); // files the client uploaded and has not removed
+        private List<String> directories = new ArrayList<>(); // directories the client made
+        private int created = 0; // names used so far, every upload and mkdir gets a new one so nothing resumes
+
+        simulatedClient(int id, File localDirectory){
+            this.random = new Random(id);
+            this.directory = "/load/client" + id;
+            this.copy = new File(localDirectory, "copy" + id + ".bin");
+        }
+
+        /**
+         * Make the client's directory and the file its downloads fetch
+         */
+        void setup(){
+            command("mkdir", this.directory);
+            command("upload", sourceFile.getPath(), this.directory + "/download.bin");
+        }
+
+        /**
+         * Run commands from the mix until the end of the run
+         * @param start nanoTime the run started at
+         * @param end nanoTime the run ends at
+         */
+        void run(long start, long end){
+            long now = System.nanoTime();
+            while (now < end){
+                String operation = mix[this.random.nextInt(mix.length)];
+                String[] args = this.nextCommand(operation);
+                if (args == null){
+                    now = System.nanoTime(); // the run still ends on time when nothing can run
+                    continue;
+                }
+                boolean OK = command(args);
+                long finished = System.nanoTime();
+                latencies.get(operation).record(finished - now);
+                if (!OK){
+                    errors.get(operation).increment();
+                }
+                else if (operation.equals("upload")){
+                    this.files.add(args[2]);
+                }
+                else if (operation.equals("mkdir")){
+                    this.directories.add(args[1]);
+                }
+                int second = (int) ((finished - start) / 1_000_000_000L);
+                if (second < completedPerSecond.length()){
+                    completedPerSecond.incrementAndGet(second);
+                }
+                now = finished;
+            }
+        }
+
+        /**
+         * @param operation the command to run
+         * @return its arguments, or null if it cannot run right now (rm with no file to remove)
+         */
+        private String[] nextCommand(String operation){
+            switch(operation){
+                case "dir":
+                    return new String[] {"dir", this.directory};
+                case "mkdir":
+                    return new String[] {"mkdir", this.directory + "/directory" + (this.created++)};
+                case "rm":
+                    return this.files.isEmpty() ? null : new String[] {"rm", this.files.poll()};
+                case "upload":
+                    return new String[] {"upload", sourceFile.getPath(), this.directory + "/file" + (this.created++) + ".bin"};
+                default:
+                    this.copy.delete(); // download the whole file, not resume it
+                    return new String[] {"download", this.directory + "/download.bin", this.copy.getPath()};
+            }
+        }
+
+        /**
+         * Remove everything the client made on the server
+         */
+        void cleanup(){
+            for (String file : this.files){
+                command("rm", file);
+            }
+            for (String directory : this.directories){
+                command("rmdir", directory);
+            }
+            command("rm", this.directory + "/download.bin");
+            command("rmdir", this.directory);
+            this.copy.delete();
+        }
+    }
+
+    //-------------------------------------------------- Main Method --------------------------------------------------
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        // check that the correct number of arguments are provided
+        if (!checkCommand(args)){
+            System.exit(1);
+        }
+
+        // check that environment variable PA1_SERVER is set
+        if (System.getenv("PA1_SERVER") == null){
+            System.err.println("loadGenerator: need to export PA1_SERVER=<computername:portnumber>");
+            System.exit(1);
+        }
+
+        // obtain the server's host & port # from PA1_SERVER
+        String[] PA1_SERVER = System.getenv("PA1_SERVER").split(":");
+        String mix = (args.length > 2) ? args[2] : DEFAULT_MIX;
+        long fileSize = ((args.length > 3) ? Long.parseLong(args[3]) : DEFAULT_FILE_KB) * 1024;
+        loadGenerator myLoadGenerator = new loadGenerator(PA1_SERVER[0], Integer.parseInt(PA1_SERVER[1]), mix, fileSize);
+        System.exit(myLoadGenerator.run(Integer.parseInt(args[0]), Integer.parseInt(args[1])) ? 0 : 1);
+    }
+}
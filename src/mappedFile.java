@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.io.*;
+
+/**
+ * Memory mapped access to the file of a large verified transfer
+ * the file is mapped a window at a time and the bytes move between the mapping and the socket without being copied through a buffer on the heap,
+ * and the digest is taken from the same mapping instead of reading the file a second time
+ */
+public class mappedFile{
+
+    static final long WINDOW_SIZE = 64 * 1024 * 1024; // bytes of the file that are mapped at once
+    private static final long DEFAULT_THRESHOLD_MB = 64; // smallest file that is mapped unless PA1_MMAP_MB says otherwise
+
+    static long threshold = threshold(); // smallest file that is mapped, 0 if files are never mapped
+
+    private FileChannel fileChannel;
+    private FileChannel.MapMode mode;
+    private long size; // size of the file, no window goes past it
+    private MappedByteBuffer window; // the part of the file that is mapped
+    private long windowStart = -1; // first byte of the file in the window
+
+    /**
+     * @param fileChannel the file (it has to be opened for writing to receive, and already have its final size)
+     * @param mode READ_ONLY to send the file, READ_WRITE to receive it
+     */
+    public mappedFile(FileChannel fileChannel, FileChannel.MapMode mode) throws IOException{
+        this.fileChannel = fileChannel;
+        this.mode = mode;
+        this.size = fileChannel.size();
+    }
+
+    /**
+     * @param fileSize size of the file that will be transferred
+     * @return true if the transfer should go through a mapping
+     */
+    static boolean worthMapping(long fileSize){
+        return threshold > 0 && fileSize >= threshold;
+    }
+
+    /**
+     * Send bytes of the file and add them to the digest
+     * @param position first byte to send
+     * @param length number of bytes to send
+     * @param socketChannel the channel to the other side
+     * @param fileVerifier the digest of the transfer
+     */
+    void send(long position, long length, WritableByteChannel socketChannel, verifier fileVerifier) throws IOException{
+        long end = position + length;
+        while (position < end){
+            ByteBuffer bytes = this.slice(position, end - position);
+            try {
+                fileVerifier.update(bytes.duplicate());
+                while (bytes.hasRemaining()){
+                    socketChannel.write(bytes);
+                }
+            } catch (InternalError e) { // the file was truncated under the mapping
+                throw new EOFException("file became shorter while sending");
+            }
+            position += bytes.limit();
+        }
+    }
+
+    /**
+     * Receive bytes of the file and add them to the digest
+     * @param position first byte to receive
+     * @param length number of bytes to receive
+     * @param socketChannel the channel from the other side
+     * @param fileVerifier the digest of the transfer
+     * @return number of bytes received, less than length if the other side closed the connection
+     */
+    long receive(long position, long length, ReadableByteChannel socketChannel, verifier fileVerifier) throws IOException{
+        long start = position;
+        long end = position + length;
+        while (position < end){
+            ByteBuffer bytes = this.slice(position, end - position);
+            try {
+                while (bytes.hasRemaining()){
+                    if (socketChannel.read(bytes) < 0){
+                        fileVerifier.update(bytes.flip());
+                        return position + bytes.limit() - start;
+                    }
+                }
+                fileVerifier.update(bytes.flip());
+            } catch (InternalError e) { // the file was truncated under the mapping
+                throw new EOFException("file became shorter while receiving");
+            }
+            position += bytes.limit();
+        }
+        return position - start;
+    }
+
+    /**
+     * Map the window that holds a byte of the file
+     * @param position the byte
+     * @param length most bytes that are wanted from there
+     * @return a view of the bytes from position to the end of the window or position + length, whichever comes first
+     */
+    private ByteBuffer slice(long position, long length) throws IOException{
+        if (this.window == null || position < this.windowStart || position >= this.windowStart + this.window.capacity()){
+            this.windowStart = position - position % WINDOW_SIZE;
+            this.window = this.fileChannel.map(this.mode, this.windowStart, Math.min(WINDOW_SIZE, this.size - this.windowStart));
+        }
+        int offset = (int) (position - this.windowStart);
+        int bytes = (int) Math.min(length, this.window.capacity() - offset);
+        return this.window.duplicate().position(offset).limit(offset + bytes).slice();
+    }
+
+    private static long threshold(){
+        String threshold = System.getenv("PA1_MMAP_MB");
+        return ((threshold == null) ? DEFAULT_THRESHOLD_MB : Long.parseLong(threshold)) * 1024 * 1024;
+    }
+}
@@ -0,0 +1,431 @@
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.io.*;
+
+/**
+ * Index of the names, types, sizes and modification times under the server's working directory, so dir, stat, find
+ * and the checks commands make before they run do not have to ask the file system every time
+ * the index is built lazily: a directory is read once (one listing, no stat of its entries) when it is first asked about, and an entry
+ * is stat'ed once when its type, size or time is first needed; both are then served from memory
+ * every directory that is read is watched (WatchService), so changes made outside the server drop the stale entries, and the
+ * server's own commands update the index as soon as they change a path; paths that cannot be watched are never indexed and always
+ * go to the file system, as do paths outside the working directory
+ * the index only changes while holding its lock, and what was read from the file system is only kept if no change was applied
+ * while it was read (a change that happens after that has an event still waiting, which drops it again)
+ */
+public class metadataIndex{
+
+    private long maxEntries; // most names the listings may hold, directories over it are not indexed
+    private WatchService watcher; // null if the index is turned off or the file system cannot be watched
+    private Map<String, attributes> stats = new ConcurrentHashMap<>(); // by path inside the working directory, "" for the directory itself
+    private Map<String, Set<String>> listings = new ConcurrentHashMap<>(); // names in every directory that was read and is watched
+    private Map<String, WatchKey> keys = new ConcurrentHashMap<>();
+    private Map<WatchKey, String> directories = new ConcurrentHashMap<>();
+    private AtomicLong entries = new AtomicLong(); // names in all the listings
+    private AtomicLong generation = new AtomicLong(); // number of changes applied to the index
+
+    final LongAdder hits = new LongAdder(); // questions answered without the file system
+    final LongAdder misses = new LongAdder();
+
+    /**
+     * Type, size and last modified time (milliseconds) of a path
+     */
+    static class attributes{
+        final int type; // one of the protocol entry types
+        final long size;
+        final long modified;
+
+        attributes(int type, long size, long modified){
+            this.type = type;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Called for every entry a find matches
+     */
+    interface visitor{
+        void found(String path, attributes found) throws IOException;
+    }
+
+    /**
+     * @param maxEntries most names the index holds, 0 turns it off (every question goes to the file system)
+     */
+    public metadataIndex(long maxEntries){
+        this.maxEntries = maxEntries;
+        if (maxEntries == 0){
+            return;
+        }
+        try {
+            this.watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("server: changes to the files cannot be watched, the metadata index is off (" + e + ")");
+            return;
+        }
+        Thread watchThread = new Thread(this::watch, "metadata index watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    //-------------------------------------------------- Questions --------------------------------------------------
+
+    /**
+     * @param file a path on the server
+     * @return the type, size and last modified time of the path, null if it does not exist or is the staged file of an upload
+     */
+    attributes stat(File file){
+        if (stagedFile.isStaging(file.getName())){
+            return null;
+        }
+        String key = key(file);
+        if (key == null || this.watcher == null){
+            return read(file);
+        }
+        attributes known = this.stats.get(key);
+        if (known != null){
+            this.hits.increment();
+            return known;
+        }
+
+        // a name that is not in its directory's listing does not exist
+        Set<String> siblings = key.isEmpty() ? null : this.listings.get(parent(key));
+        if (siblings != null && !siblings.contains(name(key))){
+            this.hits.increment();
+            return null;
+        }
+        this.misses.increment();
+        long before = this.generation.get();
+        attributes found = read(file);
+        if (found != null && siblings != null){
+            synchronized (this){
+                if (this.generation.get() == before){
+                    this.stats.put(key, found); // the directory is watched, so the entry is dropped again when it changes
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param file a path on the server
+     * @return true if the path is a directory
+     */
+    boolean isDirectory(File file){
+        attributes found = this.stat(file);
+        return found != null && found.type == protocol.ENTRY_DIRECTORY;
+    }
+
+    /**
+     * @param file a path on the server
+     * @return true if the path is a regular file
+     */
+    boolean isFile(File file){
+        attributes found = this.stat(file);
+        return found != null && found.type == protocol.ENTRY_FILE;
+    }
+
+    /**
+     * @param directory a path on the server
+     * @return the names in the directory in alphabetical order (without the staged files of uploads), null if it is not a directory
+     */
+    List<String> list(File directory){
+        String key = key(directory);
+        Set<String> names = (key == null) ? null : this.listings.get(key);
+        if (names != null){
+            this.hits.increment();
+        }
+        else{
+            this.misses.increment();
+            names = this.read(directory, key);
+            if (names == null){
+                return null;
+            }
+        }
+        List<String> listed = new ArrayList<>(names);
+        listed.removeIf(stagedFile::isStaging);
+        return listed;
+    }
+
+    /**
+     * Find the entries under a directory whose name matches a pattern
+     * @param directory a path on the server
+     * @param pattern * matches any part of a name and ? one character; a pattern with a / is matched against the path inside the directory
+     * (where ** also matches across directories) instead of the name
+     * @param found called for every match with its path inside the directory
+     * @return false if the path is not a directory
+     */
+    boolean find(File directory, String pattern, visitor found) throws IOException{
+        if (!this.isDirectory(directory)){
+            return false;
+        }
+        Pattern matcher = glob(pattern);
+        boolean wholePath = pattern.contains("/");
+        Deque<String> pending = new ArrayDeque<>(); // paths inside the directory, "" for the directory itself
+        Set<String> visited = new HashSet<>(); // canonical paths, so links back up the tree are only searched once
+        pending.push("");
+        while (!pending.isEmpty()){
+            String path = pending.pop();
+            File searched = path.isEmpty() ? directory : new File(directory, path);
+            if (!visited.add(searched.getCanonicalPath())){
+                continue; // a link to a directory that was already searched, it is still found itself
+            }
+            List<String> names = this.list(searched);
+            if (names == null){
+                continue; // removed while it was searched
+            }
+            List<String> subdirectories = new ArrayList<>();
+            for (String name : names){
+                String entryPath = path.isEmpty() ? name : path + "/" + name;
+                attributes entry = this.stat(new File(directory, entryPath));
+                if (entry == null){
+                    continue;
+                }
+                if (matcher.matcher(wholePath ? entryPath : name).matches()){
+                    found.found(entryPath, entry);
+                }
+                if (entry.type == protocol.ENTRY_DIRECTORY){
+                    subdirectories.add(entryPath);
+                }
+            }
+            for (int i=subdirectories.size() - 1; i>=0; i--){
+                pending.push(subdirectories.get(i)); // searched in alphabetical order
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return what the index holds and how often it answered on its own
+     */
+    String stats(){
+        return String.format("%d directories, %d names, %d hits, %d misses", this.listings.size(), this.entries.get(), this.hits.sum(), this.misses.sum());
+    }
+
+    //-------------------------------------------------- Changes --------------------------------------------------
+
+    /**
+     * Update the index after a command created, changed or removed a path (directories created on the way to it included)
+     * @param file the path
+     */
+    synchronized void changed(File file){
+        String key = key(file);
+        if (key == null || this.watcher == null){
+            return;
+        }
+        this.generation.incrementAndGet();
+        this.forget(key);
+        boolean exists = file.exists();
+        for (String child = key; !child.isEmpty(); child = parent(child)){
+            String parent = parent(child);
+            this.stats.remove(parent); // its modification time changed
+            Set<String> siblings = this.listings.get(parent);
+            boolean known = siblings != null && siblings.contains(name(child));
+            if (siblings != null){
+                this.update(siblings, name(child), exists);
+            }
+            if (!exists || known){
+                break; // a removal only changes the parent, and the directories above one that was already there did not change
+            }
+        }
+    }
+
+    /**
+     * Apply the changes the WatchService reports until the server stops
+     */
+    private void watch(){
+        try {
+            while (true){
+                WatchKey key = this.watcher.take();
+                synchronized (this){
+                    this.generation.incrementAndGet();
+                    String directory = this.directories.get(key);
+                    Set<String> names = (directory == null) ? null : this.listings.get(directory);
+                    if (names != null){
+                        this.stats.remove(directory); // its modification time changed
+                        for (WatchEvent<?> event : key.pollEvents()){
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+                                this.forget(directory); // events were lost, the directory is read again when it is next asked about
+                                break;
+                            }
+                            String name = event.context().toString();
+                            String path = directory.isEmpty() ? name : directory + "/" + name;
+                            this.forget(path);
+                            if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY){
+                                this.update(names, name, event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                            }
+                        }
+                    }
+                    if (!key.reset() && directory != null){
+                        this.forget(directory); // the directory is gone
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the server is shutting down
+        }
+    }
+
+    /**
+     * Drop what is known about a path and, if it is a directory, everything under it
+     * @param key the path inside the working directory
+     */
+    private void forget(String key){
+        this.stats.remove(key);
+        Set<String> names = this.listings.remove(key);
+        WatchKey watchKey = this.keys.remove(key);
+        if (watchKey != null){
+            watchKey.cancel();
+            this.directories.remove(watchKey);
+        }
+        if (names != null){
+            this.entries.addAndGet(-names.size());
+            for (String name : names){
+                this.forget(key.isEmpty() ? name : key + "/" + name);
+            }
+        }
+    }
+
+    /**
+     * Add a name to a listing or take it out
+     */
+    private void update(Set<String> names, String name, boolean exists){
+        if (exists ? names.add(name) : names.remove(name)){
+            this.entries.addAndGet(exists ? 1 : -1);
+        }
+    }
+
+    //-------------------------------------------------- File System --------------------------------------------------
+
+    /**
+     * Read a directory from the file system, and keep its listing if it can be watched
+     * @param directory the directory
+     * @param key its path inside the working directory, null if it is outside
+     * @return the names in the directory, null if it is not a directory
+     */
+    private Set<String> read(File directory, String key){
+        if (key == null || this.watcher == null || this.entries.get() >= this.maxEntries){
+            String[] content = directory.list();
+            return (content == null) ? null : new ConcurrentSkipListSet<>(List.of(content));
+        }
+        synchronized (this){
+            Set<String> known = this.listings.get(key);
+            if (known != null){
+                return known; // read by another thread while this one waited for the lock
+            }
+
+            // the watch is set before the directory is read and its events wait for the lock, so nothing that changes while it is read is missed
+            WatchKey watchKey = null;
+            try {
+                watchKey = directory.toPath().register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | InvalidPathException e) {
+                // not a directory, too many watches, or a name the file system encoding cannot hold; the directory is not indexed
+            }
+            String[] content = directory.list();
+            if (content == null || watchKey == null){
+                if (watchKey != null){
+                    watchKey.cancel();
+                }
+                return (content == null) ? null : new ConcurrentSkipListSet<>(List.of(content));
+            }
+            Set<String> names = new ConcurrentSkipListSet<>(List.of(content));
+            this.generation.incrementAndGet();
+            this.listings.put(key, names);
+            this.entries.addAndGet(names.size());
+            this.keys.put(key, watchKey);
+            this.directories.put(watchKey, key);
+            return names;
+        }
+    }
+
+    /**
+     * @return the type, size and last modified time of a path from the file system, null if it does not exist
+     */
+    private static attributes read(File file){
+        if (file.isDirectory()){
+            return new attributes(protocol.ENTRY_DIRECTORY, 0, file.lastModified());
+        }
+        if (file.isFile()){
+            return new attributes(protocol.ENTRY_FILE, file.length(), file.lastModified());
+        }
+        return file.exists() ? new attributes(protocol.ENTRY_OTHER, 0, file.lastModified()) : null;
+    }
+
+    //-------------------------------------------------- Paths --------------------------------------------------
+
+    /**
+     * @param file a path on the server
+     * @return the path inside the working directory with its parts separated by /, "" for the working directory itself,
+     * null if the path is absolute or leaves the working directory
+     */
+    private static String key(File file){
+        if (file.isAbsolute()){
+            return null;
+        }
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : file.getPath().split(Pattern.quote(File.separator) + "|/")){
+            if (part.isEmpty() || part.equals(".")){
+                continue;
+            }
+            if (part.equals("..")){
+                if (parts.pollLast() == null){
+                    return null;
+                }
+                continue;
+            }
+            parts.addLast(part);
+        }
+        return String.join("/", parts);
+    }
+
+    private static String parent(String key){
+        int slash = key.lastIndexOf('/');
+        return (slash < 0) ? "" : key.substring(0, slash);
+    }
+
+    private static String name(String key){
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @param pattern a glob of *, ** and ?
+     * @return the pattern as a regular expression
+     */
+    private static Pattern glob(String pattern){
+        StringBuilder regex = new StringBuilder();
+        for (int i=0; i<pattern.length(); i++){
+            char c = pattern.charAt(i);
+            if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*'){
+                regex.append(".*");
+                i++;
+            }
+            else if (c == '*'){
+                regex.append("[^/]*");
+            }
+            else if (c == '?'){
+                regex.append("[^/]");
+            }
+            else{
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
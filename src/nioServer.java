@@ -0,0 +1,903 @@
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.io.*;
+
+/**
+ * Non-blocking server engine
+ * a few event loop threads multiplex every connection with a Selector instead of giving each connection its own thread,
+ * each connection is a small state machine that runs the same commands (and speaks the same protocol) as server.serverThread,
+ * commands that have no state machine here are handed off to a blocking server.serverThread on a worker thread once their request has been read
+ */
+public class nioServer{
+
+    private static final int HEADER_BUFFER_SIZE = 1024; // size of the read buffer while a command is being decoded
+    private static final int DATA_BUFFER_SIZE = 64 * 1024; // size of the read buffer while a file is being uploaded
+    private static final long HANDSHAKE_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1); // how often stalled handshakes are looked for
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toNanos(120); // how long shutdown waits for remaining connections
+
+    // states of a connection
+    private static final int READ_COMMAND = 0;
+    private static final int READ_PATH = 1;
+    private static final int READ_FILE_SIZE = 2;
+    private static final int READ_UPLOAD_DATA = 3;
+    private static final int READ_RESUME_FLAG = 4;
+    private static final int READ_RESUME_OFFSET = 5;
+    private static final int WRITE_DOWNLOAD_DATA = 6;
+    private static final int WAIT_FOR_SHUTDOWN = 7;
+    private static final int CLOSING = 8;
+    private static final int HANDED_OFF = 9;
+
+    private server owner; // server whose serverThread runs the commands that are handed off
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers; // threads that run the commands that are handed off
+    private eventLoop[] eventLoops;
+    private int nextEventLoop = 0; // event loop that the next accepted connection is given to
+
+    private AtomicInteger activeConnections = new AtomicInteger(); // connections that have not finished their command
+    private volatile boolean shuttingDown = false;
+    private volatile boolean stopped = false;
+    private long shutdownDeadline;
+
+    /**
+     * Setup the event loops
+     * @param owner server whose serverThread runs the commands that are handed off
+     * @param serverChannel channel the server accepts connections on
+     * @param threads number of event loop threads
+     * @param workers executor service that runs the commands that are handed off
+     */
+    public nioServer(server owner, ServerSocketChannel serverChannel, int threads, ExecutorService workers) throws IOException{
+        this.owner = owner;
+        this.serverChannel = serverChannel;
+        this.workers = workers;
+        this.eventLoops = new eventLoop[threads];
+        for (int i=0; i<threads; i++){
+            this.eventLoops[i] = new eventLoop(i);
+        }
+    }
+
+    /**
+     * Run the event loops until the server is shutdown
+     */
+    public void start() throws IOException, InterruptedException{
+        // the first event loop also accepts new connections
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+
+        Thread[] threads = new Thread[this.eventLoops.length];
+        for (int i=0; i<threads.length; i++){
+            threads[i] = new Thread(this.eventLoops[i], "event loop " + i);
+            threads[i].start();
+        }
+        for (int i=0; i<threads.length; i++){
+            threads[i].join();
+        }
+        this.workers.shutdown();
+    }
+
+    /**
+     * Accept every pending connection and hand them to the event loops in turn
+     */
+    private void accept() throws IOException{
+        SocketChannel socketChannel;
+        while ((socketChannel = this.serverChannel.accept()) != null){
+            socketChannel.configureBlocking(false);
+            tuning.configure(socketChannel.socket());
+            this.activeConnections.incrementAndGet();
+            this.owner.metrics.connectionOpened();
+            this.eventLoops[this.nextEventLoop].assign(socketChannel);
+            this.nextEventLoop = (this.nextEventLoop + 1) % this.eventLoops.length;
+        }
+    }
+
+    /**
+     * Stop accepting connections and wait for the remaining ones to finish
+     */
+    private synchronized void beginShutdown(){
+        if (!this.shuttingDown){
+            System.out.println("shutdown: beginning shutdown procedure");
+            System.out.println("shutdown: waiting for remaining tasks to complete ...");
+            this.shutdownDeadline = System.nanoTime() + SHUTDOWN_TIMEOUT;
+            this.shuttingDown = true;
+            this.owner.drainSessions(); // sessions run on the workers, let them finish their commands and close
+            for (eventLoop loop : this.eventLoops){
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Stop every event loop
+     */
+    private void stop(){
+        this.stopped = true;
+        for (eventLoop loop : this.eventLoops){
+            loop.selector.wakeup();
+        }
+    }
+
+    //-------------------------------------------------- Event Loop Methods & Variables --------------------------------------------------
+    private class eventLoop implements Runnable{
+
+        private int id;
+        private Selector selector;
+        private ConcurrentLinkedQueue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>(); // connections waiting to be registered
+        private long nextHandshakeCheck = 0; // when the stalled handshakes are next looked for
+        private List<connection> handOffs = new ArrayList<>(); // connections to give to the workers after this round of events
+
+        public eventLoop(int id) throws IOException{
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Give this event loop a new connection to serve
+         * @param socketChannel the accepted connection
+         */
+        public void assign(SocketChannel socketChannel){
+            this.newConnections.add(socketChannel);
+            this.selector.wakeup();
+        }
+
+        /**
+         * Wait for connections to become ready and advance their state machines
+         */
+        @Override
+        public void run() {
+            while (!stopped){
+                try {
+                    // keys selected while handing off connections have not been processed yet
+                    if (this.selector.selectedKeys().isEmpty()){
+                        this.selector.select(1000);
+                    }
+                    else{
+                        this.selector.selectNow();
+                    }
+
+                    // register the connections the acceptor handed to us
+                    SocketChannel socketChannel;
+                    while ((socketChannel = this.newConnections.poll()) != null){
+                        connection newConnection = new connection(this.id, socketChannel);
+                        newConnection.key = socketChannel.register(this.selector, SelectionKey.OP_READ, newConnection);
+                    }
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()){
+                            continue;
+                        }
+
+                        if (key.isAcceptable()){
+                            accept();
+                            continue;
+                        }
+
+                        connection activeConnection = (connection) key.attachment();
+                        try {
+                            if (key.isReadable()){
+                                activeConnection.read();
+                            }
+                            if (key.isValid() && key.isWritable()){
+                                activeConnection.write();
+                            }
+                        } catch (IOException | RuntimeException e) { // a bad connection is closed, the others on the loop carry on
+                            System.err.println("server event loop " + this.id + ": " + activeConnection.command + " error (" + e + ")");
+                            owner.metrics.error(activeConnection.command, e);
+                            activeConnection.close();
+                        }
+                    }
+
+                    this.startHandOffs();
+                    this.closeStalledHandshakes();
+                    if (shuttingDown){
+                        this.checkShutdown();
+                    }
+                } catch (IOException e) {
+                    System.err.println("server event loop " + this.id + ": error (" + e + ")");
+                }
+            }
+
+            // close the connections that did not finish before the server stopped
+            for (SelectionKey key : this.selector.keys()){
+                if (key.attachment() instanceof connection){
+                    ((connection) key.attachment()).close();
+                }
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                System.err.println("server event loop " + this.id + ": error closing selector (" + e + ")");
+            }
+        }
+
+        /**
+         * Take the connections that were handed off out of the selector and give them to the workers
+         */
+        private void startHandOffs(){
+            if (this.handOffs.isEmpty()){
+                return;
+            }
+            for (connection handOff : this.handOffs){
+                handOff.key.cancel();
+            }
+            try {
+                this.selector.selectNow(); // deregister the cancelled keys so the channels can block again
+            } catch (IOException e) {
+                System.err.println("server event loop " + this.id + ": error (" + e + ")");
+            }
+            for (connection handOff : this.handOffs){
+                try {
+                    handOff.startWorker();
+                } catch (IOException | RejectedExecutionException e) {
+                    System.err.println("server event loop " + this.id + ": " + handOff.command + " error (" + e + ")");
+                    owner.metrics.error(handOff.command, e);
+                    handOff.close();
+                }
+            }
+            this.handOffs.clear();
+        }
+
+        /**
+         * Close the connections that have not sent their command and path within server.HANDSHAKE_TIMEOUT
+         */
+        private void closeStalledHandshakes(){
+            long now = System.nanoTime();
+            if (now < this.nextHandshakeCheck){
+                return;
+            }
+            this.nextHandshakeCheck = now + HANDSHAKE_CHECK_INTERVAL;
+
+            for (SelectionKey key : this.selector.keys()){
+                if (key.attachment() instanceof connection){
+                    connection pendingConnection = (connection) key.attachment();
+                    if (pendingConnection.state <= READ_PATH && now - pendingConnection.acceptedAt > TimeUnit.MILLISECONDS.toNanos(server.HANDSHAKE_TIMEOUT)){
+                        System.err.println("server event loop " + this.id + ": client did not send a command in time");
+                        pendingConnection.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop accepting once shutdown begins and answer the shutdown request once every other connection is done
+         */
+        private void checkShutdown() throws IOException{
+            if (this.id == 0 && serverChannel.isOpen()){
+                serverChannel.close(); // stop accepting connections
+            }
+
+            boolean finished = activeConnections.get() == 0;
+            if (!finished && System.nanoTime() < shutdownDeadline){
+                return;
+            }
+            for (SelectionKey key : this.selector.keys()){
+                if (key.attachment() instanceof connection && ((connection) key.attachment()).state == WAIT_FOR_SHUTDOWN){
+                    connection shutdownConnection = (connection) key.attachment();
+                    if (finished){
+                        System.out.println("shutdown: all tasks have been completed");
+                    }
+                    else {
+                        System.out.println("shutdown: there are still incomplete tasks");
+                    }
+                    shutdownConnection.reply(finished);
+                    shutdownConnection.finish();
+                    shutdownConnection.write();
+                    stop();
+                }
+            }
+        }
+    }
+
+    //-------------------------------------------------- Connection Methods & Variables --------------------------------------------------
+    private class connection{
+
+        private int eventLoopId;
+        private SocketChannel socketChannel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(HEADER_BUFFER_SIZE); // bytes from the client (left in write mode)
+        private ByteBuffer out = ByteBuffer.allocate(HEADER_BUFFER_SIZE); // bytes for the client (left in write mode)
+        private StringBuilder line = new StringBuilder(); // characters of the line that is being read
+        private int version = 0; // version of the binary protocol the client speaks, 0 for legacy clients
+        private String handOffPath; // path of a command that is handed off
+        private byte[] leftover; // bytes that were read after the request of a command that is handed off
+        private boolean counted = true; // whether this connection is counted in activeConnections
+        private boolean closed = false;
+        private long acceptedAt = System.nanoTime();
+        private long commandStarted = 0; // when the command was read, 0 until then
+        private long transferStart = 0; // position the transfer of the file started at (more than 0 if it resumed)
+
+        private int state = READ_COMMAND;
+        private String command = "connection";
+        private File file;
+        private FileChannel fileChannel;
+        private stagedFile staged; // where an upload is written until it is complete
+        private fileCache.entry cached; // cached copy of the file being downloaded, null if it is read from the file
+        private ByteBuffer cachedContents; // the part of the cached copy that has not been sent yet
+        private long fileSize;
+        private long position; // number of bytes of the file that have been written / sent
+        private long nextAck; // position at which a streamed upload is next acknowledged
+
+        public connection(int eventLoopId, SocketChannel socketChannel){
+            this.eventLoopId = eventLoopId;
+            this.socketChannel = socketChannel;
+        }
+
+        /**
+         * Read whatever the client has sent and advance the state machine
+         */
+        public void read() throws IOException{
+            // a binary request that does not fit yet needs a larger buffer
+            if (!this.in.hasRemaining()){
+                if (this.in.capacity() > protocol.MAX_STRING_LENGTH){
+                    throw new IOException("request is too long");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(this.in.capacity() * 2);
+                this.in.flip();
+                larger.put(this.in);
+                this.in = larger;
+            }
+
+            if (this.socketChannel.read(this.in) < 0){
+                if (this.state == READ_UPLOAD_DATA){
+                    System.err.println("server event loop " + this.eventLoopId + ": " + this.command + " error (client closed the connection)");
+                }
+                this.close();
+                return;
+            }
+            this.in.flip();
+            this.process();
+            this.in.compact();
+            this.write();
+        }
+
+        /**
+         * Send pending replies and file bytes to the client
+         */
+        public void write() throws IOException{
+            if (this.state == HANDED_OFF){
+                return; // the worker owns the connection now
+            }
+            if (this.out.position() > 0){
+                this.out.flip();
+                this.socketChannel.write(this.out);
+                this.out.compact();
+            }
+
+            // upload bytes that arrived while there was no room for their acknowledgement, the client may be waiting for it
+            if (this.state == READ_UPLOAD_DATA && this.in.position() > 0 && this.out.remaining() >= Long.BYTES){
+                this.in.flip();
+                this.process();
+                this.in.compact();
+            }
+
+            if (this.state == WRITE_DOWNLOAD_DATA && this.out.position() == 0 && this.cached != null){
+                if (this.cachedContents == null){
+                    this.cachedContents = this.cached.contents().position((int) this.position);
+                }
+                this.socketChannel.write(this.cachedContents); // stops when the socket buffer is full
+                this.position = this.cachedContents.position();
+                if (!this.cachedContents.hasRemaining()){
+                    this.finish();
+                }
+            }
+            else if (this.state == WRITE_DOWNLOAD_DATA && this.out.position() == 0){
+                while (this.position < this.fileSize){
+                    long bytes = this.fileChannel.transferTo(this.position, this.fileSize - this.position, this.socketChannel);
+                    if (bytes == 0){
+                        if (this.position >= this.fileChannel.size()){
+                            throw new EOFException("file became shorter while downloading");
+                        }
+                        break; // socket buffer is full, wait until it is writable again
+                    }
+                    this.position += bytes;
+                }
+                if (this.position >= this.fileSize){
+                    this.finish();
+                }
+            }
+
+            if (this.state == CLOSING && this.out.position() == 0){
+                this.close();
+                return;
+            }
+            this.updateInterest();
+        }
+
+        /**
+         * Consume as much of the input buffer as the current state allows
+         */
+        private void process() throws IOException{
+            boolean progress = true;
+            while (progress && this.key.isValid()){
+                progress = false;
+                switch (this.state){
+                    case READ_COMMAND:
+                        if (this.line.length() == 0 && this.in.hasRemaining() && (this.in.get(this.in.position()) & 0xFF) == protocol.MAGIC){
+                            progress = this.readBinaryRequest();
+                        }
+                        else if (this.readLine()){
+                            this.command = this.takeLine();
+                            progress = this.startCommand();
+                        }
+                        break;
+                    case READ_PATH:
+                        if (this.readLine()){
+                            this.runCommand(this.takeLine());
+                            progress = true;
+                        }
+                        break;
+                    case READ_FILE_SIZE:
+                        if (this.in.remaining() >= Long.BYTES){
+                            this.beginUpload(this.in.getLong());
+                            progress = true;
+                        }
+                        break;
+                    case READ_UPLOAD_DATA:
+                        // leave room for acknowledgements that have not been sent yet
+                        if (this.in.hasRemaining() && this.out.remaining() >= Long.BYTES){
+                            this.uploadData();
+                            progress = true;
+                        }
+                        break;
+                    case READ_RESUME_FLAG:
+                        if (this.in.remaining() >= 1){
+                            if (this.in.get() != 0){
+                                this.state = READ_RESUME_OFFSET;
+                            }
+                            else{
+                                this.state = WRITE_DOWNLOAD_DATA;
+                            }
+                            progress = true;
+                        }
+                        break;
+                    case READ_RESUME_OFFSET:
+                        if (this.in.remaining() >= Long.BYTES){
+                            this.position = this.in.getLong(); // number of bytes of the file the client already has
+                            if (this.position < 0 || this.position > this.fileSize){
+                                throw new IOException("resume offset " + this.position + " is outside of the file");
+                            }
+                            this.transferStart = this.position;
+                            owner.metrics.resumed(this.position);
+                            this.state = WRITE_DOWNLOAD_DATA;
+                            progress = true;
+                        }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Decode a binary request (magic, version, opcode and path) once all of it has arrived
+         * @return true if the state machine should keep processing input
+         */
+        private boolean readBinaryRequest() throws IOException{
+            int start = this.in.position();
+            if (this.in.remaining() < 3){
+                return false;
+            }
+            this.in.get(); // magic
+            int version = protocol.negotiate(this.in.get() & 0xFF);
+            int opcode = this.in.get() & 0xFF;
+            int length = protocol.readVarint(this.in);
+            if (length > protocol.MAX_STRING_LENGTH){
+                throw new IOException("path of " + length + " bytes is too long");
+            }
+            if (length == -1 || this.in.remaining() < length){ // readVarint rejects lengths that are negative
+                this.in.position(start); // wait for the rest of the request
+                return false;
+            }
+            byte[] pathBytes = new byte[length];
+            this.in.get(pathBytes);
+
+            this.version = version;
+            this.ensureOutCapacity(1);
+            this.out.put((byte) version); // let the client know which version will be spoken
+            if (version == 0){
+                System.err.println("server event loop " + this.eventLoopId + ": client speaks an unsupported protocol version");
+                this.finish();
+                return false;
+            }
+
+            String name = protocol.commandName(opcode);
+            this.command = (name == null) ? "" : name;
+            if (this.startCommand()){
+                this.runCommand(new String(pathBytes, StandardCharsets.UTF_8));
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Read characters (written with writeChars) into the current line
+         * @return true once a whole line has been read
+         */
+        private boolean readLine(){
+            while (this.in.remaining() >= Character.BYTES){
+                char nextChar = this.in.getChar();
+                if (nextChar == '\n'){
+                    return true;
+                }
+                this.line.append(nextChar);
+            }
+            return false;
+        }
+
+        /**
+         * @return the line that has been read, the next line starts empty
+         */
+        private String takeLine(){
+            String text = this.line.toString();
+            this.line.setLength(0);
+            return text;
+        }
+
+        /**
+         * Check the command that was read
+         * @return true if the state machine should keep processing input
+         */
+        private boolean startCommand() throws IOException{
+            switch (this.command){
+                case "shutdown":
+                    this.uncount(); // the shutdown request does not wait for itself
+                    this.state = WAIT_FOR_SHUTDOWN;
+                    beginShutdown();
+                    return false;
+                case "dir":
+                case "mkdir":
+                case "rmdir":
+                case "rm":
+                case "upload":
+                case "streamupload":
+                case "download":
+                    this.state = READ_PATH;
+                    return true;
+                default:
+                    if (protocol.isCommand(this.command)){
+                        this.state = READ_PATH; // a command that will be handed off
+                        return true;
+                    }
+                    this.finish(); // unknown commands are ignored like in server.serverThread
+                    return false;
+            }
+        }
+
+        /**
+         * Execute the command on the path that was read
+         * @param path server's file path sent by the client
+         */
+        private void runCommand(String path) throws IOException{
+            this.commandStarted = System.nanoTime();
+            owner.metrics.handshake(this.commandStarted - this.acceptedAt);
+            this.file = new File(path);
+            if (!scheduler.isMetadata(this.command) && owner.bandwidth.limited()){
+                this.handOff(path); // the event loops cannot wait for bandwidth, limited transfers run on a worker
+                return;
+            }
+            switch (this.command){
+                case "dir":
+                    // check that the path exists and is a directory
+                    List<String> content = owner.index.list(this.file); // served from the metadata index once the directory has been read
+                    if (content != null){
+                        this.reply(true);
+                        this.ensureOutCapacity(Integer.BYTES);
+                        this.out.putInt(content.size());
+                        for (String name : content){
+                            this.replyName(name);
+                        }
+                    }
+                    else{
+                        this.reply(false);
+                    }
+                    this.finish();
+                    break;
+                case "mkdir":
+                    boolean created = !stagedFile.isStaging(this.file.getName()) && this.file.mkdir();
+                    if (created){
+                        owner.changed(this.file);
+                    }
+                    this.reply(created);
+                    this.finish();
+                    break;
+                case "rmdir":
+                    boolean deleted = owner.index.isDirectory(this.file) && this.file.delete();
+                    if (deleted){
+                        owner.changed(this.file);
+                    }
+                    this.reply(deleted);
+                    this.finish();
+                    break;
+                case "rm":
+                    boolean removed = false;
+                    Lock removing = owner.locks.writing(this.file); // a download that already opened the file keeps reading it
+                    removing.lock();
+                    try {
+                        removed = owner.index.isFile(this.file) && this.file.delete();
+                        if (removed){
+                            owner.changed(this.file);
+                        }
+                    } finally {
+                        removing.unlock();
+                    }
+                    this.reply(removed);
+                    this.finish();
+                    break;
+                case "upload":
+                case "streamupload":
+                    // check that the client's filepath is valid
+                    if (owner.uploadable(this.file)){
+                        this.reply(true);
+                        this.state = READ_FILE_SIZE;
+                    }
+                    else{
+                        this.reply(false);
+                        this.finish();
+                    }
+                    break;
+                case "download":
+                    if (owner.index.isFile(this.file)){
+                        Lock reading = owner.locks.reading(this.file); // an upload that finishes now replaces the file before it is opened or after, never halfway
+                        reading.lock();
+                        try {
+                            this.cached = owner.cache.get(this.file, workers); // a file that is not in memory yet is read into the cache on a worker, this download reads it from the disk
+                            if (this.cached == null){
+                                this.fileChannel = new FileInputStream(this.file).getChannel();
+                            }
+                        } finally {
+                            reading.unlock();
+                        }
+                        this.fileSize = (this.cached != null) ? this.cached.size : this.fileChannel.size();
+                        this.reply(true);
+                        this.out.putLong(this.fileSize); // let the client know the file size
+                        this.state = READ_RESUME_FLAG;
+                    }
+                    else{
+                        this.finish(); // like server.serverThread the client is not told that the path is invalid
+                    }
+                    break;
+                default:
+                    this.handOff(path);
+                    break;
+            }
+        }
+
+        /**
+         * Run the command on a blocking server.serverThread instead of a state machine
+         * @param path server's file path sent by the client
+         */
+        private void handOff(String path){
+            this.commandStarted = 0; // the server thread counts the command
+            this.file = null;
+            this.handOffPath = path;
+            this.leftover = new byte[this.in.remaining()]; // bytes the client sent after the request
+            this.in.get(this.leftover);
+            this.state = HANDED_OFF;
+            eventLoops[this.eventLoopId].handOffs.add(this);
+        }
+
+        /**
+         * Switch the channel back to blocking mode and run the command on a worker thread
+         * the connection stays counted as active until the worker is done with it
+         */
+        private void startWorker() throws IOException{
+            this.socketChannel.configureBlocking(true);
+            this.out.flip();
+            while (this.out.hasRemaining()){
+                this.socketChannel.write(this.out); // replies that were already queued (the protocol version)
+            }
+            this.out.clear();
+
+            Socket socket = this.socketChannel.socket();
+            DataInputStream inFromClient = new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(this.leftover), socket.getInputStream()));
+            DataOutputStream outToClient = new DataOutputStream(socket.getOutputStream());
+            server.serverThread serviceThread = owner.new serverThread(this.command, this.handOffPath, this.version, socket, inFromClient, outToClient);
+            workers.submit(() -> {
+                serviceThread.run();
+                this.uncount();
+            });
+        }
+
+        /**
+         * Answer the resume handshake and get ready to receive the file
+         * @param fileSize size of the file the client is uploading
+         */
+        private void beginUpload(long fileSize) throws IOException{
+            this.fileSize = fileSize;
+            this.position = 0;
+
+            // the file is written next to its path and put in place once it is complete, check if an interrupted upload left part of it
+            this.staged = stagedFile.open(this.file);
+            if (this.staged.length() > 0 && this.staged.length() < fileSize){
+                this.position = this.staged.length();
+                this.reply(true); // tell the client to resume upload
+                this.out.putLong(this.position); // tell the client how many bytes we have already
+            }
+            else{
+                this.reply(false); // tell the client to upload from the beginning
+            }
+            this.transferStart = this.position;
+            owner.metrics.resumed(this.position);
+            this.fileChannel = this.staged.channel();
+            this.fileChannel.truncate(this.position);
+            this.nextAck = this.position + server.ACK_INTERVAL;
+
+            // uploads need a larger buffer than commands
+            ByteBuffer dataBuffer = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+            dataBuffer.put(this.in);
+            this.in = dataBuffer.flip();
+
+            this.state = READ_UPLOAD_DATA;
+            if (this.position == this.fileSize){
+                this.endUpload();
+            }
+        }
+
+        /**
+         * Write the uploaded bytes that are in the input buffer to the file
+         */
+        private void uploadData() throws IOException{
+            int limit = this.in.limit();
+            this.in.limit(this.in.position() + (int) Math.min(this.in.remaining(), this.fileSize - this.position));
+            int bytes = this.in.remaining();
+            while (this.in.hasRemaining()){
+                this.position += this.fileChannel.write(this.in, this.position);
+            }
+            this.in.limit(limit);
+            this.staged.written(bytes);
+
+            if (this.command.equals("upload")){
+                this.reply(true); // the original upload protocol confirms every chunk
+            }
+            else if (this.position >= this.nextAck && this.position != this.fileSize){
+                this.out.putLong(this.position); // cumulative acknowledgement
+                this.nextAck = this.position + server.ACK_INTERVAL;
+            }
+
+            if (this.position == this.fileSize){
+                this.endUpload();
+            }
+        }
+
+        /**
+         * Put the uploaded file in place and send the final acknowledgement of a streamed upload
+         * (flushing the file to the disk blocks the event loop, like opening and reading files for downloads does)
+         */
+        private void endUpload() throws IOException{
+            this.staged.commit(owner.locks);
+            this.staged = null;
+            this.fileChannel = null;
+            owner.changed(this.file);
+            if (this.command.equals("streamupload")){
+                this.out.putLong(this.position); // final acknowledgement once the file has been written
+            }
+            this.finish();
+        }
+
+        /**
+         * Queue a boolean for the client
+         * @param value the boolean to send
+         */
+        private void reply(boolean value){
+            this.ensureOutCapacity(1);
+            this.out.put((byte) (value ? 1 : 0));
+        }
+
+        /**
+         * Queue a name for the client, as a varint length and UTF-8 bytes for binary clients 
+         * or as a line of characters (as they would be written with writeChars) for legacy clients
+         * @param text the name to send
+         */
+        private void replyName(String text){
+            if (this.version > 0){
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                this.ensureOutCapacity(bytes.length + 5);
+                protocol.writeVarint(this.out, bytes.length);
+                this.out.put(bytes);
+                return;
+            }
+            this.ensureOutCapacity((text.length() + 1) * Character.BYTES);
+            for (int i=0; i<text.length(); i++){
+                this.out.putChar(text.charAt(i));
+            }
+            this.out.putChar('\n');
+        }
+
+        /**
+         * Grow the output buffer so that it has room for the given number of bytes
+         * @param bytes number of bytes that will be queued
+         */
+        private void ensureOutCapacity(int bytes){
+            if (this.out.remaining() < bytes){
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(this.out.capacity() * 2, this.out.position() + bytes));
+                this.out.flip();
+                larger.put(this.out);
+                this.out = larger;
+            }
+        }
+
+        /**
+         * The command is complete, close the connection once the pending replies have been sent
+         */
+        private void finish(){
+            this.state = CLOSING;
+            this.uncount();
+            if (this.commandStarted != 0){ // commands that are handed off are counted by their server thread
+                if (this.command.equals("download")){
+                    owner.metrics.bytesOut(this.command, this.position - this.transferStart);
+                }
+                else if (this.command.endsWith("upload")){
+                    owner.metrics.bytesIn(this.command, this.position - this.transferStart);
+                }
+                owner.metrics.commandCompleted(this.command, 0, System.nanoTime() - this.commandStarted);
+            }
+        }
+
+        /**
+         * Stop counting this connection as one that shutdown has to wait for
+         */
+        private void uncount(){
+            if (this.counted){
+                this.counted = false;
+                activeConnections.decrementAndGet();
+            }
+        }
+
+        /**
+         * Only wait for the events the current state needs
+         */
+        private void updateInterest(){
+            if (!this.key.isValid()){
+                return;
+            }
+            int interest = 0;
+            boolean outFull = (this.state == READ_UPLOAD_DATA && this.out.remaining() < Long.BYTES); // stop reading until the client takes its acknowledgements
+            if (this.state != CLOSING && this.state != WRITE_DOWNLOAD_DATA && this.state != WAIT_FOR_SHUTDOWN && !outFull){
+                interest |= SelectionKey.OP_READ;
+            }
+            if (this.out.position() > 0 || this.state == WRITE_DOWNLOAD_DATA){
+                interest |= SelectionKey.OP_WRITE;
+            }
+            this.key.interestOps(interest);
+        }
+
+        /**
+         * Close the connection and any file it has open
+         */
+        public void close(){
+            this.uncount();
+            if (!this.closed){
+                this.closed = true;
+                owner.metrics.connectionClosed();
+            }
+            try {
+                if (this.staged != null){
+                    this.staged.close(); // an upload that did not complete leaves its part for the next one to resume
+                }
+                if (this.fileChannel != null){
+                    this.fileChannel.close();
+                }
+                if (this.key != null){
+                    this.key.cancel();
+                }
+                this.socketChannel.close();
+            } catch (IOException e) {
+                System.err.println("server event loop " + this.eventLoopId + ": error closing connection (" + e + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.io.*;
+
+/**
+ * Locks that keep the commands on one path apart without a lock for the whole server
+ * paths are spread over STRIPES read-write locks by their absolute path, so commands on different paths rarely share a lock,
+ * and a lock is only held for a moment: downloads hold the read lock while they open a file, rm and the rename that puts an upload
+ * in place hold the write lock, so a download gets either the old file or the new one and never one that is being removed
+ * uploads hold no lock while their bytes arrive, each one writes a staged file of its own (stagedFile)
+ */
+public class pathLocks{
+
+    private static final int STRIPES = 256; // a power of two
+
+    private ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+
+    public pathLocks(){
+        for (int i=0; i<STRIPES; i++){
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * @param file a path on the server
+     * @return the lock commands that read the path share
+     */
+    Lock reading(File file){
+        return this.stripe(file).readLock();
+    }
+
+    /**
+     * @param file a path on the server
+     * @return the lock a command that replaces or removes the path holds on its own
+     */
+    Lock writing(File file){
+        return this.stripe(file).writeLock();
+    }
+
+    private ReentrantReadWriteLock stripe(File file){
+        int hash = key(file).hashCode();
+        return this.stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * @param file a path on the server
+     * @return its absolute path without . and .. parts, so every way of writing a path gets the same lock (symbolic links are not followed)
+     */
+    static String key(File file){
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : file.getAbsolutePath().split(Pattern.quote(File.separator) + "|/")){
+            if (part.isEmpty() || part.equals(".")){
+                continue;
+            }
+            if (part.equals("..")){
+                parts.pollLast();
+                continue;
+            }
+            parts.addLast(part);
+        }
+        return "/" + String.join("/", parts);
+    }
+}
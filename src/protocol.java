@@ -0,0 +1,211 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.io.*;
+
+/**
+ * Binary wire format shared by the client and the server
+ * a request is MAGIC, VERSION, an opcode byte and the path as a varint length followed by its UTF-8 bytes,
+ * the server answers with the version it will speak and the rest of the command (booleans, sizes, offsets) uses fixed width fields as before
+ * clients from before the binary format send their command with writeChars, so their first byte is always 0 and the server can tell them apart
+ */
+public class protocol{
+
+    static final int MAGIC = 0xF1; // first byte of every binary request
+    static final int VERSION = 6; // newest version of the binary format (2 added compression to verified transfers, 3 added batches of files, 4 added stat and find, 5 added chunk uploads, 6 added upload ids to range uploads and credit to session streams)
+    static final int MIN_VERSION = 1; // oldest version of the binary format the server still speaks
+    static final int MAX_STRING_LENGTH = 64 * 1024; // longest path or name (in UTF-8 bytes) that will be accepted
+
+    // opcodes of the commands
+    static final int SHUTDOWN = 1;
+    static final int DIR = 2;
+    static final int MKDIR = 3;
+    static final int RMDIR = 4;
+    static final int RM = 5;
+    static final int UPLOAD = 6;
+    static final int STREAM_UPLOAD = 7;
+    static final int DOWNLOAD = 8;
+    static final int LIST = 9;
+    static final int SESSION = 10;
+    static final int RANGE_DOWNLOAD = 11;
+    static final int RANGE_UPLOAD = 12;
+    static final int VERIFIED_UPLOAD = 13;
+    static final int VERIFIED_DOWNLOAD = 14;
+    static final int DELTA_UPLOAD = 15;
+    static final int BATCH_UPLOAD = 16; // version 3 and later
+    static final int BATCH_DOWNLOAD = 17; // version 3 and later
+    static final int STAT = 18; // version 4 and later
+    static final int FIND = 19; // version 4 and later
+    static final int CHUNK_UPLOAD = 20; // version 5 and later
+
+    // codecs for the file bytes of a verified transfer (version 2 and later)
+    static final int CODEC_RAW = 0;
+    static final int CODEC_DEFLATE = 1;
+    static final int CODECS = (1 << CODEC_RAW) | (1 << CODEC_DEFLATE); // a bit for each codec the server offers
+
+    // types of the entries of a list reply and of a batch upload
+    static final int ENTRY_FILE = 0;
+    static final int ENTRY_DIRECTORY = 1;
+    static final int ENTRY_OTHER = 2;
+    static final int ENTRY_END = 3; // ends the entries of a batch upload
+
+    private static final String[] COMMANDS = {null, "shutdown", "dir", "mkdir", "rmdir", "rm", "upload", "streamupload", "download", "list", "session", "rangedownload", "rangeupload", "verifiedupload", "verifieddownload", "deltaupload", "batchupload", "batchdownload", "stat", "find", "chunkupload"};
+
+    /**
+     * @param opcode opcode read from a binary request
+     * @return the name of the command (as legacy clients send it) or null if the opcode is unknown
+     */
+    static String commandName(int opcode){
+        return (opcode > 0 && opcode < COMMANDS.length) ? COMMANDS[opcode] : null;
+    }
+
+    /**
+     * @param command name of a command
+     * @return true if the command has an opcode
+     */
+    static boolean isCommand(String command){
+        for (int i=1; i<COMMANDS.length; i++){
+            if (COMMANDS[i].equals(command)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Choose the version to speak with a client
+     * @param clientVersion newest version the client speaks
+     * @return the version both sides speak, or 0 if there is none
+     */
+    static int negotiate(int clientVersion){
+        return (clientVersion < MIN_VERSION) ? 0 : Math.min(clientVersion, VERSION);
+    }
+
+    /**
+     * Choose the codec for a transfer
+     * @param offered a bit for each codec the server offers
+     * @param wanted codec the client would like
+     * @return the wanted codec, or raw if the server does not offer it
+     */
+    static int chooseCodec(int offered, int wanted){
+        return ((offered & (1 << wanted)) != 0) ? wanted : CODEC_RAW;
+    }
+
+    /**
+     * Send a request in a single write
+     * @param dataOutputStream the stream to the server
+     * @param opcode the command
+     * @param path the path the command works on ("" if it does not take one)
+     */
+    static void writeRequest(DataOutputStream dataOutputStream, int opcode, String path) throws IOException{
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream request = new ByteArrayOutputStream(pathBytes.length + 8);
+        request.write(MAGIC);
+        request.write(VERSION);
+        request.write(opcode);
+        writeVarint(request, pathBytes.length);
+        request.write(pathBytes);
+        request.writeTo(dataOutputStream);
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Write a string as a varint length followed by its UTF-8 bytes
+     * @param dataOutputStream the stream to write to
+     * @param text the string to write
+     */
+    static void writeString(DataOutputStream dataOutputStream, String text) throws IOException{
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarint(dataOutputStream, bytes.length);
+        dataOutputStream.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString
+     * @param dataInputStream the stream to read from
+     * @return the string
+     */
+    static String readString(DataInputStream dataInputStream) throws IOException{
+        int length = readVarint(dataInputStream);
+        if (length > MAX_STRING_LENGTH){
+            throw new IOException("string of " + length + " bytes is too long");
+        }
+        byte[] bytes = new byte[length];
+        dataInputStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write an unsigned int 7 bits at a time, the high bit of each byte says whether another byte follows
+     * @param outputStream the stream to write to
+     * @param value the value to write (not negative)
+     */
+    static void writeVarint(OutputStream outputStream, int value) throws IOException{
+        while ((value & ~0x7F) != 0){
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
+
+    /**
+     * Write an unsigned int like writeVarint into a buffer
+     * @param byteBuffer the buffer to write to (in write mode, with room for 5 bytes)
+     * @param value the value to write (not negative)
+     */
+    static void writeVarint(ByteBuffer byteBuffer, int value){
+        while ((value & ~0x7F) != 0){
+            byteBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        byteBuffer.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned int written by writeVarint
+     * @param dataInputStream the stream to read from
+     * @return the value
+     */
+    static int readVarint(DataInputStream dataInputStream) throws IOException{
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7){
+            int nextByte = dataInputStream.readUnsignedByte();
+            value |= (nextByte & 0x7F) << shift;
+            if ((nextByte & 0x80) == 0){
+                return checkVarint(value);
+            }
+        }
+        throw new IOException("varint is too long");
+    }
+
+    /**
+     * Read an unsigned int written by writeVarint from a buffer without consuming anything if it is incomplete
+     * @param byteBuffer the buffer to read from (in read mode)
+     * @return the value, or -1 if the buffer does not hold all of it yet (a complete value is never negative)
+     */
+    static int readVarint(ByteBuffer byteBuffer) throws IOException{
+        int value = 0;
+        int position = byteBuffer.position();
+        for (int shift = 0; shift < 32; shift += 7){
+            if (!byteBuffer.hasRemaining()){
+                byteBuffer.position(position);
+                return -1;
+            }
+            int nextByte = byteBuffer.get() & 0xFF;
+            value |= (nextByte & 0x7F) << shift;
+            if ((nextByte & 0x80) == 0){
+                return checkVarint(value);
+            }
+        }
+        throw new IOException("varint is too long");
+    }
+
+    /**
+     * writeVarint only writes values that are not negative, a 5 byte varint that sets the sign bit did not come from it
+     */
+    private static int checkVarint(int value) throws IOException{
+        if (value < 0){
+            throw new IOException("varint " + Integer.toUnsignedString(value) + " is out of range");
+        }
+        return value;
+    }
+}
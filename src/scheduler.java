@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor of the server threads that keeps metadata commands (dir, list, mkdir, rmdir, rm, stat, find) apart from transfers
+ * the commands run in two lanes, each a fixed pool of threads with a queue of its own: a few threads only run metadata commands,
+ * so they never wait behind transfers however many of those are running or queued, the other threads run everything else;
+ * the readers of sessions get a thread each outside of both lanes, they only hand the commands of their streams to the lanes
+ * and a session that waited for a thread of the lane its own commands need could hold up every session
+ */
+public class scheduler extends AbstractExecutorService{
+
+    private static final Set<String> METADATA_COMMANDS = Set.of("dir", "list", "mkdir", "rmdir", "rm", "stat", "find");
+
+    private ThreadPoolExecutor metadata; // runs the metadata commands
+    private ThreadPoolExecutor transfers; // runs the transfers and the commands of sessions
+    private ThreadPoolExecutor sessions; // runs the readers of sessions, a thread each
+
+    /**
+     * @param threads threads of both lanes together
+     * @param metadataThreads threads that only run metadata commands
+     */
+    public scheduler(int threads, int metadataThreads){
+        this.metadata = new ThreadPoolExecutor(metadataThreads, metadataThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.transfers = new ThreadPoolExecutor(threads - metadataThreads, threads - metadataThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.sessions = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+    }
+
+    /**
+     * @param command name of a command
+     * @return true if the command only works on metadata and is quick
+     */
+    static boolean isMetadata(String command){
+        return METADATA_COMMANDS.contains(command);
+    }
+
+    /**
+     * @return the lane the task runs in, server threads of metadata commands run in the metadata lane, sessions on their own threads
+     * and everything else with the transfers
+     */
+    private ThreadPoolExecutor lane(Runnable task){
+        if (task instanceof server.serverThread && ((server.serverThread) task).isSession()){
+            return this.sessions;
+        }
+        return (task instanceof server.serverThread && ((server.serverThread) task).isMetadata()) ? this.metadata : this.transfers;
+    }
+
+    /**
+     * @return commands waiting for a thread in both lanes
+     */
+    int queueDepth(){
+        return this.metadata.getQueue().size() + this.transfers.getQueue().size();
+    }
+
+    /**
+     * @return threads running a command in both lanes
+     */
+    int activeCount(){
+        return this.metadata.getActiveCount() + this.transfers.getActiveCount() + this.sessions.getActiveCount();
+    }
+
+    @Override
+    public Future<?> submit(Runnable task){
+        return this.lane(task).submit(task); // the task has to reach the lane unwrapped so that its command can be seen
+    }
+
+    @Override
+    public void execute(Runnable task){
+        this.lane(task).execute(task);
+    }
+
+    @Override
+    public void shutdown(){
+        this.metadata.shutdown();
+        this.transfers.shutdown();
+        this.sessions.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow(){
+        List<Runnable> waiting = new ArrayList<>(this.metadata.shutdownNow());
+        waiting.addAll(this.transfers.shutdownNow());
+        waiting.addAll(this.sessions.shutdownNow());
+        return waiting;
+    }
+
+    @Override
+    public boolean isShutdown(){
+        return this.metadata.isShutdown() && this.transfers.isShutdown() && this.sessions.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated(){
+        return this.metadata.isTerminated() && this.transfers.isTerminated() && this.sessions.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException{
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return this.metadata.awaitTermination(timeout, unit) && this.transfers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+            && this.sessions.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+}
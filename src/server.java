@@ -1,8 +1,34 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.io.*;
 
 public class server{
@@ -25,8 +51,12 @@ public class server{
 
         // check that the command is supported and the correct number of arguments was provided 
         if (args[0].equals("start")){
-            if (args.length != 2){
-                System.err.println("server: the \"" + args[0]  +"\" command takes exactly 1 argument!");
+            if (args.length != 2 && args.length != 3){
+                System.err.println("server: the \"" + args[0]  +"\" command takes 1 or 2 arguments!");
+                return false;
+            }
+            if (args.length == 3 && !args[2].equals("pool") && !args[2].equals("virtual") && !args[2].equals("nio")){
+                System.err.println("server: the server mode must be \"pool\", \"virtual\" or \"nio\"!");
                 return false;
             }
         }
@@ -45,93 +75,367 @@ public class server{
     * @return string of all characters up to a newline 
     */
     private String readLine(DataInputStream dataInputStream) throws IOException{
-        String line = "";
+        StringBuilder line = new StringBuilder();
         char nextChar = dataInputStream.readChar();
         while (nextChar != '\n'){
-            line += nextChar;
+            if (line.length() == protocol.MAX_STRING_LENGTH){
+                throw new IOException("line of more than " + protocol.MAX_STRING_LENGTH + " characters is too long");
+            }
+            line.append(nextChar);
             nextChar = dataInputStream.readChar();
         }
-        return line;
+        return line.toString();
     }
 
+    static final int STREAM_BUFFER_SIZE = 64 * 1024; // size of the buffer used for streamed uploads 
+    static final long ACK_INTERVAL = 256 * 1024; // number of bytes between acknowledgements of a streamed upload
+
+    private static final int LIST_BATCH_SIZE = 256; // most entries in a frame of a list reply
+    private static final int MAX_BATCH_FILES = 4096; // most files a batch download may ask for
+    private static final int BATCH_COMMIT_FILES = 64; // files of a batch upload that are flushed to the disk together
+    static final int HANDSHAKE_TIMEOUT = 10 * 1000; // milliseconds a new connection has to send its command
+    private static final int ACCEPT_BACKLOG = 1024; // connections the operating system queues before the server accepts them
+    private static final long DEFAULT_CACHE_MB = 256; // size of the download cache unless PA1_CACHE_MB says otherwise
+    private static final long DEFAULT_INDEX_ENTRIES = 1_000_000; // names the metadata index holds unless PA1_INDEX_ENTRIES says otherwise
+    private static final int POOL_THREADS = 100; // threads of the pool mode
+    private static final int METADATA_THREADS = 10; // threads of the pool mode that only run metadata commands
+
     private ServerSocket serverSocket;
+    private ExecutorService executor; // executor service that runs the commands of sessions 
+    private Set<session> sessions = ConcurrentHashMap.newKeySet(); // sessions that are open 
+    private CountDownLatch shutdownComplete = new CountDownLatch(1); // released once the shutdown procedure is done 
+    fileCache cache; // hot files that downloads are served from
+    metadataIndex index; // names, types, sizes and times of the files, so metadata questions do not go to the file system
+    serverMetrics metrics; // counters of what the server is doing
+    bandwidth bandwidth; // limits on how fast files move through the server
+    pathLocks locks = new pathLocks(); // keep downloads, rm and the renames that finish uploads of the same path apart
+    chunkStore store; // files uploaded with chunks, kept once however many paths they are uploaded to (null unless PA1_CHUNK_STORE is set)
 
     /**
      * Setup the ServerSocket
      * @param port server's port number 
      */
     public server(int port){
+        String cacheSize = System.getenv("PA1_CACHE_MB");
+        this.cache = new fileCache(((cacheSize == null) ? DEFAULT_CACHE_MB : Long.parseLong(cacheSize)) * 1024 * 1024);
+        String indexEntries = System.getenv("PA1_INDEX_ENTRIES");
+        this.index = new metadataIndex((indexEntries == null) ? DEFAULT_INDEX_ENTRIES : Long.parseLong(indexEntries));
+        this.metrics = new serverMetrics(this.cache);
+        this.bandwidth = new bandwidth();
+        if (System.getenv("PA1_CHUNK_STORE") != null){
+            try {
+                this.store = new chunkStore(new File(System.getenv("PA1_CHUNK_STORE")));
+            } catch (IOException e) {
+                System.out.println("server: error opening the chunk store, uploads are not deduplicated (" + e + ")");
+            }
+        }
         try {
-            this.serverSocket = new ServerSocket(port);
+            // open the socket through a channel so that accepted connections can be used with FileChannel.transferTo
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            tuning.configure(serverChannel.socket()); // the receive buffer has to be set before binding
+            this.serverSocket = serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG).socket();
         } catch (IOException e) {
             System.out.println("server: error setting up ServerSocket (" + e + ")");
             System.exit(1);
         }
     }
 
+    /**
+     * Create an executor that starts a new virtual thread for every task
+     * virtual threads need Java 21, older runtimes fall back to an unbounded pool of platform threads 
+     * @return the executor service for the "virtual" mode
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("server: virtual threads are not supported by this Java runtime, using a thread per connection instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     /**
      * Start running the server
+     * the accept loop only accepts connections, the command is read by a handshake thread (bounded by HANDSHAKE_TIMEOUT) 
+     * and then executed by the executor service, so a client that never sends its command cannot hold up the others 
+     * @param exectuor executor service that runs the server threads 
      */
-    private void start() {
+    private void start(ExecutorService exectuor) {
         System.out.println("server is running");
 
-        ExecutorService exectuor = Executors.newFixedThreadPool(100); // use an executor service to manage server threads 
+        this.executor = exectuor;
+        this.metrics.setExecutor(exectuor);
+        ExecutorService handshakes = Executors.newCachedThreadPool(); // threads that read the commands of new connections
 
         // server will run as long as the executor service is running 
         while(!exectuor.isShutdown()){
             try {
                 Socket socketConnection = serverSocket.accept();  // wait for connection
+                handshakes.submit(() -> this.handshake(socketConnection, exectuor)); // hand the connection off straight away
+            } catch (IOException e) {
+                if (!exectuor.isShutdown()){ // the server socket is closed on purpose when shutting down
+                    System.err.println("server: error connecting to client (" + e + ")");
+                }
+            }
+        }
 
-                // setup IO
-                DataInputStream inFromClient = new DataInputStream(socketConnection.getInputStream());
-                DataOutputStream outToClient = new DataOutputStream(socketConnection.getOutputStream());
-            
-                String command = this.readLine(inFromClient); // read the command from the Client 
-                
-                if (command.equals("shutdown")){ // shutdown the server
-                    System.out.println("shutdown: beginning shutdown procedure");
-                    exectuor.shutdown(); // stop accepting tasks 
-                    System.out.println("shutdown: waiting for remaining tasks to complete ...");
-                    exectuor.awaitTermination(120, TimeUnit.SECONDS); // wait 2 minutes for remaining threads to finish 
-
-                    // let the client know if shutdown is successful 
-                    if (exectuor.isTerminated()){
-                        outToClient.writeBoolean(true);
-                        System.out.println("shutdown: all tasks have been completed");
-                    }
-                    else {
-                        outToClient.writeBoolean(false);
-                        System.out.println("shutdown: there are still incomplete tasks");
+        // wait for the shutdown procedure to finish
+        handshakes.shutdown();
+        try {
+            this.shutdownComplete.await();
+        } catch (InterruptedException e) {
+            System.err.println("shutdown: interrupted waiting for the shutdown procedure (" + e + ")");
+            System.exit(1);
+        }
+
+        System.out.println("server has shutdown");
+    }
+
+    /**
+     * Read the command from a new connection and give it to the executor service 
+     * @param socketConnection the accepted connection 
+     * @param exectuor executor service that runs the server threads 
+     */
+    private void handshake(Socket socketConnection, ExecutorService exectuor) {
+        long acceptedAt = System.nanoTime();
+        this.metrics.connectionOpened();
+        try {
+            tuning.configure(socketConnection);
+
+            // setup IO
+            DataInputStream inFromClient = new DataInputStream(socketConnection.getInputStream());
+            DataOutputStream outToClient = new DataOutputStream(socketConnection.getOutputStream());
+
+            // give up on clients that do not send a command within HANDSHAKE_TIMEOUT, however slowly they send it
+            long deadline = acceptedAt + TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT);
+            DataInputStream handshake = new DataInputStream(new FilterInputStream(socketConnection.getInputStream()){
+                @Override
+                public int read() throws IOException{
+                    this.waitUntilDeadline();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException{
+                    this.waitUntilDeadline();
+                    return super.read(buffer, offset, length);
+                }
+
+                private void waitUntilDeadline() throws IOException{
+                    long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (left <= 0){
+                        throw new SocketTimeoutException("handshake took longer than " + HANDSHAKE_TIMEOUT + " ms");
                     }
+                    socketConnection.setSoTimeout((int) left); // each read waits at most until the deadline
                 }
-                else{ // start a thread to execute the command 
-                    serverThread serviceThread = new serverThread(command, socketConnection, inFromClient, outToClient);
-                    exectuor.submit(serviceThread);
+            }); // nothing is buffered, the server thread reads the rest of the request from inFromClient
+            String command; 
+            String path = null; // legacy clients send the path after the command, it is read by the server thread
+            int version = 0; // legacy clients do not have a version
+            int firstByte = handshake.readUnsignedByte();
+
+            if (firstByte == protocol.MAGIC){ // read a binary request 
+                version = protocol.negotiate(handshake.readUnsignedByte());
+                outToClient.writeByte(version); // let the client know which version will be spoken 
+                if (version == 0){
+                    System.err.println("server: client speaks an unsupported protocol version");
+                    socketConnection.close();
+                    return;
                 }
-            } catch (IOException e) {
-                System.err.println("server: error connecting to client (" + e + ")");
-            } catch (InterruptedException e) {
-                System.err.println("shutdown: timeout waiting for threads to finish (" + e + ")");
-                System.exit(1);
+                String name = protocol.commandName(handshake.readUnsignedByte());
+                command = (name == null) ? "" : name;
+                path = protocol.readString(handshake);
+            }
+            else{ // legacy clients send the command with writeChars 
+                char firstChar = (char) ((firstByte << 8) | handshake.readUnsignedByte());
+                command = (firstChar == '\n') ? "" : firstChar + this.readLine(handshake); // read the command from the Client 
+            }
+            socketConnection.setSoTimeout(0);
+            this.metrics.handshake(System.nanoTime() - acceptedAt);
+            
+            if (command.equals("shutdown")){ // shutdown the server
+                this.shutdown(exectuor, outToClient);
+                socketConnection.close();
+                this.metrics.connectionClosed();
+            }
+            else{ // start a thread to execute the command 
+                serverThread serviceThread = new serverThread(command, path, version, socketConnection, inFromClient, outToClient);
+                exectuor.submit(serviceThread);
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("server: client did not send a command in time (" + e + ")");
+            this.closeConnection(socketConnection);
+        } catch (RejectedExecutionException e) {
+            this.closeConnection(socketConnection); // the server is shutting down
+        } catch (IOException e) {
+            System.err.println("server: error connecting to client (" + e + ")");
+            this.closeConnection(socketConnection);
+        } catch (InterruptedException e) {
+            System.err.println("shutdown: timeout waiting for threads to finish (" + e + ")");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Stop accepting connections, wait for the remaining tasks and let the client know whether they all completed
+     * @param exectuor executor service that runs the server threads 
+     * @param outToClient stream to the client that asked for the shutdown 
+     */
+    private void shutdown(ExecutorService exectuor, DataOutputStream outToClient) throws IOException, InterruptedException {
+        try {
+            System.out.println("shutdown: beginning shutdown procedure");
+            exectuor.shutdown(); // stop accepting tasks 
+            this.serverSocket.close(); // stop accepting connections 
+            this.drainSessions(); 
+            System.out.println("shutdown: waiting for remaining tasks to complete ...");
+            exectuor.awaitTermination(120, TimeUnit.SECONDS); // wait 2 minutes for remaining threads to finish 
+
+            // let the client know if shutdown is successful 
+            if (exectuor.isTerminated()){
+                outToClient.writeBoolean(true);
+                System.out.println("shutdown: all tasks have been completed");
             }
+            else {
+                outToClient.writeBoolean(false);
+                System.out.println("shutdown: there are still incomplete tasks");
+            }
+        } finally {
+            this.shutdownComplete.countDown();
+        }
+    }
+
+    /**
+     * Let every session finish the commands it is running and then close, sessions do not take new commands anymore
+     */
+    void drainSessions() {
+        for (session openSession : this.sessions){
+            openSession.drain();
+        }
+    }
+
+    /**
+     * Close a connection that will not be served
+     * @param socketConnection the connection to close
+     */
+    private void closeConnection(Socket socketConnection) {
+        this.metrics.connectionClosed();
+        try {
+            socketConnection.close();
+        } catch (IOException e) {
+            System.err.println("server: error closing connection (" + e + ")");
+        }
+    }
+
+    /**
+     * Start running the server with the non-blocking engine (a few event loop threads serve every connection)
+     */
+    private void startNio() {
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        System.out.println("server is running (nio, " + eventLoops + " event loops)");
+
+        try {
+            this.executor = Executors.newCachedThreadPool(); // workers for the commands the event loops hand off
+            this.metrics.setExecutor(this.executor);
+            new nioServer(this, this.serverSocket.getChannel(), eventLoops, this.executor).start();
+        } catch (IOException e) {
+            System.err.println("server: error running the event loops (" + e + ")");
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("shutdown: interrupted waiting for the event loops to finish (" + e + ")");
+            System.exit(1);
         }
 
         System.out.println("server has shutdown");
     }
 
+    /**
+     * Check a path a file is uploaded to: its directory has to exist, it must not be a directory itself or have the name of a staged file
+     * @param file the path on the server
+     * @return true if the file can be uploaded there
+     */
+    boolean uploadable(File file) {
+        return (file.getParentFile() == null || this.index.isDirectory(file.getParentFile())) && !this.index.isDirectory(file) && !stagedFile.isStaging(file.getName());
+    }
+
+    /**
+     * Let the download cache and the metadata index know that a command created, changed or removed a path
+     * @param file the path on the server
+     */
+    void changed(File file) {
+        this.cache.invalidate(file);
+        this.index.changed(file);
+        if (this.store != null){
+            this.store.changed(file); // a path that linked to a stored file lets go of it
+        }
+    }
+
+    /**
+     * Create a directory and the directories above it that do not exist
+     * @param directory the directory
+     * @return true if the directory exists, also when another command created it at the same time
+     */
+    boolean makeDirectories(File directory) {
+        if (this.index.isDirectory(directory)){
+            return true;
+        }
+        directory.mkdirs();
+        this.changed(directory); // a command that created it at the same time may not have told the index yet
+        return directory.isDirectory();
+    }
+
+    /**
+     * Find a file of a batch inside the batch's directory
+     * @param directory the directory of the batch
+     * @param name path of the file inside the directory, its parts separated by /
+     * @return the file, or null if the name is empty, would leave the directory or names a staged file
+     */
+    static File resolve(File directory, String name) {
+        for (String part : name.split("/", -1)){
+            if (part.isEmpty() || part.equals(".") || part.equals("..") || stagedFile.isStaging(part)){
+                return null;
+            }
+        }
+        return new File(directory, name);
+    }
+
     //-------------------------------------------------- Server Thread Methods & Variables --------------------------------------------------
     public class serverThread implements Runnable{
 
         private String command;
-        private Socket clientConnection;
+        private String path; // null until it has been read from a legacy client
+        private int version; // version of the binary protocol the client speaks, 0 for legacy clients
+        private Socket clientConnection; // null for the commands of a session, they run on a stream of the session's connection
         private DataInputStream inFromClient;
         private DataOutputStream outToClient; 
+        private long queuedAt = System.nanoTime(); // when the command was given to the executor
+        private InetAddress address; // client's address, its transfers share the client's bandwidth limit
+        private bandwidth.limiter limiter; // limits how fast the file bytes of the command move
+        private bandwidth.limiter connection; // limiter of the session the command runs in, null if the command has a connection of its own
+        private long codecsOfferedAt; // when the codecs were offered to the client
+        private long rtt = 0; // nanoseconds from offering the codecs to reading the client's choice, 0 if it was not measured
 
-        public serverThread(String command, Socket socketConnection, DataInputStream inFromClient, DataOutputStream outToClient) {
+        public serverThread(String command, String path, int version, Socket socketConnection, DataInputStream inFromClient, DataOutputStream outToClient) {
             this.command = command;
+            this.path = path;
+            this.version = version;
             this.clientConnection = socketConnection;
             this.inFromClient = inFromClient;
             this.outToClient = outToClient;
+            this.address = (socketConnection == null) ? null : socketConnection.getInetAddress();
+        }
+
+        /**
+         * @return true if the command only works on metadata, the scheduler runs it ahead of transfers
+         */
+        boolean isMetadata() {
+            return scheduler.isMetadata(this.command);
+        }
+
+        /**
+         * @return true if the thread reads a session, the scheduler runs it outside of the lanes its commands run in
+         */
+        boolean isSession() {
+            return this.command.equals("session");
         }
 
         /**
@@ -139,80 +443,380 @@ public class server{
          */
         @Override
         public void run() {
-            // run the command
-            switch(this.command){
-                case "dir":
-                    this.dir();
-                    break;
-                case "mkdir":
-                    this.mkdir();
-                    break;
-                case "rmdir":
-                    this.rmdir();
-                    break;
-                case "rm":
-                    this.rm();
-                    break;
-                case "upload":
-                    this.upload();
-                    break;
-                case "download":
-                    this.download();
-                    break;
-            }
-
-            // close the connection with the client 
+            long started = System.nanoTime();
+            this.limiter = bandwidth.open(this.isMetadata() ? null : this.address, this.connection);
+            try {
+                // run the command
+                switch(this.command){
+                    case "dir":
+                        this.dir();
+                        break;
+                    case "mkdir":
+                        this.mkdir();
+                        break;
+                    case "rmdir":
+                        this.rmdir();
+                        break;
+                    case "rm":
+                        this.rm();
+                        break;
+                    case "upload":
+                        this.upload();
+                        break;
+                    case "streamupload":
+                        this.streamUpload();
+                        break;
+                    case "download":
+                        this.download();
+                        break;
+                    case "list":
+                        this.list();
+                        break;
+                    case "session":
+                        this.session();
+                        break;
+                    case "rangedownload":
+                        this.rangeDownload();
+                        break;
+                    case "rangeupload":
+                        this.rangeUpload();
+                        break;
+                    case "verifiedupload":
+                        this.verifiedUpload();
+                        break;
+                    case "verifieddownload":
+                        this.verifiedDownload();
+                        break;
+                    case "deltaupload":
+                        this.deltaUpload();
+                        break;
+                    case "batchupload":
+                        this.batchUpload();
+                        break;
+                    case "batchdownload":
+                        this.batchDownload();
+                        break;
+                    case "stat":
+                        this.stat();
+                        break;
+                    case "find":
+                        this.find();
+                        break;
+                    case "chunkupload":
+                        this.chunkUpload();
+                        break;
+                }
+            } catch (RuntimeException e) {
+                this.error(this.command, e); // the connection is still closed and the client's share of the bandwidth given back
+            } finally {
+                this.limiter.close();
+            }
+            metrics.commandCompleted(this.command, started - this.queuedAt, System.nanoTime() - started);
+
+            // close the connection (or the session stream) with the client 
             try {
-                this.clientConnection.close();
+                if (this.clientConnection != null){
+                    this.clientConnection.close();
+                    metrics.connectionClosed();
+                }
+                else{
+                    this.outToClient.close();
+                    this.inFromClient.close();
+                }
             } catch (IOException e) {
                 System.err.println("server thread "+ Thread.currentThread().getId() + ": error closing connection (" + e + ")");
             }
         }
 
+        /**
+         * Report an error of the command and count it
+         * @param what what the command was doing
+         * @param e the error
+         */
+        private void error(String what, Exception e) {
+            System.err.println("server thread "+ Thread.currentThread().getId() + ": " + what + " error (" + e + ")");
+            metrics.error(this.command, e);
+        }
+
+        /**
+         * Binary requests carry their path, legacy clients send it as a line after the command
+         * @return the server's file path the command works on
+         */
+        private String readPath() throws IOException {
+            if (this.path == null){
+                this.path = readLine(this.inFromClient);
+            }
+            return this.path;
+        }
+
+        /**
+         * Offer the codecs for the file bytes of a transfer (clients from before version 2 always get raw bytes)
+         */
+        private void offerCodecs() throws IOException {
+            if (this.version >= 2){
+                this.outToClient.writeByte(protocol.CODECS);
+                this.codecsOfferedAt = System.nanoTime();
+            }
+        }
+
+        /**
+         * @return the codec the client chose from the offer
+         */
+        private int readCodec() throws IOException {
+            int codec = (this.version >= 2) ? this.inFromClient.readUnsignedByte() : protocol.CODEC_RAW;
+            if (this.version >= 2){
+                this.rtt = System.nanoTime() - this.codecsOfferedAt; // the client answers the offer straight away
+            }
+            if (codec > 7 || (protocol.CODECS & (1 << codec)) == 0){
+                throw new IOException("client chose codec " + codec + " that was not offered");
+            }
+            return codec;
+        }
+
+        /**
+         * Serve many commands over this connection until the client closes it
+         * each command runs on its own stream of the session, on the executor service like the commands of other connections
+         * (the session itself is read on a thread outside of the executor's lanes, see scheduler) 
+         */
+        private void session() {
+            session clientSession = new session(this.inFromClient, this.outToClient, this.clientConnection, (stream, opcode, path) -> {
+                String name = protocol.commandName(opcode);
+                if (name == null || name.equals("shutdown") || name.equals("session")){
+                    stream.close(); // these are not run inside a session 
+                    return;
+                }
+                serverThread streamThread = new serverThread(name, path, this.version, null, stream.in, stream.out);
+                streamThread.address = this.address; // the streams share the session's connection, and its bandwidth limit
+                streamThread.connection = this.limiter;
+                try {
+                    executor.submit(streamThread);
+                } catch (RejectedExecutionException e) {
+                    stream.close(); // the server is shutting down
+                }
+            });
+            clientSession.version = this.version;
+
+            sessions.add(clientSession);
+            try {
+                clientSession.run();
+            } catch (IOException e) {
+                if (!this.clientConnection.isClosed()){ // draining sessions are closed on purpose
+                    this.error("session", e);
+                }
+            } finally {
+                sessions.remove(clientSession);
+            }
+        }
+
         /**
          * Send the client a list of the contents of a directory
          */
         private void dir() {
             try {
-                String path = readLine(this.inFromClient); // read the server's file path from the client 
+                String path = this.readPath(); // read the server's file path from the client 
 
-                // check that the path exists and is a directory 
-                File directory = new File(path);
-                if (directory.exists() && directory.isDirectory()){
-                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
-                    File[] content = directory.listFiles(); // get all the contents of the directory
-                    this.outToClient.writeInt(content.length); // let the client know the number of files they will be sent 
+                // get the contents of the directory (null if the path is not a directory)
+                List<String> content = index.list(new File(path));
+                if (content != null){
+                    // collect the reply in a buffer so that the names are not sent one tiny write at a time 
+                    DataOutputStream listing = new DataOutputStream(new BufferedOutputStream(this.outToClient, STREAM_BUFFER_SIZE));
+                    listing.writeBoolean(true); // let the client know that the command will be executed 
+                    listing.writeInt(content.size()); // let the client know the number of files they will be sent 
 
                     // send the names of all the file to client
-                    for (int i=0; i<content.length; i++){ 
-                        this.outToClient.writeChars(content[i].getName() + "\n");
+                    for (String name : content){ 
+                        if (this.version > 0){
+                            protocol.writeString(listing, name);
+                        }
+                        else{
+                            listing.writeChars(name + "\n");
+                        }
                     }
+                    listing.flush();
                 }
                 else{
                     this.outToClient.writeBoolean(false); // let the client know that the command will not be executed 
                 }
             } catch (IOException e) {
-                System.err.println("server thread "+ Thread.currentThread().getId() + ": dir error (" + e + ")");
+                this.error("dir", e);
             }  
         }
 
+        /**
+         * Stream the entries of a directory with their type, size and last modified time
+         * the client sends a cursor (the number of entries it has already seen) and the most entries it wants (0 for all of them), 
+         * entries are read lazily and sent in frames of at most LIST_BATCH_SIZE so memory stays bounded however large the directory is 
+         */
+        private void list() {
+            try {
+                String path = this.readPath(); // read the server's file path from the client 
+                long cursor = this.inFromClient.readLong(); 
+                int limit = this.inFromClient.readInt();
+
+                DirectoryStream<Path> entries;
+                try {
+                    entries = Files.newDirectoryStream(new File(path).toPath(), entry -> !stagedFile.isStaging(entry.getFileName().toString())); // staged files of uploads are not listed
+                } catch (IOException | InvalidPathException e) {
+                    this.outToClient.writeBoolean(false); // let the client know that the path is not a directory it can list 
+                    return;
+                }
+
+                try (entries) {
+                    DataOutputStream listing = new DataOutputStream(new BufferedOutputStream(this.outToClient, STREAM_BUFFER_SIZE));
+                    listing.writeBoolean(true); // let the client know that the command will be executed 
+                    Iterator<Path> iterator = entries.iterator();
+
+                    // skip the entries the client has already seen 
+                    long position = 0;
+                    while (position < cursor && iterator.hasNext()){
+                        iterator.next();
+                        position++;
+                    }
+
+                    // send the entries a frame at a time, each frame starts with its number of entries 
+                    List<Path> batch = new ArrayList<>(LIST_BATCH_SIZE);
+                    long sent = 0;
+                    while (iterator.hasNext() && (limit == 0 || sent < limit)){
+                        batch.clear();
+                        while (batch.size() < LIST_BATCH_SIZE && (limit == 0 || sent + batch.size() < limit) && iterator.hasNext()){
+                            batch.add(iterator.next());
+                        }
+                        listing.writeInt(batch.size());
+                        for (Path entry : batch){
+                            this.writeEntry(listing, entry);
+                        }
+                        listing.flush(); // let the client show this frame straight away 
+                        sent += batch.size();
+                    }
+
+                    listing.writeInt(0); // an empty frame ends the page 
+                    listing.writeLong(iterator.hasNext() ? position + sent : -1); // cursor to continue from, -1 once the whole directory has been listed
+                    listing.flush();
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                this.error("list", e);
+            }
+        }
+
+        /**
+         * Write an entry of a list reply: type, size, last modified time (milliseconds) and name
+         * @param listing the stream to the client 
+         * @param entry the directory entry 
+         */
+        private void writeEntry(DataOutputStream listing, Path entry) throws IOException {
+            int type = protocol.ENTRY_OTHER;
+            long size = 0;
+            long lastModified = 0;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                type = attributes.isDirectory() ? protocol.ENTRY_DIRECTORY : (attributes.isRegularFile() ? protocol.ENTRY_FILE : protocol.ENTRY_OTHER);
+                size = attributes.size();
+                lastModified = attributes.lastModifiedTime().toMillis();
+            } catch (IOException e) {
+                // the entry was removed or cannot be read, it is still listed 
+            }
+            listing.writeByte(type);
+            listing.writeLong(size);
+            listing.writeLong(lastModified);
+            protocol.writeString(listing, entry.getFileName().toString());
+        }
+
+        /**
+         * Send the client the type, size and last modified time of a path
+         */
+        private void stat() {
+            try {
+                String path = this.readPath(); // read the server's file path from the client 
+
+                metadataIndex.attributes found = index.stat(new File(path));
+                if (found != null){
+                    DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(this.outToClient, STREAM_BUFFER_SIZE));
+                    reply.writeBoolean(true); // let the client know that the path exists 
+                    reply.writeByte(found.type);
+                    reply.writeLong(found.size);
+                    reply.writeLong(found.modified);
+                    reply.flush();
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+            } catch (IOException e) {
+                this.error("stat", e);
+            }
+        }
+
+        /**
+         * Search a directory and everything under it for names that match a pattern (sent after the path)
+         * matches are sent as they are found, in frames of at most LIST_BATCH_SIZE entries like a list reply but with the path inside the directory
+         * instead of the name, and an empty frame ends the reply
+         */
+        private void find() {
+            try {
+                String path = this.readPath(); // read the server's file path from the client 
+                String pattern = protocol.readString(this.inFromClient);
+
+                // check that the path is a directory 
+                File directory = new File(path);
+                if (!index.isDirectory(directory)){
+                    this.outToClient.writeBoolean(false);
+                    return;
+                }
+                DataOutputStream listing = new DataOutputStream(new BufferedOutputStream(this.outToClient, STREAM_BUFFER_SIZE));
+                listing.writeBoolean(true); // let the client know that the command will be executed 
+
+                List<String> paths = new ArrayList<>(LIST_BATCH_SIZE);
+                List<metadataIndex.attributes> batch = new ArrayList<>(LIST_BATCH_SIZE);
+                index.find(directory, pattern, (entryPath, entry) -> {
+                    paths.add(entryPath);
+                    batch.add(entry);
+                    if (batch.size() == LIST_BATCH_SIZE){
+                        writeMatches(listing, paths, batch);
+                    }
+                });
+                if (!batch.isEmpty()){
+                    writeMatches(listing, paths, batch);
+                }
+                listing.writeInt(0); // an empty frame ends the reply 
+                listing.flush();
+            } catch (IOException e) {
+                this.error("find", e);
+            }
+        }
+
+        /**
+         * Send a frame of find matches (type, size, last modified time and path of each) and empty the batch
+         */
+        private void writeMatches(DataOutputStream listing, List<String> paths, List<metadataIndex.attributes> batch) throws IOException {
+            listing.writeInt(batch.size());
+            for (int i=0; i<batch.size(); i++){
+                listing.writeByte(batch.get(i).type);
+                listing.writeLong(batch.get(i).size);
+                listing.writeLong(batch.get(i).modified);
+                protocol.writeString(listing, paths.get(i));
+            }
+            listing.flush(); // let the client show this frame straight away 
+            paths.clear();
+            batch.clear();
+        }
+
         /**
          * Make a new directory
          */
         private void mkdir() {
             try {
-                String path = readLine(this.inFromClient); // read the server's file path from the client 
+                String path = this.readPath(); // read the server's file path from the client 
 
                 // try to make the directory and let the client know whether the operation succeeded or not
                 File directory = new File(path);
-                if (directory.mkdir()){ 
+                if (!stagedFile.isStaging(directory.getName()) && directory.mkdir()){ 
+                    changed(directory);
                     this.outToClient.writeBoolean(true);
                 }
                 else{
                     this.outToClient.writeBoolean(false);
                 }
             } catch (IOException e) {
-                System.err.println("server thread "+ Thread.currentThread().getId() + ": mkdir error (" + e + ")");
+                this.error("mkdir", e);
             } 
 
         }
@@ -222,18 +826,19 @@ public class server{
          */
         private void rmdir() {
             try {
-                String path = readLine(this.inFromClient); // read the server's file path from the client 
+                String path = this.readPath(); // read the server's file path from the client 
 
                 // try to delete the directory and let the client know whether the operation succeded or not
                 File directory = new File(path);
-                if (directory.isDirectory() && directory.delete()){
+                if (index.isDirectory(directory) && directory.delete()){
+                    changed(directory);
                     this.outToClient.writeBoolean(true);
                 }
                 else{
                     this.outToClient.writeBoolean(false);
                 }                
             } catch (IOException e) {
-                System.err.println("server thread "+ Thread.currentThread().getId() + ": rmdir error (" + e + ")");
+                this.error("rmdir", e);
             } 
         }
 
@@ -242,18 +847,24 @@ public class server{
          */
         private void rm() {
             try {
-                String path = readLine(this.inFromClient); // read the server's file path from the client 
+                String path = this.readPath(); // read the server's file path from the client 
 
                 // try to delete the file and let the client know whether the operation succeded or not
                 File file = new File(path);
-                if (file.isFile() && file.delete()){
-                    this.outToClient.writeBoolean(true);
+                boolean removed = false;
+                Lock lock = locks.writing(file); // a download that already opened the file keeps reading it
+                lock.lock();
+                try {
+                    if (index.isFile(file) && file.delete()){
+                        changed(file);
+                        removed = true;
+                    }
+                } finally {
+                    lock.unlock();
                 }
-                else{
-                    this.outToClient.writeBoolean(false);
-                }             
+                this.outToClient.writeBoolean(removed);
             } catch (IOException e) {
-                System.err.println("server thread "+ Thread.currentThread().getId() + ": rm error (" + e + ")");
+                this.error("rm", e);
             }          
         }
 
@@ -262,45 +873,126 @@ public class server{
          */
         private void upload() {
             try {
-                String path = readLine(inFromClient);
+                String path = this.readPath();
                 
                 // check that the client's filepath is valid 
                 File file = new File(path);
-                if ((file.getParentFile() == null || file.getParentFile().isDirectory()) && !file.isDirectory()){
+                if (uploadable(file)){
                     this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
                     long fileSize = this.inFromClient.readLong(); // read the file size from the client 
                     long bytesDownloaded = 0; // number of bytes that has been written to the file so far
-                    FileOutputStream fileOutputStream; 
-
-                    // check if the file already exists and if the file is not as long as it should be
-                    if (file.exists() && file.length() < fileSize){
-                        bytesDownloaded = file.length();
-                        this.outToClient.writeBoolean(true); // tell the client to resume upload 
-                        this.outToClient.writeLong(bytesDownloaded); // tell the client how many bytes we have already 
-                        fileOutputStream = new FileOutputStream(file, true); // write to end of the existing file
-                    }
-                    else{
-                        this.outToClient.writeBoolean(false); // tell the client to upload from the beginning 
-                        fileOutputStream = new FileOutputStream(file); // create a new file 
-                    }                    
 
-                    int bytes = 0;
-                    byte[] buffer = new byte[1024]; // buffer to hold bytes from client 
-                    
-                    while(bytesDownloaded != fileSize && (bytes = this.inFromClient.read(buffer)) > -1){
-                        fileOutputStream.write(buffer,0,bytes);
-                        bytesDownloaded += bytes;
-                        this.outToClient.writeBoolean(true);
+                    // the file is written next to its path and put in place once it is complete 
+                    try (stagedFile staged = stagedFile.open(file)){
+                        // check if an interrupted upload left part of the file
+                        if (staged.length() > 0 && staged.length() < fileSize){
+                            bytesDownloaded = staged.length();
+                            this.outToClient.writeBoolean(true); // tell the client to resume upload 
+                            this.outToClient.writeLong(bytesDownloaded); // tell the client how many bytes we have already 
+                        }
+                        else{
+                            this.outToClient.writeBoolean(false); // tell the client to upload from the beginning 
+                            staged.setLength(0);
+                        }
+                        long resumedFrom = bytesDownloaded;
+                        metrics.resumed(resumedFrom);
+
+                        int bytes = 0;
+                        byte[] buffer = new byte[STREAM_BUFFER_SIZE]; // buffer to hold bytes from client (the client still waits for a confirmation after every chunk it sends)
+                        InputStream fileBytes = this.limiter.input(this.inFromClient);
+                        
+                        // the bytes go to the disk on a thread of their own while the next ones are read from the socket
+                        try (writeBehind fileOutputStream = new writeBehind(staged, bytesDownloaded)){
+                            while(bytesDownloaded != fileSize && (bytes = fileBytes.read(buffer)) > -1){
+                                fileOutputStream.write(buffer,0,bytes);
+                                bytesDownloaded += bytes;
+                                this.outToClient.writeBoolean(true);
+                            }
+                        } // closing waits for the last bytes, so an interrupted upload keeps what arrived
+
+                        if (bytesDownloaded == fileSize){
+                            staged.commit(locks);
+                            changed(file);
+                        }
+                        metrics.bytesIn(this.command, bytesDownloaded - resumedFrom);
                     }
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+
+            } catch (IOException e) {
+                this.error("upload", e);
+            }
+        }
+
+        /**
+         * Upload a file as a continuous stream 
+         * the client does not wait for each chunk to be confirmed, instead the server sends a cumulative 
+         * acknowledgement (total bytes written) every ACK_INTERVAL bytes and once more when the file is complete 
+         */
+        private void streamUpload() {
+            try {
+                String path = this.readPath();
 
-                    fileOutputStream.close();
+                // check that the client's filepath is valid 
+                File file = new File(path);
+                if (uploadable(file)){
+                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
+                    long fileSize = this.inFromClient.readLong(); // read the file size from the client 
+                    long bytesDownloaded = 0; // number of bytes that has been written to the file so far
+
+                    // the file is written next to its path and put in place once it is complete 
+                    try (stagedFile staged = stagedFile.open(file)){
+                        // check if an interrupted upload left part of the file
+                        if (staged.length() > 0 && staged.length() < fileSize){
+                            bytesDownloaded = staged.length();
+                            this.outToClient.writeBoolean(true); // tell the client to resume upload 
+                            this.outToClient.writeLong(bytesDownloaded); // tell the client how many bytes we have already 
+                        }
+                        else{
+                            this.outToClient.writeBoolean(false); // tell the client to upload from the beginning 
+                            staged.setLength(0);
+                        }
+                        long resumedFrom = bytesDownloaded;
+                        metrics.resumed(resumedFrom);
+
+                        int bytes = 0;
+                        byte[] buffer = new byte[STREAM_BUFFER_SIZE]; // buffer to hold bytes from client 
+                        long nextAck = bytesDownloaded + ACK_INTERVAL; // acknowledge once this many bytes have been written
+                        InputStream fileBytes = this.limiter.input(this.inFromClient);
+                        tuning.transfer transfer = new tuning.transfer(this.clientConnection, fileSize - bytesDownloaded, 0);
+                        
+                        // the bytes go to the disk on a thread of their own while the next ones are read from the socket
+                        try (writeBehind fileOutputStream = new writeBehind(staged, bytesDownloaded)){
+                            while(bytesDownloaded != fileSize && (bytes = fileBytes.read(buffer, 0, (int) Math.min(buffer.length, fileSize - bytesDownloaded))) > -1){
+                                fileOutputStream.write(buffer,0,bytes);
+                                bytesDownloaded += bytes;
+                                transfer.progress(bytes);
+                                if (buffer.length < transfer.chunk()){
+                                    buffer = new byte[transfer.chunk()]; // the transfer is fast enough for larger reads
+                                }
+                                if (bytesDownloaded >= nextAck && bytesDownloaded != fileSize){
+                                    this.outToClient.writeLong(bytesDownloaded); // cumulative acknowledgement 
+                                    nextAck = bytesDownloaded + ACK_INTERVAL;
+                                }
+                            }
+                        } // closing waits for the last bytes, so an interrupted upload keeps what arrived
+
+                        if (bytesDownloaded == fileSize){
+                            staged.commit(locks); // the file is on the disk before the client hears that it is complete
+                            changed(file);
+                        }
+                        metrics.bytesIn(this.command, bytesDownloaded - resumedFrom);
+                    }
+                    this.outToClient.writeLong(bytesDownloaded); // final acknowledgement once the file has been written
                 }
                 else{
                     this.outToClient.writeBoolean(false);
                 }
 
             } catch (IOException e) {
-                System.err.println("server thread "+ Thread.currentThread().getId() + ": upload error (" + e + ")");
+                this.error("upload", e);
             }
         }
 
@@ -309,37 +1001,833 @@ public class server{
          */
         private void download() {
             try {
-                String path = readLine(inFromClient);
+                String path = this.readPath();
 
                 // check that the client's filepath is valid 
                 File file = new File(path);
-                if (file.isFile()){
+                if (index.isFile(file)){
                     this.outToClient.writeBoolean(true);  // let the client know that the command will be executed 
-                    this.outToClient.writeLong(file.length()); // let the client know the file size
+                    fileCache.entry cached;
+                    FileChannel fileChannel;
+                    Lock lock = locks.reading(file); // an upload that finishes now replaces the file before it is opened or after, never halfway
+                    lock.lock();
+                    try {
+                        cached = cache.find(file);
+                        fileChannel = (cached != null && cached.loaded()) ? null : new FileInputStream(file).getChannel(); // a cached copy that is not read yet is read from it
+                    } finally {
+                        lock.unlock();
+                    }
+                    cached = cache.fill(cached, fileChannel); // the disk is read after the lock is released
+                    if (cached != null && fileChannel != null){
+                        fileChannel.close();
+                        fileChannel = null;
+                    }
+                    long fileSize = (cached != null) ? cached.size : fileChannel.size();
+                    this.outToClient.writeLong(fileSize); // let the client know the file size
 
                     long bytesUploaded = 0; // the number of bytes the client has recieved 
-                    FileInputStream fileInputStream = new FileInputStream(file); // IO Stream for reading in the file 
 
                     // client will confirm whether it wants to resume download
                     if (this.inFromClient.readBoolean()){
-                        bytesUploaded = this.inFromClient.readLong(); // number of bytes of the file the server already has
-                        fileInputStream.skip(bytesUploaded); // skip the bytes the server already has
+                        bytesUploaded = this.inFromClient.readLong(); // number of bytes of the file the client already has
+                    }
+                    if (bytesUploaded < 0 || bytesUploaded > fileSize){
+                        if (fileChannel != null){
+                            fileChannel.close();
+                        }
+                        throw new IOException("resume offset " + bytesUploaded + " is outside of the file");
+                    }
+
+                    metrics.resumed(bytesUploaded);
+                    try {
+                        this.sendFile(fileChannel, cached, bytesUploaded, fileSize, new tuning.transfer(this.clientConnection, fileSize - bytesUploaded, 0));
+                        metrics.bytesOut(this.command, fileSize - bytesUploaded);
+                    } finally {
+                        if (fileChannel != null){
+                            fileChannel.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                this.error("download", e);
+            }
+        }
+
+        /**
+         * Upload a file as a continuous stream, resuming only after checking the part the server already has
+         * the server sends a checksum of every block it has and the client resends from the first block that differs,
+         * once the file is written the client's digest of the whole file confirms the server's copy 
+         */
+        private void verifiedUpload() {
+            try {
+                String path = this.readPath();
+
+                // check that the client's filepath is valid 
+                File file = new File(path);
+                if (uploadable(file)){
+                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
+                    this.offerCodecs();
+                    int codec = this.readCodec(); 
+                    long fileSize = this.inFromClient.readLong(); // read the file size from the client 
+
+                    // the file is written next to its path and put in place once it is complete and verified 
+                    try (stagedFile staged = stagedFile.open(file)){
+                        FileChannel fileChannel = staged.channel();
+
+                        // let the client check the blocks we already have, it resends from the first one that differs 
+                        // (those of the part an interrupted upload left, otherwise those of the file that is in place)
+                        FileChannel existing = null;
+                        if (staged.length() == 0 && index.isFile(file)){
+                            try {
+                                existing = new FileInputStream(file).getChannel();
+                            } catch (FileNotFoundException e) {
+                                // removed since it was checked, there is nothing to resume from
+                            }
+                        }
+                        try {
+                            FileChannel checked = (existing != null) ? existing : fileChannel;
+                            verifier fileVerifier = new verifier(checked);
+                            verifier.writeChecksums(this.outToClient, fileVerifier.checksumBlocks(Math.min(checked.size(), fileSize)));
+                            long bytesDownloaded = this.inFromClient.readLong(); 
+                            fileVerifier.resumeAt(bytesDownloaded);
+                            long resumedFrom = bytesDownloaded;
+                            metrics.resumed(resumedFrom);
+                            fileChannel.truncate(bytesDownloaded); 
+                            for (long copied = 0; existing != null && copied < bytesDownloaded; ){
+                                copied += existing.transferTo(copied, bytesDownloaded - copied, fileChannel.position(copied)); // the blocks that matched start the new copy
+                            }
+                            fileChannel.position(bytesDownloaded);
+
+                            long nextAck = bytesDownloaded + ACK_INTERVAL; // acknowledge once this many bytes have been written
+                            tuning.transfer transfer = new tuning.transfer(this.clientConnection, fileSize - bytesDownloaded, this.rtt);
+                            if (codec == protocol.CODEC_RAW && mappedFile.worthMapping(fileSize) && this.inFromClient.available() == 0){
+                                // large file, read from the socket straight into a mapping of the file at its final size 
+                                staged.setLength(fileSize);
+                                mappedFile mapping = new mappedFile(fileChannel, FileChannel.MapMode.READ_WRITE);
+                                ReadableByteChannel socketChannel = this.limiter.input((this.clientConnection == null) ? Channels.newChannel(this.inFromClient) : this.clientConnection.getChannel());
+                                try {
+                                    while (bytesDownloaded != fileSize){
+                                        long bytes = mapping.receive(bytesDownloaded, Math.min(nextAck, fileSize) - bytesDownloaded, socketChannel, fileVerifier);
+                                        bytesDownloaded += bytes;
+                                        transfer.progress(bytes);
+                                        if (bytesDownloaded >= nextAck && bytesDownloaded != fileSize){
+                                            this.outToClient.writeLong(bytesDownloaded); // cumulative acknowledgement 
+                                            nextAck = bytesDownloaded + ACK_INTERVAL;
+                                        }
+                                        if (bytes == 0){
+                                            break; // client closed the connection
+                                        }
+                                    }
+                                } finally {
+                                    if (bytesDownloaded != fileSize){
+                                        fileChannel.truncate(bytesDownloaded); // keep only what arrived so the next upload resumes after it
+                                    }
+                                }
+                            }
+                            else{
+                                int bytes = 0;
+                                byte[] buffer = new byte[STREAM_BUFFER_SIZE]; // buffer to hold bytes from client 
+                                InputStream wireBytes = this.limiter.input(this.inFromClient); // the limit counts the bytes on the wire
+                                InputStream fileBytes = (codec == protocol.CODEC_DEFLATE) ? compression.input(wireBytes) : wireBytes;
+                    
+                                // the bytes go to the disk on a thread of their own while this one reads and checks the next ones
+                                try (writeBehind fileOutputStream = new writeBehind(staged, bytesDownloaded)){
+                                    while(bytesDownloaded != fileSize && (bytes = fileBytes.read(buffer, 0, (int) Math.min(buffer.length, fileSize - bytesDownloaded))) > -1){
+                                        fileOutputStream.write(buffer, 0, bytes);
+                                        fileVerifier.update(buffer, 0, bytes);
+                                        bytesDownloaded += bytes;
+                                        transfer.progress(bytes);
+                                        if (buffer.length < transfer.chunk()){
+                                            buffer = new byte[transfer.chunk()]; // the transfer is fast enough for larger reads
+                                        }
+                                        if (bytesDownloaded >= nextAck && bytesDownloaded != fileSize){
+                                            this.outToClient.writeLong(bytesDownloaded); // cumulative acknowledgement 
+                                            nextAck = bytesDownloaded + ACK_INTERVAL;
+                                        }
+                                    }
+                                } finally {
+                                    compression.end(fileBytes); // frees the decompressor
+                                }
+                            }
+
+                            // compare the client's digest of the whole file with ours 
+                            byte[] expected = new byte[verifier.DIGEST_LENGTH];
+                            this.inFromClient.readFully(expected);
+                            boolean verified = MessageDigest.isEqual(expected, fileVerifier.finish());
+                            if (verified){
+                                staged.commit(locks);
+                                changed(file);
+                            }
+                            else{
+                                fileChannel.truncate(0); // the copy is corrupt, the next upload starts over
+                            }
+                            metrics.bytesIn(this.command, bytesDownloaded - resumedFrom);
+
+                            this.outToClient.writeLong(bytesDownloaded); // final acknowledgement once the file has been written
+                            this.outToClient.writeBoolean(verified);
+                        } finally {
+                            if (existing != null){
+                                existing.close();
+                            }
+                        }
+                    }
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+
+            } catch (IOException e) {
+                this.error("upload", e);
+            }
+        }
+
+        /**
+         * Upload only the parts of a file that the server's copy does not have
+         * the server sends the signatures of its copy's blocks, the client answers with references to those blocks and the bytes in between,
+         * the new file is built next to the old one and renamed over it once its digest matches, so the old copy stays whole until then
+         */
+        private void deltaUpload() {
+            try {
+                String path = this.readPath();
+
+                // check that the client's filepath is valid 
+                File file = new File(path);
+                File directory = file.getAbsoluteFile().getParentFile();
+                if (uploadable(file)){
+                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
+                    long fileSize = this.inFromClient.readLong(); // read the file size from the client 
+
+                    long oldSize = file.isFile() ? file.length() : 0;
+                    int blockSize = delta.blockSize(oldSize);
+                    int blocks = (int) Math.min(oldSize / blockSize, delta.MAX_BLOCKS);
+                    delta.writeSignatures(this.outToClient, file, blockSize, blocks);
+
+                    File newFile = File.createTempFile("." + file.getName() + ".", ".delta", directory);
+                    boolean verified = false;
+                    try {
+                        verified = delta.apply(new DataInputStream(this.limiter.input(this.inFromClient)), file, newFile, blockSize, blocks, fileSize);
+                        if (verified){
+                            stagedFile.replace(newFile, file, locks);
+                        }
+                    } finally {
+                        if (!verified){
+                            newFile.delete(); // leave the old copy as it was
+                        }
+                    }
+                    changed(file);
+                    this.outToClient.writeBoolean(verified);
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+
+            } catch (IOException e) {
+                this.error("delta upload", e);
+            }
+        }
+
+        /**
+         * Upload many small files (and directories) in one stream, e.g. the files of a tree that is uploaded recursively
+         * the client sends entries of [type][name] where files also carry [long size][bytes], and ENTRY_END after the last one;
+         * missing directories are created as the entries arrive and the server replies once at the end with the names of the entries that failed
+         */
+        private void batchUpload() {
+            try {
+                String path = this.readPath();
+
+                // the directory of the batch is created if it does not exist 
+                File directory = new File(path);
+                if (makeDirectories(directory)){
+                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
+                    DataInputStream entries = new DataInputStream(new BufferedInputStream(this.limiter.input(this.inFromClient), STREAM_BUFFER_SIZE)); // the client sends nothing after ENTRY_END, so nothing is read too far
+                    List<String> failed = new ArrayList<>();
+                    List<stagedFile> written = new ArrayList<>(); // files that arrived and are put in place together
+                    List<String> writtenNames = new ArrayList<>(); // their names in the batch
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    long received = 0;
+
+                    for (int type = entries.readUnsignedByte(); type != protocol.ENTRY_END; type = entries.readUnsignedByte()){
+                        String name = protocol.readString(entries);
+                        File file = resolve(directory, name);
+                        if (type == protocol.ENTRY_DIRECTORY){
+                            if (file == null || !makeDirectories(file)){
+                                failed.add(name);
+                            }
+                            continue;
+                        }
+                        if (type != protocol.ENTRY_FILE){
+                            throw new IOException("unknown entry type " + type);
+                        }
+
+                        // the bytes of the file are read even if it cannot be written, so the next entry is found 
+                        long fileSize = entries.readLong();
+                        OutputStream fileOutputStream = OutputStream.nullOutputStream();
+                        stagedFile staged = null;
+                        if (file != null && !index.isDirectory(file) && makeDirectories(file.getParentFile())){
+                            try {
+                                staged = stagedFile.open(file);
+                                staged.setLength(0); // a batch does not resume
+                                fileOutputStream = new BufferedOutputStream(Channels.newOutputStream(staged.channel()), STREAM_BUFFER_SIZE);
+                            } catch (IOException e) {
+                                if (staged != null){
+                                    staged.close();
+                                }
+                                staged = null;
+                            }
+                        }
+                        try {
+                            for (long remaining = fileSize; remaining > 0; ){
+                                int bytes = entries.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                                if (bytes < 0){
+                                    throw new EOFException("client closed the connection");
+                                }
+                                fileOutputStream.write(buffer, 0, bytes);
+                                remaining -= bytes;
+                            }
+                            fileOutputStream.flush();
+                        } catch (IOException e) {
+                            if (staged != null){
+                                staged.close();
+                            }
+                            this.discard(written);
+                            throw e;
+                        }
+                        if (staged == null){
+                            failed.add(name);
+                        }
+                        else{
+                            written.add(staged);
+                            writtenNames.add(name);
+                            received += fileSize;
+                        }
+                        if (written.size() == BATCH_COMMIT_FILES){
+                            this.commit(written, writtenNames, failed);
+                        }
+                    }
+                    this.commit(written, writtenNames, failed);
+                    metrics.bytesIn(this.command, received);
+
+                    // let the client know which entries failed 
+                    DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(this.outToClient, STREAM_BUFFER_SIZE));
+                    reply.writeInt(failed.size());
+                    for (String name : failed){
+                        protocol.writeString(reply, name);
+                    }
+                    reply.flush();
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+            } catch (IOException e) {
+                this.error("batch upload", e);
+            }
+        }
+
+        /**
+         * Put the files of a batch that arrived in place, flushing all of them to the disk before the first one is renamed
+         * @param written files of the batch that arrived, the list is emptied
+         * @param names their names in the batch, the list is emptied
+         * @param failed names of the entries that failed, files that cannot be put in place are added
+         */
+        private void commit(List<stagedFile> written, List<String> names, List<String> failed) throws IOException {
+            try {
+                stagedFile.syncAll(written);
+            } catch (IOException e) {
+                this.discard(written);
+                throw e;
+            }
+            for (int i=0; i<written.size(); i++){
+                stagedFile staged = written.get(i);
+                try {
+                    staged.publish(locks);
+                    changed(staged.file);
+                } catch (IOException e) {
+                    failed.add(names.get(i));
+                    staged.close();
+                }
+            }
+            written.clear();
+            names.clear();
+        }
+
+        /**
+         * Remove the staged files of a batch that did not complete
+         */
+        private void discard(List<stagedFile> written) throws IOException {
+            for (stagedFile staged : written){
+                staged.close();
+            }
+            written.clear();
+        }
+
+        /**
+         * Upload a file as content-defined chunks, the client only sends the chunks the server does not have
+         * the client sends the size of the file and its chunks (chunker), the server answers with a bit for every chunk it needs and
+         * builds the file from the chunks the client sends, the stored files that have the others (chunkStore) and repeats of chunks
+         * earlier in the same file; without a chunk store only the repeats are saved and the file is written like any other upload
+         */
+        private void chunkUpload() {
+            try {
+                String path = this.readPath();
+
+                // check that the client's filepath is valid 
+                File file = new File(path);
+                if (uploadable(file)){
+                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
+                    DataInputStream request = new DataInputStream(new BufferedInputStream(this.limiter.input(this.inFromClient), STREAM_BUFFER_SIZE)); // the client sends nothing after the chunks that were asked for
+                    List<chunker.chunk> chunks = chunker.readChunks(request);
+                    String name = chunker.name(chunks);
+
+                    // find the chunks the server has, the stored files they are in are kept until the file is built 
+                    chunkStore.object whole = (store != null) ? store.use(name) : null; // the same file was stored before
+                    List<chunkStore.object> used = new ArrayList<>();
+                    chunkStore.location[] from = new chunkStore.location[chunks.size()];
+                    long[] earlier = new long[chunks.size()]; // where a chunk first appears in this file, -1 if this is its first appearance
+                    byte[] needed = new byte[(chunks.size() + 7) / 8]; // a bit for every chunk the client has to send
+                    try {
+                        Map<chunker.chunk, Long> offsets = new HashMap<>();
+                        long offset = 0;
+                        for (int i=0; whole == null && i<chunks.size(); i++){
+                            chunker.chunk chunk = chunks.get(i);
+                            Long first = offsets.putIfAbsent(chunk, offset);
+                            earlier[i] = (first != null) ? first : -1;
+                            if (first == null && store != null && (from[i] = store.locate(chunk)) != null){
+                                used.add(from[i].object);
+                            }
+                            if (first == null && from[i] == null){
+                                needed[i / 8] |= 1 << (i % 8);
+                            }
+                            offset += chunk.length;
+                        }
+                        this.outToClient.write(needed);
+
+                        long received = 0;
+                        if (whole != null){
+                            store.link(file, whole, locks); // it lets go of the stored file itself
+                            whole = null;
+                            changed(file);
+                        }
+                        else if (store != null){
+                            File built = store.temporaryFile();
+                            try {
+                                try (RandomAccessFile randomAccessFile = new RandomAccessFile(built, "rw")){
+                                    received = this.buildFile(randomAccessFile.getChannel(), chunks, from, earlier, needed, request);
+                                    randomAccessFile.getChannel().force(true);
+                                }
+                                if (received >= 0){
+                                    store.link(file, store.add(built, name, chunks), locks);
+                                    changed(file);
+                                }
+                            } finally {
+                                built.delete(); // still there if it was not stored
+                            }
+                        }
+                        else{
+                            try (stagedFile staged = stagedFile.open(file)){
+                                staged.setLength(0); // chunks are not resumed
+                                received = this.buildFile(staged.channel(), chunks, from, earlier, needed, request);
+                                if (received >= 0){
+                                    staged.commit(locks);
+                                    changed(file);
+                                }
+                                else{
+                                    staged.setLength(0);
+                                }
+                            }
+                        }
+                        metrics.bytesIn(this.command, Math.max(received, 0));
+                        this.outToClient.writeBoolean(received >= 0);
+                    } finally {
+                        if (whole != null){
+                            store.release(whole);
+                        }
+                        for (chunkStore.object stored : used){
+                            store.release(stored);
+                        }
+                    }
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+            } catch (IOException e) {
+                this.error("chunk upload", e);
+            }
+        }
+
+        /**
+         * Build the file of a chunk upload in order, from the chunks the client sends and the chunks the server has
+         * @param fileChannel the file to build
+         * @param chunks the chunks of the file
+         * @param from where the stored chunks are, null for the others
+         * @param earlier where repeated chunks first appear in the file, -1 for the others
+         * @param needed a bit for every chunk the client sends
+         * @param request the stream the client sends the chunks on
+         * @return bytes received from the client, -1 if a chunk it sent does not have its name (e.g. the file changed while it was uploaded)
+         */
+        private long buildFile(FileChannel fileChannel, List<chunker.chunk> chunks, chunkStore.location[] from, long[] earlier, byte[] needed, DataInputStream request) throws IOException {
+            byte[] buffer = new byte[chunker.MAX_CHUNK_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            Map<chunkStore.object, FileChannel> opened = new HashMap<>(); // stored files chunks are copied from
+            long received = 0;
+            long position = 0;
+            boolean matched = true;
+            try {
+                for (int i=0; i<chunks.size(); i++){
+                    int length = chunks.get(i).length;
+                    byteBuffer.clear().limit(length);
+                    if ((needed[i / 8] & (1 << (i % 8))) != 0){
+                        request.readFully(buffer, 0, length);
+                        matched &= chunker.matches(chunks.get(i), buffer, length);
+                        received += length;
+                    }
+                    else if (earlier[i] >= 0){
+                        readFully(fileChannel, byteBuffer, earlier[i]);
+                    }
+                    else{
+                        FileChannel stored = opened.get(from[i].object);
+                        if (stored == null){
+                            stored = new FileInputStream(store.file(from[i].object)).getChannel();
+                            opened.put(from[i].object, stored);
+                        }
+                        readFully(stored, byteBuffer, from[i].offset);
+                    }
+                    byteBuffer.clear().limit(length);
+                    while (byteBuffer.hasRemaining()){
+                        fileChannel.write(byteBuffer, position + byteBuffer.position());
+                    }
+                    position += length;
+                }
+            } finally {
+                for (FileChannel stored : opened.values()){
+                    stored.close();
+                }
+            }
+            return matched ? received : -1;
+        }
+
+        /**
+         * Fill a buffer from a position of a file
+         */
+        private void readFully(FileChannel fileChannel, ByteBuffer byteBuffer, long position) throws IOException {
+            while (byteBuffer.hasRemaining()){
+                if (fileChannel.read(byteBuffer, position + byteBuffer.position()) < 0){
+                    throw new EOFException("a chunk the server has is missing");
+                }
+            }
+        }
+
+        /**
+         * Download many small files in one stream, e.g. the files of a tree that is downloaded recursively
+         * the client sends the number of files and their names inside the directory, the server answers every one 
+         * with [boolean found][long size][bytes] in the same order
+         */
+        private void batchDownload() {
+            try {
+                String path = this.readPath();
+
+                // check that the path is a directory 
+                File directory = new File(path);
+                if (index.isDirectory(directory)){
+                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
+                    int count = this.inFromClient.readInt();
+                    if (count < 0 || count > MAX_BATCH_FILES){
+                        throw new IOException("batch of " + count + " files is too large");
+                    }
+                    String[] names = new String[count];
+                    for (int i=0; i<count; i++){
+                        names[i] = protocol.readString(this.inFromClient);
+                    }
+
+                    DataOutputStream files = new DataOutputStream(new BufferedOutputStream(this.limiter.output(this.outToClient), STREAM_BUFFER_SIZE));
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    long sent = 0;
+                    for (String name : names){
+                        File file = resolve(directory, name);
+                        FileInputStream opened = null;
+                        Lock lock = (file != null) ? locks.reading(file) : null;
+                        if (lock != null){
+                            lock.lock();
+                        }
+                        try {
+                            opened = (file != null && file.isFile()) ? new FileInputStream(file) : null;
+                        } catch (FileNotFoundException e) {
+                            // removed since it was checked, it is reported as not found
+                        } finally {
+                            if (lock != null){
+                                lock.unlock();
+                            }
+                        }
+                        if (opened == null){
+                            files.writeBoolean(false);
+                            continue;
+                        }
+
+                        // send the size the file has now, even if it changes while it is read 
+                        try (FileInputStream fileInputStream = opened){
+                            long fileSize = fileInputStream.getChannel().size();
+                            files.writeBoolean(true);
+                            files.writeLong(fileSize);
+                            for (long remaining = fileSize; remaining > 0; ){
+                                int bytes = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                                if (bytes < 0){
+                                    throw new EOFException("file became shorter while downloading");
+                                }
+                                files.write(buffer, 0, bytes);
+                                remaining -= bytes;
+                            }
+                            sent += fileSize;
+                        }
+                    }
+                    files.flush();
+                    metrics.bytesOut(this.command, sent);
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+            } catch (IOException e) {
+                this.error("batch download", e);
+            }
+        }
+
+        /**
+         * Download a file, resuming only from where the client's copy stops matching 
+         * the client sends a checksum of every block it has, the server resends from the first block that differs 
+         * and finishes with a digest of the whole file so the client can confirm its copy
+         */
+        private void verifiedDownload() {
+            try {
+                String path = this.readPath();
+
+                // check that the client's filepath is valid 
+                File file = new File(path);
+                if (index.isFile(file)){
+                    this.outToClient.writeBoolean(true);  // let the client know that the command will be executed 
+                    FileChannel opened;
+                    fileCache.entry cached;
+                    Lock lock = locks.reading(file);
+                    lock.lock();
+                    try {
+                        opened = new FileInputStream(file).getChannel();
+                        cached = cache.find(file);
+                    } finally {
+                        lock.unlock();
+                    }
+                    try (FileChannel fileChannel = opened){ // closed however the download ends
+                        cached = cache.fill(cached, fileChannel); // the disk is read after the lock is released
+                        long fileSize = fileChannel.size();
+                        if (cached != null && cached.size != fileSize){
+                            cached = null; // the file is changing
+                        }
+                        this.outToClient.writeLong(fileSize); // let the client know the file size
+                        this.offerCodecs();
+                        int codec = this.readCodec();
+
+                        // check the blocks the client already has and resume from the first one that differs 
+                        verifier fileVerifier = new verifier(fileChannel);
+                        long bytesUploaded = fileVerifier.matchBlocks(verifier.readChecksums(this.inFromClient, fileSize));
+                        this.outToClient.writeLong(bytesUploaded);
+                        long resumedFrom = bytesUploaded;
+                        metrics.resumed(resumedFrom);
+                        tuning.transfer transfer = new tuning.transfer(this.clientConnection, fileSize - bytesUploaded, this.rtt);
+                        byte[] digest; // digest of the whole file so the client can confirm its copy
+
+                        if (codec == protocol.CODEC_DEFLATE){ // the bytes have to pass through the server to be compressed
+                            OutputStream fileBytes = compression.output(this.limiter.output(this.outToClient));
+                            InputStream fileInputStream = Channels.newInputStream(fileChannel.position(bytesUploaded));
+                            byte[] buffer = new byte[compression.BLOCK_SIZE];
+                            try {
+                                while (bytesUploaded < fileSize){
+                                    int bytes = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, fileSize - bytesUploaded));
+                                    if (bytes < 0){
+                                        throw new EOFException("file became shorter while downloading");
+                                    }
+                                    fileBytes.write(buffer, 0, bytes);
+                                    fileVerifier.update(buffer, 0, bytes);
+                                    bytesUploaded += bytes;
+                                }
+                                fileBytes.close(); // send the last block, the connection stays open
+                            } finally {
+                                compression.end(fileBytes); // frees the compressor if the download failed before the last block
+                            }
+                            digest = fileVerifier.finish();
+                        }
+                        else if (cached != null){ // the cached copy also knows the digest of the whole file
+                            this.sendFile(null, cached, bytesUploaded, fileSize, transfer);
+                            if (resumedFrom > 0){
+                                fileVerifier.update(cached.contents().position((int) resumedFrom));
+                            }
+                            digest = (resumedFrom == 0) ? cached.digest() : fileVerifier.finish();
+                        }
+                        else if (mappedFile.worthMapping(fileSize)){ // large file, send it from a mapping and take the digest from the same pages
+                            WritableByteChannel socketChannel = this.limiter.output((this.clientConnection == null) ? Channels.newChannel(this.outToClient) : this.clientConnection.getChannel());
+                            mappedFile mapping = new mappedFile(fileChannel, FileChannel.MapMode.READ_ONLY);
+                            while (bytesUploaded < fileSize){
+                                long bytes = Math.min(transfer.chunk(), fileSize - bytesUploaded);
+                                mapping.send(bytesUploaded, bytes, socketChannel, fileVerifier);
+                                bytesUploaded += bytes;
+                                transfer.progress(bytes);
+                            }
+                            digest = fileVerifier.finish();
+                        }
+                        else{
+                            this.sendFile(fileChannel, null, bytesUploaded, fileSize, transfer);
+
+                            // the bytes did not pass through the server, read them back (from the page cache) for the digest 
+                            fileVerifier.updateFrom(resumedFrom, fileSize);
+                            digest = fileVerifier.finish();
+                        }
+                        this.outToClient.write(digest);
+                        metrics.bytesOut(this.command, fileSize - resumedFrom);
+                    }
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+            } catch (IOException e) {
+                this.error("download", e);
+            }
+        }
+
+        /**
+         * Send bytes of a file to the client, from the download cache if the file is cached 
+         * otherwise the kernel sends them straight from the page cache to the socket (a session stream is not a socket, the bytes are copied into it)
+         * the bytes go a chunk of the transfer at a time, so its socket buffers can grow and the bandwidth limits can hold it back between chunks
+         * @param fileChannel the open file, null if it is cached 
+         * @param cached the cached copy of the file, null if it is not cached
+         * @param from first byte to send
+         * @param to one past the last byte to send
+         * @param transfer sizes of the transfer
+         */
+        private void sendFile(FileChannel fileChannel, fileCache.entry cached, long from, long to, tuning.transfer transfer) throws IOException {
+            WritableByteChannel socketChannel = (this.clientConnection == null) ? Channels.newChannel(this.outToClient) : this.clientConnection.getChannel();
+            if (cached != null){
+                ByteBuffer contents = cached.contents();
+                contents.limit((int) to).position((int) from);
+                WritableByteChannel limitedChannel = this.limiter.output(socketChannel);
+                while (contents.hasRemaining()){
+                    contents.limit((int) Math.min(to, contents.position() + transfer.chunk()));
+                    transfer.progress(limitedChannel.write(contents));
+                    contents.limit((int) to);
+                }
+                return;
+            }
+            while (from < to){
+                long bytes = fileChannel.transferTo(from, this.limiter.take(Math.min(transfer.chunk(), to - from)), socketChannel);
+                if (bytes == 0 && from >= fileChannel.size()){
+                    throw new EOFException("file became shorter while downloading");
+                }
+                from += bytes;
+                transfer.progress(bytes);
+            }
+        }
+
+        /**
+         * Download one byte range of a file, the client fetches the other ranges over other connections at the same time
+         */
+        private void rangeDownload() {
+            try {
+                String path = this.readPath();
+
+                // check that the client's filepath is valid 
+                File file = new File(path);
+                if (index.isFile(file)){
+                    this.outToClient.writeBoolean(true);  // let the client know that the command will be executed 
+                    fileCache.entry cached;
+                    FileChannel fileChannel;
+                    Lock lock = locks.reading(file);
+                    lock.lock();
+                    try {
+                        cached = cache.find(file);
+                        fileChannel = (cached != null && cached.loaded()) ? null : new FileInputStream(file).getChannel(); // a cached copy that is not read yet is read from it
+                    } finally {
+                        lock.unlock();
                     }
+                    try {
+                        cached = cache.fill(cached, fileChannel); // the disk is read after the lock is released
+                        if (cached != null && fileChannel != null){
+                            fileChannel.close();
+                            fileChannel = null;
+                        }
+                        long fileSize = (cached != null) ? cached.size : fileChannel.size();
+                        this.outToClient.writeLong(fileSize); // let the client know the file size so it can split it into ranges
 
-                    int bytes = 0; // number of bytes that was read from the file 
-                    byte[] buffer = new byte[1024]; // buffer to hold the bytes that was read
+                        long offset = this.inFromClient.readLong(); // first byte of the range 
+                        long end = offset + this.inFromClient.readLong(); // one past the last byte of the range
+                        if (offset < 0 || end > fileSize || end < offset){
+                            throw new IOException("range " + offset + "-" + end + " is outside of the file");
+                        }
+                        this.sendFile(fileChannel, cached, offset, end, new tuning.transfer(this.clientConnection, end - offset, 0));
+                        metrics.bytesOut(this.command, end - offset);
+                    } finally {
+                        if (fileChannel != null){
+                            fileChannel.close();
+                        }
+                    }
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
+                }
+            } catch (IOException e) {
+                this.error("range download", e);
+            }
+        }
+
+        /**
+         * Upload one byte range of a file, the client sends the other ranges over other connections at the same time
+         * every range writes its bytes at their own position, so the ranges can arrive in any order 
+         */
+        private void rangeUpload() {
+            try {
+                String path = this.readPath();
+
+                // check that the client's filepath is valid 
+                File file = new File(path);
+                if (uploadable(file)){
+                    this.outToClient.writeBoolean(true); // let the client know that the command will be executed 
+                    long fileSize = this.inFromClient.readLong(); // size of the whole file 
+                    long offset = this.inFromClient.readLong(); // first byte of the range 
+                    long end = offset + this.inFromClient.readLong(); // one past the last byte of the range
+                    if (offset < 0 || end > fileSize || end < offset){
+                        throw new IOException("range " + offset + "-" + end + " is outside of the file");
+                    }
+
+                    long uploadId = (this.version >= 6) ? this.inFromClient.readLong() : 0; // the ranges of one upload send the same id
+
+                    // the ranges share one staged file of the final size, so it does not matter which one gets here first
+                    stagedFile staged = stagedFile.openRange(file, fileSize, uploadId);
+                    long position = offset;
+                    try {
+                        int bytes = 0;
+                        byte[] buffer = new byte[STREAM_BUFFER_SIZE]; // buffer to hold bytes from client 
+                        InputStream fileBytes = this.limiter.input(this.inFromClient);
+                        tuning.transfer transfer = new tuning.transfer(this.clientConnection, end - offset, 0);
+                        try (writeBehind rangeOutputStream = new writeBehind(staged, offset)){ // writes at the range's own position
+                            while (position != end && (bytes = fileBytes.read(buffer, 0, (int) Math.min(buffer.length, end - position))) > -1){
+                                rangeOutputStream.write(buffer, 0, bytes);
+                                position += bytes;
+                                transfer.progress(bytes);
+                                if (buffer.length < transfer.chunk()){
+                                    buffer = new byte[transfer.chunk()]; // the transfer is fast enough for larger reads
+                                }
+                            }
+                        } // closing waits until the range is in the file
 
-                    while (bytesUploaded != file.length()){
-                        bytes = fileInputStream.read(buffer);
-                        outToClient.write(buffer,0,bytes); 
-                        outToClient.flush();
-                        bytesUploaded += bytes;
+                        // the range that completes the file puts it in place before it replies 
+                        if (position == end && staged.rangeWritten(offset, end)){
+                            staged.commit(locks);
+                            changed(file);
+                        }
+                    } finally {
+                        staged.release(); // the staged file is only removed once no range is using it
                     }
-     
-                    fileInputStream.close();
+                    metrics.bytesIn(this.command, position - offset);
+                    this.outToClient.writeLong(position - offset); // let the client know how much of the range was written
+                }
+                else{
+                    this.outToClient.writeBoolean(false);
                 }
             } catch (IOException e) {
-                System.err.println("server thread "+ Thread.currentThread().getId() + ": download error (" + e + ")");
+                this.error("range upload", e);
             }
         }
     
@@ -353,8 +1841,43 @@ public class server{
             System.exit(1);
         }
 
-        // start running the server
-        new server(Integer.parseInt(args[1])).start();
+        // read the socket and transfer settings from the file PA1_CONFIG points to
+        if (System.getenv("PA1_CONFIG") != null){
+            try {
+                if (!tuning.load(new File(System.getenv("PA1_CONFIG")))){
+                    System.exit(1);
+                }
+            } catch (IOException e) {
+                System.err.println("server: error reading " + System.getenv("PA1_CONFIG") + " (" + e + ")");
+                System.exit(1);
+            }
+        }
+
+        // start running the server with the requested engine 
+        server myServer = new server(Integer.parseInt(args[1]));
+        myServer.metrics.registerMBean();
+        myServer.bandwidth.registerMBean();
+        if (System.getenv("PA1_METRICS_PORT") != null){
+            myServer.metrics.serve(Integer.parseInt(System.getenv("PA1_METRICS_PORT")));
+        }
+        String mode = (args.length == 3) ? args[2] : "pool";
+        switch(mode){
+            case "nio":
+                myServer.startNio();
+                break;
+            case "virtual":
+                myServer.start(newVirtualThreadExecutor()); // one virtual thread per connection 
+                break;
+            default:
+                myServer.start(new scheduler(POOL_THREADS, METADATA_THREADS)); // a pool of threads that runs metadata commands ahead of transfers 
+                break;
+        }
+        System.out.println("server: download cache " + myServer.cache.stats());
+        System.out.println("server: metadata index " + myServer.index.stats());
+        if (myServer.store != null){
+            System.out.println("server: chunk store " + myServer.store.stats());
+        }
+        myServer.metrics.stop();
         System.exit(0);
     }
 }
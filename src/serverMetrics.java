@@ -0,0 +1,325 @@
+import com.sun.net.httpserver.HttpServer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import java.io.*;
+
+/**
+ * Counters of what the server is doing, updated on the hot paths without locks
+ * the time a command waits for a thread of the executor shows thread pool saturation, the handshake time shows slow networks or clients,
+ * and the time and bytes of each command show how fast the disk and the network move the files;
+ * they can be read through JMX (pa1:type=server) and as text in the Prometheus format from http://<host>:<PA1_METRICS_PORT>/metrics
+ */
+public class serverMetrics implements serverMetricsMBean{
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String UNKNOWN = "unknown"; // legacy clients can send any command, the ones the server does not have are counted together
+
+    private LongAdder connections = new LongAdder(); // connections accepted
+    private LongAdder activeConnections = new LongAdder(); // connections that are open
+    private LongAdder resumes = new LongAdder(); // transfers that resumed instead of starting over
+    private LongAdder resumedBytes = new LongAdder(); // bytes that resumed transfers did not send again
+    private latencyHistogram handshakes = new latencyHistogram(); // nanoseconds from accepting a connection until its command was read
+    private latencyHistogram queueWaits = new latencyHistogram(); // nanoseconds commands waited for a thread of the executor
+    private Map<String, commandMetrics> commands = new ConcurrentHashMap<>(); // by command (the commands of protocol, "connection" and UNKNOWN)
+    private Map<String, LongAdder> errorTypes = new ConcurrentHashMap<>(); // errors by the simple name of the exception
+
+    private ExecutorService executor; // the executor of the server threads, for its queue
+    private fileCache cache;
+    private HttpServer httpServer;
+
+    /**
+     * @param cache the server's download cache, its counters are reported with the others
+     */
+    public serverMetrics(fileCache cache){
+        this.cache = cache;
+    }
+
+    /**
+     * @param executor the executor that runs the server threads (its queue depth is reported if it has a queue)
+     */
+    void setExecutor(ExecutorService executor){
+        this.executor = executor;
+    }
+
+    void connectionOpened(){
+        this.connections.increment();
+        this.activeConnections.increment();
+    }
+
+    void connectionClosed(){
+        this.activeConnections.decrement();
+    }
+
+    /**
+     * @param nanoseconds time from accepting the connection until its command was read
+     */
+    void handshake(long nanoseconds){
+        this.handshakes.record(nanoseconds);
+    }
+
+    /**
+     * Count a command that finished (successfully or not)
+     * @param command name of the command
+     * @param queued nanoseconds it waited for a thread of the executor
+     * @param ran nanoseconds it ran for
+     */
+    void commandCompleted(String command, long queued, long ran){
+        commandMetrics metrics = this.command(command);
+        metrics.count.increment();
+        metrics.latency.record(ran);
+        this.queueWaits.record(queued);
+    }
+
+    /**
+     * @param command name of the command
+     * @param bytes bytes of file content the command received
+     */
+    void bytesIn(String command, long bytes){
+        this.command(command).bytesIn.add(bytes);
+    }
+
+    /**
+     * @param command name of the command
+     * @param bytes bytes of file content the command sent
+     */
+    void bytesOut(String command, long bytes){
+        this.command(command).bytesOut.add(bytes);
+    }
+
+    /**
+     * Count a transfer that resumed
+     * @param bytes bytes the receiver already had
+     */
+    void resumed(long bytes){
+        if (bytes > 0){
+            this.resumes.increment();
+            this.resumedBytes.add(bytes);
+        }
+    }
+
+    /**
+     * Count a command that failed
+     * @param command name of the command
+     * @param e what went wrong
+     */
+    void error(String command, Throwable e){
+        this.command(command).errors.increment();
+        this.errorTypes.computeIfAbsent(e.getClass().getSimpleName(), type -> new LongAdder()).increment();
+    }
+
+    private commandMetrics command(String command){
+        if (!protocol.isCommand(command) && !"connection".equals(command)){ // nio connections are "connection" until they have read their command
+            command = UNKNOWN;
+        }
+        commandMetrics metrics = this.commands.get(command);
+        return (metrics != null) ? metrics : this.commands.computeIfAbsent(command, name -> new commandMetrics());
+    }
+
+    //-------------------------------------------------- Exposing the Metrics --------------------------------------------------
+
+    /**
+     * Register the metrics as the MBean pa1:type=server
+     */
+    void registerMBean(){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("pa1:type=server"));
+        } catch (Exception e) {
+            System.err.println("server: error registering the metrics with JMX (" + e + ")");
+        }
+    }
+
+    /**
+     * Serve the metrics as text at /metrics
+     * @param port port of the endpoint
+     */
+    void serve(int port){
+        try {
+            this.httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+            this.httpServer.createContext("/metrics", exchange -> {
+                byte[] body = this.report().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream responseBody = exchange.getResponseBody()){
+                    responseBody.write(body);
+                }
+            });
+            this.httpServer.start(); // one thread of its own answers the scrapes
+            System.out.println("server: metrics at http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            System.err.println("server: error serving the metrics (" + e + ")");
+        }
+    }
+
+    /**
+     * Stop serving the metrics
+     */
+    void stop(){
+        if (this.httpServer != null){
+            this.httpServer.stop(0);
+        }
+    }
+
+    @Override
+    public String report(){
+        StringBuilder text = new StringBuilder();
+        gauge(text, "pa1_connections_active", "connections that are open", this.getActiveConnections());
+        counter(text, "pa1_connections_total", "connections accepted", this.connections.sum());
+        gauge(text, "pa1_executor_queue_depth", "commands waiting for a thread", this.getQueueDepth());
+        gauge(text, "pa1_executor_active_threads", "threads running a command", this.getActiveWorkers());
+        summary(text, "pa1_handshake_seconds", "time from accepting a connection until its command was read", "", this.handshakes);
+        summary(text, "pa1_queue_wait_seconds", "time commands waited for a thread", "", this.queueWaits);
+
+        Map<String, commandMetrics> commands = new TreeMap<>(this.commands);
+        header(text, "pa1_commands_total", "commands completed", "counter");
+        commands.forEach((command, metrics) -> sample(text, "pa1_commands_total", label("command", command), metrics.count.sum()));
+        header(text, "pa1_command_errors_total", "commands that failed", "counter");
+        commands.forEach((command, metrics) -> sample(text, "pa1_command_errors_total", label("command", command), metrics.errors.sum()));
+        header(text, "pa1_command_bytes_in_total", "bytes of files received", "counter");
+        commands.forEach((command, metrics) -> {
+            if (metrics.bytesIn.sum() > 0){ // only commands that move files
+                sample(text, "pa1_command_bytes_in_total", label("command", command), metrics.bytesIn.sum());
+            }
+        });
+        header(text, "pa1_command_bytes_out_total", "bytes of files sent", "counter");
+        commands.forEach((command, metrics) -> {
+            if (metrics.bytesOut.sum() > 0){
+                sample(text, "pa1_command_bytes_out_total", label("command", command), metrics.bytesOut.sum());
+            }
+        });
+        header(text, "pa1_command_seconds", "time commands ran for", "summary");
+        commands.forEach((command, metrics) -> quantiles(text, "pa1_command_seconds", label("command", command), metrics.latency));
+
+        counter(text, "pa1_resumes_total", "transfers that resumed", this.resumes.sum());
+        counter(text, "pa1_resumed_bytes_total", "bytes resumed transfers did not send again", this.resumedBytes.sum());
+        header(text, "pa1_errors_total", "errors by type", "counter");
+        new TreeMap<>(this.errorTypes).forEach((type, count) -> sample(text, "pa1_errors_total", label("type", type), count.sum()));
+
+        counter(text, "pa1_cache_hits_total", "downloads served from the cache", this.getCacheHits());
+        counter(text, "pa1_cache_misses_total", "downloads read from the file", this.getCacheMisses());
+        counter(text, "pa1_cache_evictions_total", "files dropped from the cache to make room", this.cache.evictions.sum());
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value){
+        header(text, name, help, "gauge");
+        sample(text, name, "", value);
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value){
+        header(text, name, help, "counter");
+        sample(text, name, "", value);
+    }
+
+    private static void summary(StringBuilder text, String name, String help, String labels, latencyHistogram histogram){
+        header(text, name, help, "summary");
+        quantiles(text, name, labels, histogram);
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type){
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, Object value){
+        text.append(name);
+        if (!labels.isEmpty()){
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write the quantiles of a histogram of nanoseconds in seconds, and how many values it has
+     */
+    private static void quantiles(StringBuilder text, String name, String labels, latencyHistogram histogram){
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        for (double quantile : QUANTILES){
+            sample(text, name, separator + label("quantile", Double.toString(quantile)), histogram.percentile(quantile * 100) / 1e9);
+        }
+        sample(text, name + "_count", labels, histogram.count());
+    }
+
+    private static String label(String name, String value){
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    //-------------------------------------------------- MBean Attributes --------------------------------------------------
+
+    @Override
+    public long getActiveConnections(){
+        return this.activeConnections.sum();
+    }
+
+    @Override
+    public long getConnections(){
+        return this.connections.sum();
+    }
+
+    @Override
+    public int getQueueDepth(){
+        if (this.executor instanceof scheduler){
+            return ((scheduler) this.executor).queueDepth();
+        }
+        return (this.executor instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) this.executor).getQueue().size() : 0;
+    }
+
+    @Override
+    public int getActiveWorkers(){
+        if (this.executor instanceof scheduler){
+            return ((scheduler) this.executor).activeCount();
+        }
+        return (this.executor instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) this.executor).getActiveCount() : 0;
+    }
+
+    @Override
+    public long getCommands(){
+        return this.commands.values().stream().mapToLong(metrics -> metrics.count.sum()).sum();
+    }
+
+    @Override
+    public long getErrors(){
+        return this.commands.values().stream().mapToLong(metrics -> metrics.errors.sum()).sum();
+    }
+
+    @Override
+    public long getBytesIn(){
+        return this.commands.values().stream().mapToLong(metrics -> metrics.bytesIn.sum()).sum();
+    }
+
+    @Override
+    public long getBytesOut(){
+        return this.commands.values().stream().mapToLong(metrics -> metrics.bytesOut.sum()).sum();
+    }
+
+    @Override
+    public long getResumes(){
+        return this.resumes.sum();
+    }
+
+    @Override
+    public long getCacheHits(){
+        return this.cache.hits.sum();
+    }
+
+    @Override
+    public long getCacheMisses(){
+        return this.cache.misses.sum();
+    }
+
+    //-------------------------------------------------- Command Metrics --------------------------------------------------
+    private static class commandMetrics{
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final latencyHistogram latency = new latencyHistogram(); // nanoseconds
+    }
+}
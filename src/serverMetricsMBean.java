@@ -0,0 +1,32 @@
+/**
+ * The server's metrics as a JMX MBean (pa1:type=server), e.g. for jconsole or a JMX exporter
+ */
+public interface serverMetricsMBean{
+
+    long getActiveConnections();
+
+    long getConnections();
+
+    int getQueueDepth();
+
+    int getActiveWorkers();
+
+    long getCommands();
+
+    long getErrors();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getResumes();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * @return every metric in the text format of the scrape endpoint
+     */
+    String report();
+}
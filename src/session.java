@@ -0,0 +1,431 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+
+/**
+ * Many commands over one connection
+ * every command gets its own stream, and the bytes of all the streams are sent as frames of [stream id][type][length][payload],
+ * so commands can be pipelined, their replies can come back in any order and several transfers can share the socket
+ * each stream behaves like the connection of a single command: the client opens it with a request, both sides close their end when they are done
+ * (from protocol version 6) a stream's writer may only send as many bytes as the reader has room for, the reader gives the room back
+ * with credit frames as the command reads them, so the session's reader never waits for one slow stream and the others keep moving
+ */
+public class session{
+
+    // types of frames
+    static final int OPEN = 0; // payload is the opcode and the path of the command
+    static final int DATA = 1; // payload is bytes of the stream
+    static final int CLOSE = 2; // the sender will not write to the stream anymore
+    static final int CREDIT = 3; // payload is the number of bytes the sender has read from the stream and has room for again (version 6 and later)
+
+    private static final int MAX_FRAME_SIZE = 256 * 1024; // longest payload of a data frame
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024; // bytes a stream buffers, the credit a writer starts with
+    private static final int CREDIT_THRESHOLD = STREAM_BUFFER_SIZE / 4; // bytes read before they are given back as credit
+
+    /**
+     * Called by the reader when the other side opens a stream
+     */
+    interface opener{
+        void opened(stream newStream, int opcode, String path);
+    }
+
+    private DataInputStream inFromPeer;
+    private DataOutputStream outToPeer;
+    private Closeable connection; // closed once a draining session has no streams left
+    private opener handler; // null on the side that opens the streams
+
+    int version = protocol.VERSION; // version of the binary protocol agreed when the session was opened
+
+    private Map<Integer, stream> streams = new ConcurrentHashMap<>();
+    private AtomicInteger nextStreamId = new AtomicInteger(1);
+    private volatile boolean draining = false; // no new streams, close once the open ones are done
+    private volatile boolean broken = false; // the connection has failed or been closed
+
+    /**
+     * @param inFromPeer stream from the other side (the session reads it until the connection closes)
+     * @param outToPeer stream to the other side
+     * @param connection the connection the streams belong to
+     * @param handler runs the commands of the streams the other side opens, null if this side opens the streams
+     */
+    public session(InputStream inFromPeer, OutputStream outToPeer, Closeable connection, opener handler){
+        this.inFromPeer = new DataInputStream(new BufferedInputStream(inFromPeer, MAX_FRAME_SIZE));
+        this.outToPeer = new DataOutputStream(new BufferedOutputStream(outToPeer, MAX_FRAME_SIZE));
+        this.connection = connection;
+        this.handler = handler;
+    }
+
+    /**
+     * Open a stream for a command
+     * @param opcode the command
+     * @param path the path the command works on
+     * @return the stream, its replies can be read as soon as the other side sends them
+     */
+    public stream open(int opcode, String path) throws IOException{
+        stream newStream = new stream(this.nextStreamId.getAndIncrement());
+        this.streams.put(newStream.id, newStream);
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(opcode);
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        protocol.writeVarint(request, pathBytes.length);
+        request.write(pathBytes);
+        this.sendFrame(newStream.id, OPEN, request.toByteArray(), 0, request.size());
+        return newStream;
+    }
+
+    /**
+     * Read frames and deliver them to their streams until the connection closes
+     */
+    public void run() throws IOException{
+        try {
+            byte[] payload = new byte[MAX_FRAME_SIZE];
+            while (true){
+                int id = this.inFromPeer.readInt();
+                int type = this.inFromPeer.readUnsignedByte();
+                int length = this.inFromPeer.readInt();
+                if (length < 0 || length > MAX_FRAME_SIZE){
+                    throw new IOException("frame of " + length + " bytes is too long");
+                }
+                this.inFromPeer.readFully(payload, 0, length);
+
+                stream target = this.streams.get(id);
+                if (type == OPEN && this.handler != null && target == null){
+                    DataInputStream request = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+                    int opcode = request.readUnsignedByte();
+                    String path = protocol.readString(request);
+                    stream newStream = new stream(id);
+                    this.streams.put(id, newStream);
+                    if (this.draining){
+                        newStream.out.close(); // refuse new commands while draining
+                        newStream.input.close();
+                    }
+                    else{
+                        this.handler.opened(newStream, opcode, path);
+                    }
+                }
+                else if (type == DATA && target != null){
+                    target.input.deliver(payload, length);
+                }
+                else if (type == CREDIT && target != null && length == Integer.BYTES){
+                    target.credited(new DataInputStream(new ByteArrayInputStream(payload, 0, length)).readInt());
+                }
+                else if (type == CLOSE && target != null){
+                    target.input.end();
+                    target.remoteClosed = true;
+                    this.release(target);
+                }
+            }
+        } catch (EOFException e) {
+            // the other side closed the connection
+        } finally {
+            this.broken = true;
+            for (stream openStream : this.streams.values()){
+                openStream.input.end();
+                openStream.credited(0); // writers waiting for credit see that the connection is gone
+            }
+        }
+    }
+
+    /**
+     * Stop taking new streams and close the connection once the open ones are done
+     */
+    public void drain(){
+        this.draining = true;
+        if (this.streams.isEmpty()){
+            this.closeConnection();
+        }
+    }
+
+    /**
+     * Close the connection, every stream sees the end of its input
+     */
+    public void closeConnection(){
+        this.broken = true;
+        try {
+            this.connection.close();
+        } catch (IOException e) {
+            System.err.println("session: error closing connection (" + e + ")");
+        }
+    }
+
+    /**
+     * Forget a stream once both sides have closed it
+     * @param closedStream the stream
+     */
+    private void release(stream closedStream){
+        if (closedStream.localClosed && closedStream.remoteClosed){
+            this.streams.remove(closedStream.id);
+            if (this.draining && this.streams.isEmpty()){
+                this.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * @return true if the streams of the session use credit (both sides speak version 6 or later)
+     */
+    private boolean flowControl(){
+        return this.version >= 6;
+    }
+
+    /**
+     * Send a frame, frames of different streams never interleave
+     */
+    private void sendFrame(int id, int type, byte[] payload, int offset, int length) throws IOException{
+        if (this.broken){
+            throw new IOException("session connection is closed");
+        }
+        synchronized (this.outToPeer){
+            this.outToPeer.writeInt(id);
+            this.outToPeer.writeByte(type);
+            this.outToPeer.writeInt(length);
+            this.outToPeer.write(payload, offset, length);
+            this.outToPeer.flush();
+        }
+    }
+
+    //-------------------------------------------------- Stream Methods & Variables --------------------------------------------------
+    public class stream{
+
+        private int id;
+        private streamInput input = new streamInput();
+        private volatile boolean localClosed = false;
+        private volatile boolean remoteClosed = false;
+        private int credit = STREAM_BUFFER_SIZE; // bytes this side may still send before the other side gives room back
+
+        public DataInputStream in = new DataInputStream(this.input); // bytes the other side wrote to this stream
+        public DataOutputStream out = new DataOutputStream(new streamOutput()); // bytes for the other side, closing it closes this end
+
+        public stream(int id){
+            this.id = id;
+        }
+
+        /**
+         * Close both directions of the stream
+         */
+        public void close(){
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                // the connection is gone, the other side will not read the stream anymore
+            }
+            this.input.close();
+        }
+
+        /**
+         * The other side read bytes of the stream and has room for them again
+         * @param bytes the room it gave back
+         */
+        private synchronized void credited(int bytes){
+            this.credit += bytes;
+            this.notifyAll();
+        }
+
+        /**
+         * Writer: wait until the other side has room for some bytes
+         * @param wanted bytes the writer has to send
+         * @return bytes it may send now, at most wanted
+         */
+        private synchronized int reserve(int wanted) throws IOException{
+            while (this.credit <= 0 && !broken){
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for room on stream " + id);
+                }
+            }
+            if (broken){
+                throw new IOException("session connection is closed");
+            }
+            int granted = Math.min(wanted, this.credit);
+            this.credit -= granted;
+            return granted;
+        }
+
+        /**
+         * Give room back to the other side once enough bytes of the stream were read
+         * @param bytes room that is waiting to be given back
+         */
+        private void sendCredit(int bytes){
+            try {
+                byte[] payload = {(byte) (bytes >>> 24), (byte) (bytes >>> 16), (byte) (bytes >>> 8), (byte) bytes};
+                sendFrame(id, CREDIT, payload, 0, payload.length);
+            } catch (IOException e) {
+                // the connection is gone, the other side will not write to the stream anymore
+            }
+        }
+
+        //-------------------------------------------------- Stream Output --------------------------------------------------
+        private class streamOutput extends OutputStream{
+
+            @Override
+            public void write(int b) throws IOException{
+                this.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            /**
+             * Send the bytes in data frames
+             */
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException{
+                if (localClosed){
+                    throw new IOException("stream is closed");
+                }
+                while (len > 0){
+                    int length = Math.min(len, MAX_FRAME_SIZE);
+                    if (flowControl()){
+                        length = reserve(length);
+                    }
+                    sendFrame(id, DATA, b, off, length);
+                    off += length;
+                    len -= length;
+                }
+            }
+
+            /**
+             * Let the other side know that nothing more will be written
+             */
+            @Override
+            public void close() throws IOException{
+                if (!localClosed){
+                    localClosed = true;
+                    try {
+                        sendFrame(id, CLOSE, new byte[0], 0, 0);
+                    } finally {
+                        release(stream.this);
+                    }
+                }
+            }
+        }
+
+        //-------------------------------------------------- Stream Input --------------------------------------------------
+        private class streamInput extends InputStream{
+
+            private byte[] buffer = new byte[STREAM_BUFFER_SIZE]; // ring buffer of bytes that have not been read yet
+            private int head = 0;
+            private int count = 0;
+            private boolean ended = false; // no more bytes will be delivered
+            private boolean closed = false; // the reader has stopped reading
+            private int unacknowledged = 0; // bytes read since credit was last given back
+
+            /**
+             * Add bytes from a data frame, with credit they always fit (an older peer without credit makes the reader wait while the buffer is full)
+             */
+            void deliver(byte[] bytes, int length) throws IOException{
+                int dropped = this.add(bytes, length);
+                if (dropped > 0 && flowControl()){
+                    sendCredit(dropped); // nobody reads the stream anymore, its writer gets the room back straight away
+                }
+            }
+
+            /**
+             * @return bytes that were dropped because the stream is closed
+             */
+            private synchronized int add(byte[] bytes, int length) throws IOException{
+                if (flowControl() && !this.closed && length > this.buffer.length - this.count){
+                    throw new IOException("stream " + id + " was sent more than its credit");
+                }
+                int offset = 0;
+                while (offset < length){
+                    while (this.count == this.buffer.length && !this.closed){
+                        try {
+                            this.wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("interrupted delivering to stream " + id);
+                        }
+                    }
+                    if (this.closed){
+                        return length - offset; // nobody will read the bytes
+                    }
+                    int tail = (this.head + this.count) % this.buffer.length;
+                    int n = Math.min(length - offset, Math.min(this.buffer.length - this.count, this.buffer.length - tail));
+                    System.arraycopy(bytes, offset, this.buffer, tail, n);
+                    this.count += n;
+                    offset += n;
+                    this.notifyAll();
+                }
+                return 0;
+            }
+
+            /**
+             * The other side closed the stream (or the connection is gone)
+             */
+            synchronized void end(){
+                this.ended = true;
+                this.notifyAll();
+            }
+
+            @Override
+            public int read() throws IOException{
+                byte[] single = new byte[1];
+                return (this.read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException{
+                int n = this.take(b, off, len);
+                if (n > 0 && flowControl()){
+                    int room = 0;
+                    synchronized (this){
+                        this.unacknowledged += n;
+                        if (this.unacknowledged >= CREDIT_THRESHOLD){
+                            room = this.unacknowledged;
+                            this.unacknowledged = 0;
+                        }
+                    }
+                    if (room > 0){
+                        sendCredit(room);
+                    }
+                }
+                return n;
+            }
+
+            private synchronized int take(byte[] b, int off, int len) throws IOException{
+                if (len == 0){
+                    return 0;
+                }
+                while (this.count == 0 && !this.ended && !this.closed){
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("interrupted reading stream " + id);
+                    }
+                }
+                if (this.closed){
+                    throw new IOException("stream is closed");
+                }
+                if (this.count == 0){
+                    return -1;
+                }
+                int n = Math.min(len, Math.min(this.count, this.buffer.length - this.head));
+                System.arraycopy(this.buffer, this.head, b, off, n);
+                this.head = (this.head + n) % this.buffer.length;
+                this.count -= n;
+                this.notifyAll();
+                return n;
+            }
+
+            @Override
+            public synchronized int available(){
+                return this.count;
+            }
+
+            @Override
+            public void close(){
+                int room;
+                synchronized (this){
+                    this.closed = true;
+                    this.notifyAll();
+                    room = this.count + this.unacknowledged; // bytes that will never be read
+                    this.count = 0;
+                    this.unacknowledged = 0;
+                }
+                if (room > 0 && flowControl() && !remoteClosed){
+                    sendCredit(room);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+import java.io.*;
+
+/**
+ * An upload that is written next to its file and renamed over it once it is complete, so downloads only ever see the old file or
+ * the new one whole, and two uploads of the same path never mix their bytes (the last one to finish is the one that stays)
+ * the first upload of a path writes to .<name>.part, which is kept when the upload is interrupted so the next upload can resume from it,
+ * an upload that finds the part file in use writes to a temporary file of its own and starts from the beginning;
+ * the ranges of a parallel upload share .<name>.<upload id>.ranges and the range that completes the file puts it in place,
+ * the staged file of an upload that stopped is removed once no range has used it for STALE_RANGES;
+ * staged files are never listed and commands cannot name them (see isStaging)
+ * when the bytes reach the disk is set by export PA1_DURABILITY on the server:
+ *   periodic (default): a syncer thread flushes every staged file with new bytes every PA1_FSYNC_MS (default 1000) in one round,
+ *                       so the fsync before the rename only has the last few left to do
+ *   close: staged files are only flushed to the disk before the rename
+ *   none: staged files are never flushed, a crash may leave a renamed file without its last bytes
+ */
+public class stagedFile implements Closeable{
+
+    static final String DURABILITY = durability(); // none, close or periodic
+    private static final long SYNC_PERIOD = period(); // milliseconds between the syncer's rounds
+    private static Set<stagedFile> unsynced = syncer(); // staged files the syncer flushes in its next round
+    private static Set<String> writing = ConcurrentHashMap.newKeySet(); // part files an upload is writing to
+    private static final long STALE_RANGES = 10 * 60 * 1000; // milliseconds a parallel upload's staged file is kept without a range using it
+    private static Map<String, stagedFile> parallel = new ConcurrentHashMap<>(); // staged files of parallel uploads, by path, size and upload id
+    private static final Pattern STAGING = Pattern.compile("\\..+\\.(part|ranges|link|delta)"); // names of the files uploads are written to
+
+    final File file; // where the upload goes once it is complete
+    private File part; // where the bytes are written until then
+    private boolean resumable; // the part file is kept for the next upload if this one does not complete
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+    private boolean committed = false;
+    private long size; // size of the file of a parallel upload
+    private TreeMap<Long, Long> ranges; // ranges of a parallel upload that were written, start to end
+    private boolean complete = false; // every range of a parallel upload was written
+    private String rangesKey; // key of a parallel upload in parallel
+    private int users = 0; // ranges of a parallel upload that are writing to it now
+    private long lastUsed; // when the last range of a parallel upload started or ended
+
+    private stagedFile(File file, File part, boolean resumable) throws IOException{
+        this.file = file;
+        this.part = part;
+        this.resumable = resumable;
+        try {
+            this.randomAccessFile = new RandomAccessFile(part, "rw");
+        } catch (FileNotFoundException e) {
+            writing.remove(part.getPath());
+            throw e;
+        }
+        this.fileChannel = this.randomAccessFile.getChannel();
+    }
+
+    /**
+     * @param name name of a file on the server
+     * @return true if an upload writes to a file of that name before it is put in place: .<name>.part and .<name>.<upload id>.ranges,
+     * or the .<name>.*.link and .<name>.*.delta files of chunk and delta uploads
+     */
+    static boolean isStaging(String name){
+        return STAGING.matcher(name).matches();
+    }
+
+    /**
+     * Start an upload of a file
+     * @param file the file the upload replaces
+     * @return the staged file, it may already hold the start of the file from an interrupted upload
+     */
+    static stagedFile open(File file) throws IOException{
+        File directory = file.getAbsoluteFile().getParentFile();
+        File part = new File(directory, "." + file.getName() + ".part");
+        if (writing.add(part.getPath())){
+            return new stagedFile(file, part, true);
+        }
+        return new stagedFile(file, File.createTempFile("." + file.getName() + ".", ".part", directory), false); // another upload of the file is running
+    }
+
+    /**
+     * Start a range of a parallel upload, the ranges of the upload share one staged file and other uploads of the file have their own
+     * @param file the file the upload replaces
+     * @param fileSize size of the whole file
+     * @param uploadId number the client picked for the upload, the same for all of its ranges (0 from clients before protocol version 6)
+     * @return the staged file of the upload, the range gives it back with release once it is written
+     */
+    static synchronized stagedFile openRange(File file, long fileSize, long uploadId) throws IOException{
+        String path = pathLocks.key(file);
+        String key = path + " " + fileSize + " " + uploadId;
+        stagedFile staged = parallel.get(key);
+        if (staged == null){
+            discardStale(path);
+            staged = new stagedFile(file, new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + "." + Long.toHexString(uploadId) + ".ranges"), false);
+            staged.size = fileSize;
+            staged.ranges = new TreeMap<>();
+            staged.rangesKey = key;
+            staged.randomAccessFile.setLength(fileSize);
+            parallel.put(key, staged);
+        }
+        staged.users++;
+        staged.lastUsed = System.currentTimeMillis();
+        return staged;
+    }
+
+    /**
+     * End a range of a parallel upload, written or not
+     */
+    void release(){
+        synchronized (stagedFile.class){
+            this.users--;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Remove the staged files of parallel uploads of a path that no range has used for STALE_RANGES (uploads that did not complete),
+     * a staged file a range is writing to is never removed
+     * @param path key of the path
+     */
+    private static void discardStale(String path) throws IOException{
+        long now = System.currentTimeMillis();
+        for (stagedFile staged : parallel.values()){
+            if (staged.users == 0 && now - staged.lastUsed > STALE_RANGES && pathLocks.key(staged.file).equals(path)){
+                parallel.remove(staged.rangesKey, staged);
+                staged.discard();
+            }
+        }
+    }
+
+    /**
+     * @return the channel the bytes are written to
+     */
+    FileChannel channel(){
+        return this.fileChannel;
+    }
+
+    /**
+     * @return bytes the staged file holds
+     */
+    long length() throws IOException{
+        return this.fileChannel.size();
+    }
+
+    /**
+     * Change the size of the staged file, e.g. before it is mapped
+     */
+    void setLength(long length) throws IOException{
+        this.randomAccessFile.setLength(length);
+    }
+
+    /**
+     * Note that bytes were written, the syncer flushes them in its next round
+     * @param bytes bytes written since the last call
+     */
+    void written(long bytes){
+        if (unsynced != null && bytes > 0){
+            unsynced.add(this);
+        }
+    }
+
+    /**
+     * Record a range of a parallel upload that was written
+     * @return true if every byte of the file has now been written, the caller commits it
+     */
+    synchronized boolean rangeWritten(long offset, long end){
+        this.ranges.merge(offset, end, Math::max);
+        long covered = 0;
+        for (Map.Entry<Long, Long> range : this.ranges.entrySet()){
+            if (range.getKey() > covered){
+                return false;
+            }
+            covered = Math.max(covered, range.getValue());
+        }
+        if (covered < this.size || this.complete){
+            return false;
+        }
+        this.complete = true; // only one range commits the file
+        return true;
+    }
+
+    //-------------------------------------------------- Commit --------------------------------------------------
+
+    /**
+     * Flush the staged file to the disk and rename it over the file
+     * @param locks the server's path locks, the rename holds the file's write lock
+     */
+    void commit(pathLocks locks) throws IOException{
+        this.sync();
+        this.publish(locks);
+    }
+
+    /**
+     * Flush many staged files to the disk, e.g. the files of a batch, so they can all be renamed after one round of flushes
+     * @param staged the staged files, each one is then put in place with publish
+     */
+    static void syncAll(List<stagedFile> staged) throws IOException{
+        for (stagedFile stagedFile : staged){
+            stagedFile.sync();
+        }
+    }
+
+    /**
+     * Rename a file that was written to the disk somewhere else (e.g. the new version built by a delta upload) over a file
+     * @param from the new version, flushed to the disk first
+     * @param to the file it replaces
+     * @param locks the server's path locks
+     */
+    static void replace(File from, File to, pathLocks locks) throws IOException{
+        if (!DURABILITY.equals("none")){
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(from, "rw")){
+                randomAccessFile.getChannel().force(true);
+            }
+        }
+        rename(from, to, locks);
+    }
+
+    private synchronized void sync() throws IOException{
+        if (unsynced != null){
+            unsynced.remove(this);
+        }
+        if (!DURABILITY.equals("none")){
+            this.fileChannel.force(true);
+        }
+    }
+
+    /**
+     * Rename a staged file that was flushed to the disk over its file
+     * @param locks the server's path locks
+     */
+    synchronized void publish(pathLocks locks) throws IOException{
+        this.fileChannel.close();
+        rename(this.part, this.file, locks);
+        this.committed = true;
+        this.forget();
+        writing.remove(this.part.getPath());
+        if (this.ranges != null){
+            parallel.remove(this.rangesKey, this);
+        }
+    }
+
+    private static void rename(File from, File to, pathLocks locks) throws IOException{
+        Lock lock = locks.writing(to);
+        lock.lock();
+        try {
+            if (!from.renameTo(to)){
+                throw new IOException("cannot replace " + to);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give up a parallel upload that will not complete
+     */
+    private synchronized void discard() throws IOException{
+        this.forget();
+        this.fileChannel.close();
+        this.part.delete();
+        this.committed = true; // nothing is left to close
+    }
+
+    /**
+     * End an upload that was not committed: a resumable part file that holds some bytes is kept, anything else is removed
+     * (the ranges of a parallel upload stay until the last one arrives)
+     */
+    @Override
+    public synchronized void close() throws IOException{
+        if (this.committed || this.ranges != null){
+            return;
+        }
+        this.committed = true;
+        this.forget();
+        try {
+            boolean keep = this.resumable && this.part.length() > 0;
+            this.fileChannel.close();
+            if (!keep){
+                this.part.delete();
+            }
+        } finally {
+            writing.remove(this.part.getPath());
+        }
+    }
+
+    private void forget(){
+        if (unsynced != null){
+            unsynced.remove(this);
+        }
+    }
+
+    //-------------------------------------------------- Syncer --------------------------------------------------
+
+    /**
+     * @return the files the syncer flushes, null if there is no syncer
+     */
+    private static Set<stagedFile> syncer(){
+        if (!DURABILITY.equals("periodic")){
+            return null;
+        }
+        Set<stagedFile> files = ConcurrentHashMap.newKeySet();
+        Thread syncThread = new Thread(() -> sync(files), "staged file syncer");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        return files;
+    }
+
+    /**
+     * Syncer: flush the staged files that were written to since the last round, one round every SYNC_PERIOD
+     */
+    private static void sync(Set<stagedFile> files){
+        while (true){
+            try {
+                TimeUnit.MILLISECONDS.sleep(SYNC_PERIOD);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (stagedFile staged : files){
+                files.remove(staged); // bytes written from here on are flushed in the next round
+                try {
+                    staged.fileChannel.force(false);
+                } catch (IOException e) {
+                    // closed by a commit or an interrupted upload since, the commit does its own flush
+                }
+            }
+        }
+    }
+
+    private static String durability(){
+        String durability = System.getenv("PA1_DURABILITY");
+        if (durability == null){
+            return "periodic";
+        }
+        durability = durability.trim().toLowerCase();
+        if (!durability.equals("none") && !durability.equals("close") && !durability.equals("periodic")){
+            System.err.println("server: PA1_DURABILITY is none, close or periodic, not " + durability + " (using periodic)");
+            return "periodic";
+        }
+        return durability;
+    }
+
+    private static long period(){
+        String period = System.getenv("PA1_FSYNC_MS");
+        return (period == null) ? 1000 : Math.max(1, Long.parseLong(period));
+    }
+}
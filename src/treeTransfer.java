@@ -0,0 +1,508 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+
+/**
+ * Recursive upload and download of a directory tree over the streams of one session
+ * the tree is walked one directory at a time while the transfers run: files up to SMALL_FILE_SIZE are packed into batches
+ * (BATCH_BYTES or BATCH_FILES, whichever fills first) that move in a single stream, larger files get a verified transfer of their own,
+ * and at most MAX_IN_FLIGHT_KB of files are handed to the transfers before the walk waits for some of them to finish
+ * directories are created on the other side as they are reached, empty ones included
+ */
+public class treeTransfer{
+
+    static final int DEFAULT_PARALLELISM = 8; // transfers that run at once unless told otherwise
+    private static final long SMALL_FILE_SIZE = 1024 * 1024; // largest file that goes into a batch
+    private static final long BATCH_BYTES = 4 * 1024 * 1024; // bytes of files a batch is sent with
+    private static final int BATCH_FILES = 1024; // most entries in a batch (the server takes up to 4096 names in a batch download)
+    private static final int MAX_IN_FLIGHT_KB = 256 * 1024; // KB of files the transfers may have been handed but not finished
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024; // one data frame of the session
+
+    private session mySession;
+    private ExecutorService workers;
+    private Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT_KB); // every file also costs 1 KB, so batches of empty files are bounded too
+    private AtomicInteger files = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+    AtomicLong bytes = new AtomicLong(); // bytes of file content that were transferred
+
+    /**
+     * @param mySession the session the transfers run on (version 3 or later)
+     * @param parallelism transfers that run at once
+     */
+    treeTransfer(session mySession, int parallelism){
+        this.mySession = mySession;
+        this.workers = Executors.newFixedThreadPool(parallelism);
+    }
+
+    //-------------------------------------------------- Upload --------------------------------------------------
+
+    /**
+     * Upload a directory and everything in it
+     * @param clientPath path to the client directory
+     * @param serverPath path to the server directory, created if it does not exist
+     * @return true if every file and directory was uploaded, false otherwise
+     */
+    boolean upload(String clientPath, String serverPath){
+        File root = new File(clientPath);
+        if (!root.isDirectory()){
+            System.err.println("upload: client path " + clientPath + " is invalid or not a directory");
+            return false;
+        }
+        long start = System.nanoTime();
+
+        try {
+            Deque<String> directories = new ArrayDeque<>(); // paths inside the root, "" for the root itself
+            Set<String> visited = new HashSet<>(); // canonical paths, so links back up the tree are only walked once
+            directories.push("");
+            List<String> batch = new ArrayList<>();
+            long batchBytes = 0;
+            batch.add(""); // the root is created by the first batch, empty or not
+
+            while (!directories.isEmpty()){
+                String directory = directories.pop();
+                File localDirectory = new File(root, directory);
+                if (!visited.add(localDirectory.getCanonicalPath())){
+                    continue; // a link to a directory that was already walked
+                }
+                File[] entries = localDirectory.listFiles();
+                if (entries == null){
+                    System.err.println("upload: cannot read client directory " + localDirectory);
+                    this.failed.incrementAndGet();
+                    continue;
+                }
+
+                for (File entry : entries){
+                    String name = directory.isEmpty() ? entry.getName() : directory + "/" + entry.getName();
+                    if (entry.isDirectory()){
+                        directories.push(name);
+                        batch.add(name + "/"); // created even if nothing is uploaded into it
+                    }
+                    else if (entry.isFile() && entry.length() > SMALL_FILE_SIZE){
+                        this.submit(entry.length(), () -> this.uploadLarge(entry, serverPath, name));
+                    }
+                    else if (entry.isFile()){
+                        batch.add(name);
+                        batchBytes += entry.length();
+                    }
+                    if (batch.size() >= BATCH_FILES || batchBytes >= BATCH_BYTES){
+                        this.submitUpload(root, serverPath, batch, batchBytes);
+                        batch = new ArrayList<>();
+                        batchBytes = 0;
+                    }
+                }
+            }
+            if (!batch.isEmpty()){
+                this.submitUpload(root, serverPath, batch, batchBytes);
+            }
+        } catch (IOException e) {
+            System.err.println("client: upload error (" + e + ")");
+            this.failed.incrementAndGet();
+        } catch (InterruptedException e) {
+            System.err.println("client: upload interrupted (" + e + ")");
+            this.failed.incrementAndGet();
+        }
+        return this.finish("upload", start);
+    }
+
+    /**
+     * Hand a batch of small files to the transfers
+     * @param names paths inside the root, directories end with /
+     */
+    private void submitUpload(File root, String serverPath, List<String> names, long batchBytes) throws InterruptedException{
+        this.submit(batchBytes + names.size() * 1024L, () -> this.uploadBatch(root, serverPath, names));
+    }
+
+    /**
+     * Upload a batch of small files (and directories) in one stream
+     * @param root the client directory
+     * @param serverPath path to the server directory
+     * @param names paths inside the root, directories end with / ("" only makes sure the server directory exists)
+     */
+    private void uploadBatch(File root, String serverPath, List<String> names){
+        session.stream batchStream = null;
+        try {
+            batchStream = this.mySession.open(protocol.BATCH_UPLOAD, serverPath);
+            if (!batchStream.in.readBoolean()){
+                System.err.println("upload: server path " + serverPath + " is invalid");
+                this.failed.addAndGet(names.size());
+                return;
+            }
+
+            DataOutputStream entries = new DataOutputStream(new BufferedOutputStream(batchStream.out, STREAM_BUFFER_SIZE));
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int sent = 0;
+            long sentBytes = 0;
+            for (String name : names){
+                if (name.isEmpty()){
+                    continue; // the server creates its directory before reading the entries
+                }
+                if (name.endsWith("/")){
+                    entries.writeByte(protocol.ENTRY_DIRECTORY);
+                    protocol.writeString(entries, name.substring(0, name.length() - 1));
+                    continue;
+                }
+
+                InputStream fileInputStream;
+                try {
+                    fileInputStream = new FileInputStream(new File(root, name));
+                } catch (FileNotFoundException e) {
+                    System.err.println("upload: cannot read client file " + name);
+                    this.failed.incrementAndGet();
+                    continue;
+                }
+                try (fileInputStream){
+                    long fileSize = new File(root, name).length();
+                    entries.writeByte(protocol.ENTRY_FILE);
+                    protocol.writeString(entries, name);
+                    entries.writeLong(fileSize);
+                    for (long remaining = fileSize; remaining > 0; ){
+                        int read = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0){
+                            throw new EOFException(name + " became shorter while uploading");
+                        }
+                        entries.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    sent++;
+                    sentBytes += fileSize;
+                }
+            }
+            entries.writeByte(protocol.ENTRY_END);
+            entries.flush();
+
+            // server replies with the entries it could not write
+            int failures = batchStream.in.readInt();
+            for (int i=0; i<failures; i++){
+                System.err.println("upload: server path " + serverPath + "/" + protocol.readString(batchStream.in) + " is invalid");
+            }
+            this.failed.addAndGet(failures);
+            this.files.addAndGet(sent);
+            this.bytes.addAndGet(sentBytes);
+        } catch (IOException e) {
+            System.err.println("client: upload error (" + e + ")");
+            this.failed.incrementAndGet();
+        } finally {
+            if (batchStream != null){
+                batchStream.close();
+            }
+        }
+    }
+
+    /**
+     * Upload a large file with a verified upload of its own
+     * @param file the client file
+     * @param serverPath path to the server directory
+     * @param name path of the file inside the directory
+     */
+    private void uploadLarge(File file, String serverPath, String name){
+        // the parent directory may still be waiting in a batch, so it is created first
+        int parent = name.lastIndexOf('/');
+        this.uploadBatch(null, serverPath, List.of((parent > 0) ? name.substring(0, parent + 1) : ""));
+        client fileClient = new client(this.mySession);
+        fileClient.quiet = true;
+        boolean OK = fileClient.upload(file.getPath(), serverPath + "/" + name);
+        fileClient.shutdownClient();
+        this.count(OK, fileClient.bytesTransferred);
+    }
+
+    //-------------------------------------------------- Download --------------------------------------------------
+
+    /**
+     * Download a directory and everything in it
+     * @param serverPath path to the server directory
+     * @param clientPath path to the client directory, created if it does not exist
+     * @return true if every file and directory was downloaded, false otherwise
+     */
+    boolean download(String serverPath, String clientPath){
+        File root = new File(clientPath);
+        if (!root.isDirectory() && !root.mkdirs()){
+            System.err.println("download: client path " + clientPath + " is invalid");
+            return false;
+        }
+        long start = System.nanoTime();
+
+        try {
+            Deque<String> directories = new ArrayDeque<>(); // paths inside the root, "" for the root itself
+            Map<String, Long> listings = new HashMap<>(); // fingerprint of the listing of every directory that was walked
+            directories.push("");
+            List<String> batch = new ArrayList<>();
+            long batchBytes = 0;
+
+            while (!directories.isEmpty()){
+                String directory = directories.pop();
+                String listPath = directory.isEmpty() ? serverPath : serverPath + "/" + directory;
+                session.stream listStream = this.mySession.open(protocol.LIST, listPath);
+                try {
+                    listStream.out.writeLong(0);
+                    listStream.out.writeInt(0);
+                    if (!listStream.in.readBoolean()){
+                        System.err.println("download: no such directory " + listPath);
+                        this.failed.incrementAndGet();
+                        continue;
+                    }
+
+                    // the whole listing is read first, a directory that lists exactly like one it is inside of is a link back up the tree
+                    DataInputStream listing = new DataInputStream(new BufferedInputStream(listStream.in, STREAM_BUFFER_SIZE));
+                    List<listed> entries = new ArrayList<>();
+                    for (int frameSize = listing.readInt(); frameSize > 0; frameSize = listing.readInt()){
+                        for (int i=0; i<frameSize; i++){
+                            entries.add(new listed(listing.readUnsignedByte(), listing.readLong(), listing.readLong(), protocol.readString(listing)));
+                        }
+                    }
+                    listing.readLong(); // cursor, the whole directory was asked for
+                    long fingerprint = fingerprint(entries);
+                    String ancestor = linkedAncestor(directory, fingerprint, listings);
+                    if (ancestor != null){
+                        System.err.println("download: skipping " + listPath + ", it links back to " + (ancestor.isEmpty() ? serverPath : serverPath + "/" + ancestor));
+                        new File(root, directory).delete(); // nothing was put in it yet
+                        continue;
+                    }
+                    listings.put(directory, fingerprint);
+
+                    // directories are created as they are reached, files are handed to the transfers
+                    for (listed entry : entries){
+                        String name = directory.isEmpty() ? entry.name : directory + "/" + entry.name;
+                        if (entry.name.contains("/") || entry.name.contains(File.separator) || server.resolve(root, name) == null){
+                            System.err.println("download: server sent the name \"" + entry.name + "\" in " + listPath + ", it is skipped");
+                            this.failed.incrementAndGet();
+                            continue;
+                        }
+                        if (entry.type == protocol.ENTRY_DIRECTORY){
+                            if (!new File(root, name).isDirectory() && !new File(root, name).mkdirs()){
+                                System.err.println("download: client path " + new File(root, name) + " is invalid");
+                                this.failed.incrementAndGet();
+                                continue;
+                            }
+                            directories.push(name);
+                        }
+                        else if (entry.type == protocol.ENTRY_FILE && entry.size > SMALL_FILE_SIZE){
+                            this.submit(entry.size, () -> this.downloadLarge(serverPath, name, new File(root, name)));
+                        }
+                        else if (entry.type == protocol.ENTRY_FILE){
+                            batch.add(name);
+                            batchBytes += entry.size;
+                            if (batch.size() >= BATCH_FILES || batchBytes >= BATCH_BYTES){
+                                this.submitDownload(serverPath, root, batch, batchBytes);
+                                batch = new ArrayList<>();
+                                batchBytes = 0;
+                            }
+                        }
+                    }
+                } finally {
+                    listStream.close();
+                }
+            }
+            if (!batch.isEmpty()){
+                this.submitDownload(serverPath, root, batch, batchBytes);
+            }
+        } catch (IOException e) {
+            System.err.println("client: download error (" + e + ")");
+            this.failed.incrementAndGet();
+        } catch (InterruptedException e) {
+            System.err.println("client: download interrupted (" + e + ")");
+            this.failed.incrementAndGet();
+        }
+        return this.finish("download", start);
+    }
+
+    /**
+     * An entry of a server directory
+     */
+    private static final class listed{
+        final int type;
+        final long size;
+        final long modified;
+        final String name;
+
+        listed(int type, long size, long modified, String name){
+            this.type = type;
+            this.size = size;
+            this.modified = modified;
+            this.name = name;
+        }
+    }
+
+    /**
+     * @return a hash of the names, types, sizes and times of the entries of a directory
+     */
+    private static long fingerprint(List<listed> entries){
+        long hash = entries.size();
+        for (listed entry : entries){
+            hash = hash * 1_000_003 + entry.name.hashCode();
+            hash = hash * 1_000_003 + entry.type;
+            hash = hash * 1_000_003 + entry.size;
+            hash = hash * 1_000_003 + entry.modified;
+        }
+        return hash;
+    }
+
+    /**
+     * Find the directory a server directory is a link to (e.g. a symbolic link back up the tree, which would be walked forever)
+     * a directory always lists its own subdirectory, so one of its subdirectories never lists the same unless it is a link to it
+     * @param directory path of the directory inside the root
+     * @param fingerprint fingerprint of its listing
+     * @param listings fingerprints of the directories that were walked
+     * @return the path of the directory's ancestor that lists the same, or null if there is none
+     */
+    private static String linkedAncestor(String directory, long fingerprint, Map<String, Long> listings){
+        String ancestor = directory;
+        while (!ancestor.isEmpty()){
+            int parent = ancestor.lastIndexOf('/');
+            ancestor = (parent > 0) ? ancestor.substring(0, parent) : "";
+            Long listed = listings.get(ancestor);
+            if (listed != null && listed == fingerprint){
+                return ancestor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hand a batch of small files to the transfers
+     */
+    private void submitDownload(String serverPath, File root, List<String> names, long batchBytes) throws InterruptedException{
+        this.submit(batchBytes + names.size() * 1024L, () -> this.downloadBatch(serverPath, root, names));
+    }
+
+    /**
+     * Download a batch of small files in one stream
+     * @param serverPath path to the server directory
+     * @param root the client directory
+     * @param names paths inside the directory
+     */
+    private void downloadBatch(String serverPath, File root, List<String> names){
+        session.stream batchStream = null;
+        try {
+            batchStream = this.mySession.open(protocol.BATCH_DOWNLOAD, serverPath);
+            if (!batchStream.in.readBoolean()){
+                System.err.println("download: no such directory " + serverPath);
+                this.failed.addAndGet(names.size());
+                return;
+            }
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(batchStream.out, STREAM_BUFFER_SIZE));
+            request.writeInt(names.size());
+            for (String name : names){
+                protocol.writeString(request, name);
+            }
+            request.flush();
+
+            // server sends the files in the order they were asked for
+            DataInputStream fileBytes = new DataInputStream(new BufferedInputStream(batchStream.in, STREAM_BUFFER_SIZE));
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            for (String name : names){
+                if (!fileBytes.readBoolean()){
+                    System.err.println("download: no such file " + serverPath + "/" + name);
+                    this.failed.incrementAndGet();
+                    continue;
+                }
+                long fileSize = fileBytes.readLong();
+                File file = new File(root, name);
+                OutputStream fileOutputStream;
+                try {
+                    fileOutputStream = new FileOutputStream(file);
+                } catch (FileNotFoundException e) {
+                    System.err.println("download: client path " + file + " is invalid");
+                    this.failed.incrementAndGet();
+                    fileOutputStream = OutputStream.nullOutputStream(); // the bytes are still read, so the next file is found
+                    file = null;
+                }
+                try (OutputStream out = fileOutputStream){
+                    for (long remaining = fileSize; remaining > 0; ){
+                        int read = fileBytes.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0){
+                            throw new EOFException("server closed the stream");
+                        }
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                }
+                if (file != null){
+                    this.files.incrementAndGet();
+                    this.bytes.addAndGet(fileSize);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("client: download error (" + e + ")");
+            this.failed.incrementAndGet();
+        } finally {
+            if (batchStream != null){
+                batchStream.close();
+            }
+        }
+    }
+
+    /**
+     * Download a large file with a verified download of its own
+     */
+    private void downloadLarge(String serverPath, String name, File file){
+        client fileClient = new client(this.mySession);
+        fileClient.quiet = true;
+        boolean OK = fileClient.download(serverPath + "/" + name, file.getPath());
+        fileClient.shutdownClient();
+        this.count(OK, fileClient.bytesTransferred);
+    }
+
+    //-------------------------------------------------- Transfers --------------------------------------------------
+
+    /**
+     * Run a transfer once its bytes fit into MAX_IN_FLIGHT_KB, waiting for earlier transfers to finish if they do not
+     * @param size bytes the transfer moves
+     * @param transfer the transfer
+     */
+    private void submit(long size, Runnable transfer) throws InterruptedException{
+        int permits = (int) Math.min(MAX_IN_FLIGHT_KB, size / 1024 + 1); // a file larger than the limit runs on its own
+        this.inFlight.acquire(permits);
+        this.workers.execute(() -> {
+            try {
+                transfer.run();
+            } finally {
+                this.inFlight.release(permits);
+            }
+        });
+    }
+
+    /**
+     * Count a file that was transferred on its own
+     */
+    private void count(boolean OK, long transferred){
+        if (OK){
+            this.files.incrementAndGet();
+            this.bytes.addAndGet(transferred);
+        }
+        else{
+            this.failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait for the transfers and print the totals
+     * @param command upload or download
+     * @param start when the command started (System.nanoTime)
+     * @return true if nothing failed
+     */
+    private boolean finish(String command, long start){
+        this.workers.shutdown();
+        try {
+            this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.err.println("client: " + command + " interrupted (" + e + ")");
+            this.failed.incrementAndGet();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%s -r: %d files, %d bytes, %d failed in %.3f s (%.1f files/s, %.1f MB/s)",
+            command, this.files.get(), this.bytes.get(), this.failed.get(), seconds, this.files.get() / seconds, this.bytes.get() / 1e6 / seconds));
+        return this.failed.get() == 0;
+    }
+}
@@ -0,0 +1,230 @@
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.io.*;
+
+/**
+ * Socket options and transfer sizes
+ * every connection gets TCP_NODELAY (the requests and replies of the protocol are small, Nagle's algorithm would hold them back until
+ * the other side's delayed acknowledgement), a transfer starts with a chunk size that suits the size of its file and measures its
+ * throughput as it goes: the chunk grows to about CHUNK_TIME of transfer and, once the round trip time is known, the socket buffers grow to
+ * twice the bandwidth-delay product (never above what the operating system allows) so the window does not limit fast, distant links
+ * the server reads the settings from the file PA1_CONFIG points to, the client takes them as --name=value flags before the command
+ */
+public class tuning{
+
+    private static final long CHECK_INTERVAL = 100_000_000L; // nanoseconds between measurements of a transfer's throughput
+    private static final double CHUNK_TIME = 0.01; // seconds of transfer a chunk grows to
+    private static final int CHUNKS_PER_FILE = 64; // a transfer starts with chunks of about this fraction of its file
+    private static final long SEND_LIMIT = systemLimit("wmem_max"); // largest send buffer the operating system allows
+    private static final long RECEIVE_LIMIT = systemLimit("rmem_max");
+
+    static boolean noDelay = true; // TCP_NODELAY on every connection
+    static int socketBuffer = 0; // fixed size of the socket buffers in bytes, 0 lets the buffers grow with the transfers
+    static int maxSocketBuffer = 16 * 1024 * 1024; // largest socket buffer a transfer grows to
+    static int minChunk = 64 * 1024; // smallest chunk a transfer reads, writes or hands to the kernel at once
+    static int maxChunk = 4 * 1024 * 1024; // largest chunk a transfer grows to
+
+    //-------------------------------------------------- Settings --------------------------------------------------
+
+    /**
+     * Change a setting
+     * @param name nodelay, socket-buffer-kb, max-socket-buffer-kb, min-chunk-kb or max-chunk-kb
+     * @param value true / false for nodelay, otherwise a number of KB (up to 999999)
+     * @return false if the setting or its value is not known
+     */
+    static boolean set(String name, String value){
+        if (name.equals("nodelay")){
+            if (!value.equals("true") && !value.equals("false")){
+                return false;
+            }
+            noDelay = value.equals("true");
+            return true;
+        }
+        if (!value.matches("[0-9]{1,6}")){
+            return false;
+        }
+        int bytes = Integer.parseInt(value) * 1024; // at most 999999 KB, which still fits an int
+        switch(name){
+            case "socket-buffer-kb":
+                socketBuffer = bytes;
+                return true;
+            case "max-socket-buffer-kb":
+                maxSocketBuffer = bytes;
+                return true;
+            case "min-chunk-kb":
+                minChunk = Math.max(1024, bytes);
+                maxChunk = Math.max(maxChunk, minChunk);
+                return true;
+            case "max-chunk-kb":
+                maxChunk = Math.max(minChunk, bytes);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Read the settings from a file of name=value lines (other lines of the file are left for the other parts of the server)
+     * @param configFile the file
+     * @return false if a setting has a value that is not valid
+     */
+    static boolean load(File configFile) throws IOException{
+        Properties properties = new Properties();
+        try (InputStream fileInputStream = new FileInputStream(configFile)){
+            properties.load(fileInputStream);
+        }
+        boolean valid = true;
+        for (String name : new String[] {"nodelay", "socket-buffer-kb", "max-socket-buffer-kb", "min-chunk-kb", "max-chunk-kb"}){
+            String value = properties.getProperty(name);
+            if (value != null && !set(name, value.trim())){
+                System.err.println("tuning: " + name + "=" + value + " is not valid");
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Take the --name=value flags from the front of the arguments
+     * @param args arguments from main
+     * @return the arguments after the flags, null if a flag is not valid
+     */
+    static String[] parseFlags(String[] args){
+        int flags = 0;
+        while (flags < args.length && args[flags].startsWith("--")){
+            String[] flag = args[flags].substring(2).split("=", 2);
+            if (flag.length != 2 || !set(flag[0], flag[1])){
+                System.err.println("client: " + args[flags] + " is not a valid flag (--nodelay=true|false, --socket-buffer-kb=, --max-socket-buffer-kb=, --min-chunk-kb=, --max-chunk-kb=)");
+                return null;
+            }
+            flags++;
+        }
+        String[] rest = new String[args.length - flags];
+        System.arraycopy(args, flags, rest, 0, rest.length);
+        return rest;
+    }
+
+    //-------------------------------------------------- Socket Options --------------------------------------------------
+
+    /**
+     * Set the receive buffer of the connections a server socket accepts, before it is bound so larger windows can be agreed on
+     * @param serverSocket the unbound server socket
+     */
+    static void configure(ServerSocket serverSocket) throws SocketException{
+        if (socketBuffer > 0){
+            serverSocket.setReceiveBufferSize(socketBuffer);
+        }
+    }
+
+    /**
+     * Set the options of a connection, a client sets them before it connects
+     * @param socket the connection
+     */
+    static void configure(Socket socket) throws SocketException{
+        socket.setTcpNoDelay(noDelay);
+        if (socketBuffer > 0){
+            socket.setSendBufferSize(socketBuffer);
+            socket.setReceiveBufferSize(socketBuffer);
+        }
+    }
+
+    /**
+     * @param name wmem_max or rmem_max
+     * @return the largest socket buffer the operating system allows (Linux), or no limit if it cannot be read
+     */
+    private static long systemLimit(String name){
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(Paths.get("/proc/sys/net/core/" + name))).trim());
+        } catch (IOException | NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    //-------------------------------------------------- Transfer --------------------------------------------------
+    static class transfer{
+
+        private Socket socket; // null for a session stream, its buffers belong to the session
+        private long rtt; // nanoseconds, 0 if it was not measured
+        private int chunk;
+        private long bandwidthDelay = 0; // bytes in flight at the measured throughput and round trip time
+        private long checkedAt = System.nanoTime();
+        private long bytesSinceCheck = 0;
+
+        /**
+         * @param socket the connection of the transfer, null if it runs on a session stream
+         * @param bytes bytes the transfer will move
+         * @param rtt measured round trip time in nanoseconds, 0 if it is not known
+         */
+        transfer(Socket socket, long bytes, long rtt){
+            this.socket = socket;
+            this.rtt = rtt;
+            this.chunk = (int) Math.max(minChunk, Math.min(maxChunk, Long.highestOneBit(Math.max(1, bytes / CHUNKS_PER_FILE))));
+        }
+
+        /**
+         * @return bytes to read, write or hand to the kernel at once
+         */
+        int chunk(){
+            return this.chunk;
+        }
+
+        /**
+         * @param minimum the smallest window
+         * @return bytes that may be sent before they are acknowledged, at least twice the bandwidth-delay product
+         */
+        long window(long minimum){
+            return Math.max(minimum, 2 * this.bandwidthDelay);
+        }
+
+        /**
+         * Count bytes that were moved and, every CHECK_INTERVAL, grow the chunk and the socket buffers to the measured throughput
+         * @param bytes bytes moved since the last call
+         */
+        void progress(long bytes){
+            this.bytesSinceCheck += bytes;
+            long now = System.nanoTime();
+            if (now - this.checkedAt < CHECK_INTERVAL){
+                return;
+            }
+            double bytesPerSecond = this.bytesSinceCheck * 1e9 / (now - this.checkedAt);
+            this.checkedAt = now;
+            this.bytesSinceCheck = 0;
+
+            long wanted = Math.min(maxChunk, Long.highestOneBit((long) Math.max(1, bytesPerSecond * CHUNK_TIME)));
+            if (wanted > this.chunk){
+                this.chunk = (int) wanted;
+            }
+            if (this.rtt > 0){
+                this.bandwidthDelay = Math.max(this.bandwidthDelay, (long) (bytesPerSecond * this.rtt / 1e9));
+                this.growBuffers();
+            }
+        }
+
+        /**
+         * Grow the socket buffers to twice the bandwidth-delay product, they are only set when that is larger than what they are now
+         * (setting a buffer stops the operating system from growing it on its own, so it must never end up smaller)
+         */
+        private void growBuffers(){
+            if (this.socket == null || socketBuffer > 0){
+                return;
+            }
+            long wanted = Math.min(2 * this.bandwidthDelay, maxSocketBuffer);
+            try {
+                long send = Math.min(wanted, SEND_LIMIT);
+                if (send > this.socket.getSendBufferSize()){
+                    this.socket.setSendBufferSize((int) send);
+                }
+                long receive = Math.min(wanted, RECEIVE_LIMIT);
+                if (receive > this.socket.getReceiveBufferSize()){
+                    this.socket.setReceiveBufferSize((int) receive);
+                }
+            } catch (SocketException e) {
+                this.socket = null; // the connection is closing, leave its buffers alone
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.io.*;
+
+/**
+ * Checks that the part of a file the receiver already has matches the sender's copy before a transfer resumes
+ * the receiver sends a CRC32C of every whole block it has, the sender resends from the first block that differs,
+ * and once the file is complete a SHA-256 of the whole file from the sender confirms the receiver's copy
+ */
+public class verifier{
+
+    static final int BLOCK_SIZE = 1024 * 1024; // bytes covered by each block checksum
+    static final int DIGEST_LENGTH = 32; // bytes of a SHA-256 digest
+
+    private FileChannel fileChannel;
+    private MessageDigest digest; // digest of the file up to the byte that has been checked or transferred
+    private List<MessageDigest> blockDigests = new ArrayList<>(); // digest at the start of each checksummed block, so the receiver can continue from any of them
+    private ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+
+    /**
+     * @param fileChannel the file being transferred (it is only read)
+     */
+    public verifier(FileChannel fileChannel){
+        this.fileChannel = fileChannel;
+        this.digest = newDigest();
+    }
+
+    /**
+     * Receiver: checksum every whole block at the start of the file
+     * @param length number of bytes that could match the sender's file (the shorter of the two files)
+     * @return CRC32C of each block
+     */
+    int[] checksumBlocks(long length) throws IOException{
+        int[] checksums = new int[(int) (length / BLOCK_SIZE)];
+        for (int i=0; i<checksums.length; i++){
+            this.blockDigests.add(copy(this.digest));
+            checksums[i] = this.readBlock(i);
+            this.digest.update(this.buffer.array(), 0, this.buffer.position());
+        }
+        this.blockDigests.add(copy(this.digest));
+        return checksums;
+    }
+
+    /**
+     * Sender: compare the receiver's checksums with the blocks of the file
+     * @param checksums CRC32C of each block the receiver has
+     * @return offset of the first block that differs, the transfer resumes there
+     */
+    long matchBlocks(int[] checksums) throws IOException{
+        for (int i=0; i<checksums.length; i++){
+            if (this.readBlock(i) != checksums[i]){
+                return (long) i * BLOCK_SIZE;
+            }
+            this.digest.update(this.buffer.array(), 0, this.buffer.position());
+        }
+        return (long) checksums.length * BLOCK_SIZE;
+    }
+
+    /**
+     * Receiver: continue the digest from the block the sender resumes at
+     * @param offset offset sent by the sender
+     */
+    void resumeAt(long offset) throws IOException{
+        if (offset % BLOCK_SIZE != 0 || offset / BLOCK_SIZE >= this.blockDigests.size()){
+            throw new IOException("cannot resume at byte " + offset);
+        }
+        this.digest = this.blockDigests.get((int) (offset / BLOCK_SIZE));
+        this.blockDigests.clear();
+    }
+
+    /**
+     * Add bytes that were transferred to the digest
+     */
+    void update(byte[] bytes, int offset, int length){
+        this.digest.update(bytes, offset, length);
+    }
+
+    /**
+     * Add bytes that were transferred from a buffer to the digest
+     */
+    void update(ByteBuffer bytes){
+        this.digest.update(bytes);
+    }
+
+    /**
+     * Add bytes of the file that were transferred without passing through this side (e.g. with transferTo) to the digest
+     * @param from first byte
+     * @param to one past the last byte
+     */
+    void updateFrom(long from, long to) throws IOException{
+        for (long block = from; block < to; block += BLOCK_SIZE){
+            this.buffer.clear().limit((int) Math.min(BLOCK_SIZE, to - block));
+            this.fill(block);
+            this.digest.update(this.buffer.array(), 0, this.buffer.position());
+        }
+    }
+
+    /**
+     * @return digest of every byte of the file
+     */
+    byte[] finish(){
+        return this.digest.digest();
+    }
+
+    /**
+     * Read a block into the buffer
+     * @param block number of the block
+     * @return CRC32C of the block
+     */
+    private int readBlock(long block) throws IOException{
+        this.buffer.clear();
+        this.fill(block * BLOCK_SIZE);
+        CRC32C crc = new CRC32C();
+        crc.update(this.buffer.array(), 0, this.buffer.position());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Fill the buffer from a position of the file, stopping early at the end of the file
+     */
+    private void fill(long position) throws IOException{
+        while (this.buffer.hasRemaining()){
+            if (this.fileChannel.read(this.buffer, position + this.buffer.position()) < 0){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send block checksums in a single write
+     * @param dataOutputStream the stream to the sender
+     * @param checksums the checksums
+     */
+    static void writeChecksums(DataOutputStream dataOutputStream, int[] checksums) throws IOException{
+        ByteBuffer message = ByteBuffer.allocate(Integer.BYTES * (checksums.length + 1));
+        message.putInt(checksums.length);
+        for (int checksum : checksums){
+            message.putInt(checksum);
+        }
+        dataOutputStream.write(message.array());
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Read block checksums written by writeChecksums
+     * @param dataInputStream the stream from the receiver
+     * @param fileSize size of the sender's file (the receiver cannot have more blocks of it)
+     * @return the checksums
+     */
+    static int[] readChecksums(DataInputStream dataInputStream, long fileSize) throws IOException{
+        int count = dataInputStream.readInt();
+        if (count < 0 || count > fileSize / BLOCK_SIZE){
+            throw new IOException(count + " block checksums for a file of " + fileSize + " bytes");
+        }
+        byte[] message = new byte[Integer.BYTES * count];
+        dataInputStream.readFully(message);
+        int[] checksums = new int[count];
+        ByteBuffer.wrap(message).asIntBuffer().get(checksums);
+        return checksums;
+    }
+
+    private static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Java runtime has SHA-256
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest){
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e); // the built in SHA-256 can be cloned
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+/**
+ * The bytes of an upload on their way to the disk, written by a thread of their own so the thread that reads the socket never waits
+ * for the disk unless the disk falls QUEUE_BLOCKS blocks behind
+ * the bytes are gathered into blocks of BLOCK_SIZE that start at multiples of BLOCK_SIZE in the file (only the first block of an upload
+ * that resumes is shorter), the blocks are direct buffers that are kept in a pool shared by every upload and written with one positional
+ * write each; when the bytes reach the disk follows the durability of stagedFile
+ * all uploads together hold at most POOL_BLOCKS blocks, an upload that cannot get one within BLOCK_WAIT writes its bytes itself until one is free
+ */
+public class writeBehind extends OutputStream{
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int QUEUE_BLOCKS = 8; // blocks of one upload that wait for the disk before the reader waits too
+    private static final int POOL_BLOCKS = 64; // most blocks of all uploads together
+    private static final long BLOCK_WAIT = 50; // milliseconds an upload waits for a block before it writes without one
+    private static final block END = new block(null, -1); // tells the writer that the upload is over
+    private static BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(POOL_BLOCKS);
+    private static Semaphore blocks = new Semaphore(POOL_BLOCKS); // blocks that are not held by an upload
+    private static ExecutorService writers = Executors.newCachedThreadPool(task -> {
+        Thread writer = new Thread(task, "write behind");
+        writer.setDaemon(true);
+        return writer;
+    });
+
+    private final stagedFile staged;
+    private final FileChannel fileChannel;
+    private BlockingQueue<block> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+    private ByteBuffer buffer; // the block that is being filled
+    private long position; // where that block goes in the file
+    private int pending = 0; // blocks handed to the writer that it has not written yet
+    private IOException failure; // why the writer could not write, the next write or flush throws it
+    private boolean closed = false;
+
+    /**
+     * A block and where it goes in the file
+     */
+    private static final class block{
+        final ByteBuffer buffer;
+        final long position;
+
+        block(ByteBuffer buffer, long position){
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Start writing an upload
+     * @param staged the staged file the upload is written to
+     * @param position where the first byte goes in the file
+     */
+    writeBehind(stagedFile staged, long position){
+        this.staged = staged;
+        this.fileChannel = staged.channel();
+        this.position = position;
+        writers.execute(this::write);
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException{
+        this.check();
+        while (length > 0){
+            if (this.buffer == null){
+                this.buffer = take();
+                if (this.buffer == null){ // every block is in use, write straight to the file
+                    this.writeThrough(bytes, offset, length);
+                    return;
+                }
+                this.buffer.limit(BLOCK_SIZE - (int) (this.position % BLOCK_SIZE)); // the block ends where the next aligned one starts
+            }
+            int copied = Math.min(length, this.buffer.remaining());
+            this.buffer.put(bytes, offset, copied);
+            offset += copied;
+            length -= copied;
+            if (!this.buffer.hasRemaining()){
+                this.hand();
+            }
+        }
+    }
+
+    /**
+     * Wait until every byte that was written is in the file
+     */
+    @Override
+    public void flush() throws IOException{
+        if (this.buffer != null && this.buffer.position() > 0){
+            this.hand();
+        }
+        synchronized (this){
+            while (this.pending > 0){
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("write behind interrupted");
+                }
+            }
+        }
+        this.check();
+    }
+
+    /**
+     * Write what is left and stop the writer, the staged file stays open
+     */
+    @Override
+    public void close() throws IOException{
+        if (this.closed){
+            return;
+        }
+        this.closed = true;
+        try {
+            this.flush();
+        } finally {
+            boolean interrupted = false;
+            while (true){
+                try {
+                    this.queue.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true; // the writer has to stop either way
+                }
+            }
+            if (this.buffer != null){
+                release(this.buffer);
+                this.buffer = null;
+            }
+            if (interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Give the block that is being filled to the writer, waits while the writer is QUEUE_BLOCKS blocks behind
+     */
+    private void hand() throws IOException{
+        this.buffer.flip();
+        block block = new block(this.buffer, this.position);
+        this.position += this.buffer.limit();
+        this.buffer = null;
+        synchronized (this){
+            this.pending++;
+        }
+        try {
+            this.queue.put(block);
+        } catch (InterruptedException e) {
+            synchronized (this){
+                this.pending--;
+            }
+            release(block.buffer);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("write behind interrupted");
+        }
+    }
+
+    /**
+     * Write bytes on the caller's thread when no block is free (the writer's blocks go elsewhere in the file, so the order does not matter)
+     */
+    private void writeThrough(byte[] bytes, int offset, int length) throws IOException{
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, length);
+        while (byteBuffer.hasRemaining()){
+            this.position += this.fileChannel.write(byteBuffer, this.position);
+        }
+        this.staged.written(length);
+    }
+
+    private synchronized void check() throws IOException{
+        if (this.failure != null){
+            throw new IOException("write error (" + this.failure.getMessage() + ")", this.failure);
+        }
+    }
+
+    //-------------------------------------------------- Writer --------------------------------------------------
+
+    /**
+     * Writer: write the blocks in the order they were handed over until the upload is closed,
+     * after an error the blocks are only given back so the reader never waits for a writer that stopped
+     */
+    private void write(){
+        while (true){
+            block block;
+            try {
+                block = this.queue.take();
+            } catch (InterruptedException e) {
+                return; // the server is shutting down
+            }
+            if (block == END){
+                return;
+            }
+            try {
+                if (this.failure == null){
+                    long position = block.position;
+                    while (block.buffer.hasRemaining()){
+                        position += this.fileChannel.write(block.buffer, position);
+                    }
+                    this.staged.written(block.buffer.limit());
+                }
+            } catch (IOException e) {
+                synchronized (this){
+                    this.failure = e;
+                }
+            } finally {
+                release(block.buffer);
+                synchronized (this){
+                    this.pending--;
+                    this.notifyAll();
+                }
+            }
+        }
+    }
+
+    //-------------------------------------------------- Pool --------------------------------------------------
+
+    /**
+     * @return an empty block, from the pool if it has one, or null if all POOL_BLOCKS are still held after BLOCK_WAIT
+     */
+    private static ByteBuffer take() throws InterruptedIOException{
+        try {
+            if (!blocks.tryAcquire(BLOCK_WAIT, TimeUnit.MILLISECONDS)){
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("write behind interrupted");
+        }
+        ByteBuffer buffer = pool.poll();
+        return (buffer != null) ? buffer : ByteBuffer.allocateDirect(BLOCK_SIZE);
+    }
+
+    private static void release(ByteBuffer buffer){
+        buffer.clear();
+        pool.offer(buffer);
+        blocks.release();
+    }
+}